@@ -0,0 +1,62 @@
+package com.zenobase.search.facet.decimalhistogram;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.search.facet.InternalFacet;
+import org.elasticsearch.search.facet.histogram.HistogramFacet.ComparatorType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.zenobase.search.facet.decimalhistogram.DecimalHistogramFacetExecutor.CollectMode;
+
+/**
+ * Collects all documents of an index with the field executor, in interval and nbin mode.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class CollectBenchmark {
+
+	@Param({ "UNIFORM", "SKEWED", "SPARSE" })
+	public SyntheticData.Distribution distribution;
+
+	@Param({ "interval", "nbin" })
+	public String binning;
+
+	@Param({ "DOC", "BATCH" })
+	public CollectMode collectMode;
+
+	@Param({ "1000000" })
+	public int documents;
+
+	private SyntheticData data;
+	private final BucketBudgetService budgets = new BucketBudgetService(ImmutableSettings.EMPTY, null, null, null);
+
+	@Setup
+	public void setUp() throws IOException {
+		data = new SyntheticData(distribution, documents, 8);
+	}
+
+	@Benchmark
+	public InternalFacet collect() throws IOException {
+		DecimalHistogramFacetExecutor executor = "nbin".equals(binning)
+			? new DecimalHistogramFacetExecutor(data.fieldData(), 1000, 0.0, 1000.0, ComparatorType.KEY, collectMode, null, budgets.budget(0, null), null)
+			: new DecimalHistogramFacetExecutor(data.fieldData(), 1.0, 0.0, ComparatorType.KEY, collectMode, null, budgets.budget(0, null), null);
+		data.collect(executor.collector());
+		return executor.buildFacet("benchmark");
+	}
+}
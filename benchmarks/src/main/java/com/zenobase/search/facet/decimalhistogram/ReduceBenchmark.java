@@ -0,0 +1,79 @@
+package com.zenobase.search.facet.decimalhistogram;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.cache.recycler.CacheRecycler;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.util.BigArrays;
+import org.elasticsearch.search.facet.Facet;
+import org.elasticsearch.search.facet.InternalFacet;
+import org.elasticsearch.search.facet.histogram.HistogramFacet.ComparatorType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Merges the histograms of a number of shards, each with about the given number of bins,
+ * in parallel from the default threshold on, as a node would.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ReduceBenchmark {
+
+	@Param({ "2", "16", "128" })
+	public int shards;
+
+	@Param({ "100", "10000", "100000" })
+	public int bins;
+
+	@Param({ "UNIFORM", "SKEWED", "SPARSE" })
+	public SyntheticData.Distribution distribution;
+
+	private List<Facet> facets;
+	private CacheRecycler cacheRecycler;
+	private ParallelReduceService parallelReduce;
+
+	@Setup
+	public void setUp() {
+		cacheRecycler = new CacheRecycler(ImmutableSettings.EMPTY);
+		parallelReduce = new ParallelReduceService(ImmutableSettings.EMPTY, cacheRecycler);
+		parallelReduce.start();
+		double interval = 1000.0 / bins;
+		facets = new ArrayList<>(shards);
+		for (int shard = 0; shard < shards; ++shard) {
+			Random random = new Random(shard);
+			DecimalBucketMap counts = new DecimalBucketMap(BigArrays.NON_RECYCLING_INSTANCE, 0);
+			for (int i = 0; i < bins * 4; ++i) {
+				counts.increment((long) Math.floor(distribution.next(random) / interval));
+			}
+			facets.add(new InternalDecimalHistogramFacet("benchmark", interval, 0.0, ComparatorType.KEY, counts));
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		parallelReduce.close();
+		cacheRecycler.close();
+	}
+
+	@Benchmark
+	public Facet reduce() {
+		return ((InternalFacet) facets.get(0)).reduce(new InternalFacet.ReduceContext(cacheRecycler, facets));
+	}
+}
@@ -0,0 +1,128 @@
+package com.zenobase.search.facet.decimalhistogram;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.search.Scorer;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.script.SearchScript;
+import org.elasticsearch.search.facet.InternalFacet;
+import org.elasticsearch.search.facet.histogram.HistogramFacet.ComparatorType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Collects all documents with the script executor. The scripts read the values from an
+ * array, so that this measures the executor rather than a script engine.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ScriptCollectBenchmark {
+
+	@Param({ "UNIFORM", "SKEWED", "SPARSE" })
+	public SyntheticData.Distribution distribution;
+
+	@Param({ "interval", "nbin" })
+	public String binning;
+
+	@Param({ "1000000" })
+	public int documents;
+
+	private SyntheticData data;
+	private final BucketBudgetService budgets = new BucketBudgetService(ImmutableSettings.EMPTY, null, null, null);
+
+	@Setup
+	public void setUp() throws IOException {
+		data = new SyntheticData(distribution, documents, 8);
+	}
+
+	@Benchmark
+	public InternalFacet collect() throws IOException {
+		SearchScript key = new ArrayScript(data.values);
+		SearchScript value = new ArrayScript(null);
+		ScriptDecimalHistogramFacetExecutor executor = "nbin".equals(binning)
+			? new ScriptDecimalHistogramFacetExecutor(key, value, 1000, 0.0, 1000.0, ComparatorType.KEY, budgets.budget(0, null))
+			: new ScriptDecimalHistogramFacetExecutor(key, value, 1.0, 0.0, ComparatorType.KEY, budgets.budget(0, null));
+		data.collect(executor.collector());
+		return executor.buildFacet("benchmark");
+	}
+
+	/**
+	 * Returns the value of the current document, or 1 if there are no values.
+	 */
+	private static final class ArrayScript implements SearchScript {
+
+		private final double[] values;
+		private int docBase;
+		private int doc;
+
+		ArrayScript(double[] values) {
+			this.values = values;
+		}
+
+		@Override
+		public void setNextReader(AtomicReaderContext context) {
+			docBase = context.docBase;
+		}
+
+		@Override
+		public void setNextDocId(int doc) {
+			this.doc = doc;
+		}
+
+		@Override
+		public double runAsDouble() {
+			return values != null ? values[docBase + doc] : 1.0;
+		}
+
+		@Override
+		public float runAsFloat() {
+			return (float) runAsDouble();
+		}
+
+		@Override
+		public long runAsLong() {
+			return (long) runAsDouble();
+		}
+
+		@Override
+		public Object run() {
+			return runAsDouble();
+		}
+
+		@Override
+		public void setScorer(Scorer scorer) {
+
+		}
+
+		@Override
+		public void setNextSource(Map<String, Object> source) {
+
+		}
+
+		@Override
+		public void setNextVar(String name, Object value) {
+
+		}
+
+		@Override
+		public Object unwrap(Object value) {
+			return value;
+		}
+	}
+}
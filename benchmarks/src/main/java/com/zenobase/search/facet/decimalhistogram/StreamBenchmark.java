@@ -0,0 +1,49 @@
+package com.zenobase.search.facet.decimalhistogram;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Writes a shard histogram to a stream and reads it back, as between nodes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class StreamBenchmark {
+
+	@Param({ "100", "10000", "100000" })
+	public int bins;
+
+	@Param({ "UNIFORM", "SKEWED", "SPARSE" })
+	public SyntheticData.Distribution distribution;
+
+	private InternalDecimalHistogramFacet facet;
+
+	@Setup
+	public void setUp() {
+		facet = XContentBenchmark.facet(distribution, bins);
+	}
+
+	@Benchmark
+	public InternalDecimalHistogramFacet roundTrip() throws IOException {
+		BytesStreamOutput out = new BytesStreamOutput();
+		facet.writeTo(out);
+		return InternalDecimalHistogramFacet.readDecimalHistogramFacet(out.bytes().streamInput());
+	}
+}
@@ -0,0 +1,214 @@
+package com.zenobase.search.facet.decimalhistogram;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.DoubleField;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.SortedNumericDocValues;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.Version;
+import org.elasticsearch.index.Index;
+import org.elasticsearch.index.fielddata.AtomicNumericFieldData;
+import org.elasticsearch.index.fielddata.FieldData;
+import org.elasticsearch.index.fielddata.FieldDataType;
+import org.elasticsearch.index.fielddata.IndexNumericFieldData;
+import org.elasticsearch.index.fielddata.NumericDoubleValues;
+import org.elasticsearch.index.fielddata.ScriptDocValues;
+import org.elasticsearch.index.fielddata.SortedBinaryDocValues;
+import org.elasticsearch.index.fielddata.SortedNumericDoubleValues;
+import org.elasticsearch.index.mapper.FieldMapper;
+import org.elasticsearch.search.MultiValueMode;
+import org.elasticsearch.search.facet.FacetExecutor;
+
+/**
+ * One single-valued numeric field over a number of documents, indexed into segments of
+ * equal size so that the terms of each segment are real, and served to the executors as
+ * field data from an array.
+ */
+final class SyntheticData {
+
+	static final String FIELD = "value";
+
+	/**
+	 * Shapes of the values, each between 0 and about 1000.
+	 */
+	enum Distribution {
+
+		/**
+		 * Spread evenly over [0, 1000).
+		 */
+		UNIFORM {
+			@Override
+			double next(Random random) {
+				return random.nextDouble() * 1000.0;
+			}
+		},
+		/**
+		 * Log-normal, with most values close to 0 and a long tail.
+		 */
+		SKEWED {
+			@Override
+			double next(Random random) {
+				return Math.exp(random.nextGaussian() * 1.5);
+			}
+		},
+		/**
+		 * Clustered tightly around 20 of 1000 possible points.
+		 */
+		SPARSE {
+			@Override
+			double next(Random random) {
+				return 50.0 * random.nextInt(20) + random.nextGaussian() * 0.01;
+			}
+		};
+
+		abstract double next(Random random);
+
+		double[] values(int n, long seed) {
+			Random random = new Random(seed);
+			double[] values = new double[n];
+			for (int i = 0; i < n; ++i) {
+				values[i] = next(random);
+			}
+			return values;
+		}
+	}
+
+	final double[] values;
+	final DirectoryReader reader;
+
+	SyntheticData(Distribution distribution, int documents, int segments) throws IOException {
+		this.values = distribution.values(documents, 42);
+		RAMDirectory directory = new RAMDirectory();
+		IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_4_10_4, new KeywordAnalyzer());
+		config.setMergePolicy(NoMergePolicy.INSTANCE);
+		try (IndexWriter writer = new IndexWriter(directory, config)) {
+			int perSegment = (documents + segments - 1) / segments;
+			for (int i = 0; i < documents; ++i) {
+				Document document = new Document();
+				document.add(new DoubleField(FIELD, values[i], Field.Store.NO));
+				writer.addDocument(document);
+				if ((i + 1) % perSegment == 0) {
+					writer.commit();
+				}
+			}
+		}
+		this.reader = DirectoryReader.open(directory);
+	}
+
+	/**
+	 * Collects every document of every segment.
+	 */
+	void collect(FacetExecutor.Collector collector) throws IOException {
+		for (AtomicReaderContext context : reader.leaves()) {
+			collector.setNextReader(context);
+			int maxDoc = context.reader().maxDoc();
+			for (int doc = 0; doc < maxDoc; ++doc) {
+				collector.collect(doc);
+			}
+		}
+		collector.postCollection();
+	}
+
+	IndexNumericFieldData fieldData() {
+		return new IndexNumericFieldData() {
+
+			@Override
+			public NumericType getNumericType() {
+				return NumericType.DOUBLE;
+			}
+
+			@Override
+			public FieldMapper.Names getFieldNames() {
+				return new FieldMapper.Names(FIELD);
+			}
+
+			@Override
+			public FieldDataType getFieldDataType() {
+				return null;
+			}
+
+			@Override
+			public AtomicNumericFieldData load(AtomicReaderContext context) {
+				return atomic(context.docBase);
+			}
+
+			@Override
+			public AtomicNumericFieldData loadDirect(AtomicReaderContext context) {
+				return atomic(context.docBase);
+			}
+
+			@Override
+			public XFieldComparatorSource comparatorSource(Object missingValue, MultiValueMode sortMode, XFieldComparatorSource.Nested nested) {
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public void clear() {
+
+			}
+
+			@Override
+			public void clear(IndexReader reader) {
+
+			}
+
+			@Override
+			public Index index() {
+				return null;
+			}
+		};
+	}
+
+	private AtomicNumericFieldData atomic(final int docBase) {
+		final NumericDoubleValues segmentValues = new NumericDoubleValues() {
+
+			@Override
+			public double get(int doc) {
+				return values[docBase + doc];
+			}
+		};
+		return new AtomicNumericFieldData() {
+
+			@Override
+			public SortedNumericDoubleValues getDoubleValues() {
+				return FieldData.singleton(segmentValues, new Bits.MatchAllBits(values.length - docBase));
+			}
+
+			@Override
+			public SortedNumericDocValues getLongValues() {
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public ScriptDocValues getScriptValues() {
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public SortedBinaryDocValues getBytesValues() {
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public long ramBytesUsed() {
+				return 0;
+			}
+
+			@Override
+			public void close() {
+
+			}
+		};
+	}
+}
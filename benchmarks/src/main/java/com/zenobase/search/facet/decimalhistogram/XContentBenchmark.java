@@ -0,0 +1,71 @@
+package com.zenobase.search.facet.decimalhistogram;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.util.BigArrays;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.search.facet.histogram.HistogramFacet.ComparatorType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Renders a reduced histogram as JSON.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class XContentBenchmark {
+
+	@Param({ "100", "10000", "100000" })
+	public int bins;
+
+	@Param({ "UNIFORM", "SKEWED", "SPARSE" })
+	public SyntheticData.Distribution distribution;
+
+	private InternalDecimalHistogramFacet facet;
+
+	@Setup
+	public void setUp() {
+		facet = facet(distribution, bins);
+		facet.sort();
+	}
+
+	@Benchmark
+	public BytesReference toXContent() throws IOException {
+		XContentBuilder builder = XContentFactory.jsonBuilder();
+		builder.startObject();
+		facet.toXContent(builder, ToXContent.EMPTY_PARAMS);
+		builder.endObject();
+		return builder.bytes();
+	}
+
+	/**
+	 * Returns a histogram of about the given number of bins over [0, 1000).
+	 */
+	static InternalDecimalHistogramFacet facet(SyntheticData.Distribution distribution, int bins) {
+		Random random = new Random(0);
+		double interval = 1000.0 / bins;
+		DecimalBucketMap counts = new DecimalBucketMap(BigArrays.NON_RECYCLING_INSTANCE, 0);
+		for (int i = 0; i < bins * 4; ++i) {
+			counts.increment((long) Math.floor(distribution.next(random) / interval));
+		}
+		return new InternalDecimalHistogramFacet("benchmark", interval, 0.0, ComparatorType.KEY, counts);
+	}
+}
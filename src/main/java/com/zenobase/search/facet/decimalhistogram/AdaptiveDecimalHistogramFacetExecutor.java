@@ -0,0 +1,140 @@
+package com.zenobase.search.facet.decimalhistogram;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.util.Bits;
+import org.elasticsearch.common.recycler.Recycler;
+import org.elasticsearch.index.fielddata.FieldData;
+import org.elasticsearch.index.fielddata.IndexNumericFieldData;
+import org.elasticsearch.index.fielddata.NumericDoubleValues;
+import org.elasticsearch.index.fielddata.SortedNumericDoubleValues;
+import org.elasticsearch.search.facet.FacetExecutor;
+import org.elasticsearch.search.facet.InternalFacet;
+import org.elasticsearch.search.facet.histogram.HistogramFacet.ComparatorType;
+
+/**
+ * Histogram with at most a fixed number of buckets, whose width is doubled whenever
+ * there would be more. Widths are the minimum interval times a power of two, so that the
+ * buckets of a narrower histogram fall entirely within those of a wider one, and shard
+ * results can be merged exactly. Infinite and NaN values are ignored.
+ */
+public class AdaptiveDecimalHistogramFacetExecutor extends FacetExecutor {
+
+	/**
+	 * Minimum interval if none is given.
+	 */
+	public static final double DEFAULT_MIN_INTERVAL = Math.scalb(1.0, -32);
+
+	/**
+	 * Keys are kept below 2^62 in magnitude, so that they fit into a long.
+	 */
+	private static final double MAX_KEY = Math.scalb(1.0, 62);
+
+	private final IndexNumericFieldData indexFieldData;
+	private final ComparatorType comparatorType;
+	private final double interval;
+	private final double offset;
+	private final int maxBins;
+	private final BucketBudget budget;
+	/**
+	 * Buckets are 2^exponent times the minimum interval wide.
+	 */
+	private int exponent;
+	/**
+	 * The current bucket width. Scaling by a power of two is exact, so the keys are the
+	 * same as if the values had been binned at this width all along.
+	 */
+	private double scaledInterval;
+
+	final Recycler.V<DecimalBucketMap> counts;
+
+	public AdaptiveDecimalHistogramFacetExecutor(IndexNumericFieldData indexFieldData, int maxBins, double interval, double offset, ComparatorType comparatorType, BucketBudget budget) {
+		this.indexFieldData = indexFieldData;
+		this.maxBins = maxBins;
+		this.interval = interval;
+		this.scaledInterval = interval;
+		this.offset = offset;
+		this.comparatorType = comparatorType;
+		this.budget = budget;
+		this.counts = DecimalBucketMap.obtain(budget);
+	}
+
+	@Override
+	public FacetExecutor.Collector collector() {
+		return new Collector(counts.v());
+	}
+
+	@Override
+	public InternalFacet buildFacet(String facetName) {
+		InternalDecimalHistogramFacet facet = new InternalDecimalHistogramFacet(facetName, Math.scalb(interval, exponent), offset, maxBins, comparatorType, counts.v());
+		counts.close();
+		facet.memory = budget.peak();
+		return facet;
+	}
+
+	private final class Collector extends FacetExecutor.Collector {
+
+		private final DecimalBucketMap counts;
+		private SortedNumericDoubleValues values;
+		private NumericDoubleValues singleValues;
+		private Bits docsWithField;
+
+		public Collector(DecimalBucketMap counts) {
+			this.counts = counts;
+		}
+
+		@Override
+		public void setNextReader(AtomicReaderContext context) throws IOException {
+			values = indexFieldData.load(context).getDoubleValues();
+			singleValues = FieldData.unwrapSingleton(values);
+			docsWithField = singleValues != null ? FieldData.unwrapSingletonBits(values) : null;
+			if (docsWithField instanceof Bits.MatchAllBits) {
+				docsWithField = null;
+			}
+		}
+
+		@Override
+		public void collect(int doc) throws IOException {
+			if (singleValues != null) {
+				double value = singleValues.get(doc);
+				if (value != 0.0 || docsWithField == null || docsWithField.get(doc)) {
+					add(value);
+				}
+				return;
+			}
+			values.setDocument(doc);
+			int count = values.count();
+			for (int i = 0; i < count; ++i) {
+				add(values.valueAt(i));
+			}
+		}
+
+		private void add(double value) {
+			double shifted = value + offset;
+			if (Double.isNaN(shifted) || Double.isInfinite(shifted)) {
+				return;
+			}
+			double key = shifted / scaledInterval;
+			while (!(Math.abs(key) < MAX_KEY)) {
+				coarsen(Double.isInfinite(key) ? 64 : Math.getExponent(key) - Math.getExponent(MAX_KEY) + 1);
+				key = shifted / scaledInterval;
+			}
+			counts.increment((long) Math.floor(key));
+			while (counts.size() > maxBins) {
+				coarsen(1);
+			}
+		}
+
+		private void coarsen(int shift) {
+			counts.coarsen(shift);
+			exponent += shift;
+			scaledInterval = Math.scalb(interval, exponent);
+		}
+
+		@Override
+		public void postCollection() {
+
+		}
+	}
+}
@@ -0,0 +1,71 @@
+package com.zenobase.search.facet.decimalhistogram;
+
+/**
+ * Bins between explicit, increasing edges. A value is looked up through a table of
+ * uniform cells over [edges[0], edges[n]), each holding the bin at the start of the cell,
+ * which narrows the search to the bins that overlap the cell of the value; usually one
+ * or two.
+ */
+final class BinEdges {
+
+	/**
+	 * Largest number of cells of the lookup table.
+	 */
+	private static final int MAX_CELLS = 1 << 16;
+
+	final double[] edges;
+	final int nbins;
+	private final double min;
+	private final double max;
+	private final double scale;
+	private final int[] table;
+
+	BinEdges(double[] edges) {
+		this.edges = edges;
+		this.nbins = edges.length - 1;
+		this.min = edges[0];
+		this.max = edges[nbins];
+		int cells = (int) Math.min(4L * nbins, MAX_CELLS);
+		this.scale = cells / (max - min);
+		this.table = new int[cells + 1];
+		int bin = 0;
+		for (int cell = 0; cell <= cells; ++cell) {
+			double start = min + cell / scale;
+			while (bin < nbins - 1 && edges[bin + 1] <= start) {
+				bin++;
+			}
+			table[cell] = bin;
+		}
+	}
+
+	/**
+	 * Returns the slot for the given value, as {@link FixedBins#slot(double)} does: 0 for
+	 * the underflow, 1 to nbins for the bins and nbins + 1 for the overflow.
+	 */
+	int slot(double value) {
+		if (!(value >= min)) {
+			return 0;
+		}
+		if (value >= max) {
+			return nbins + 1;
+		}
+		int cell = Math.min((int) ((value - min) * scale), table.length - 2);
+		int low = table[cell];
+		int high = table[cell + 1];
+		while (high - low > 2) {
+			int mid = (low + high) >>> 1;
+			if (edges[mid] <= value) {
+				low = mid;
+			} else {
+				high = mid - 1;
+			}
+		}
+		while (low > 0 && edges[low] > value) {
+			low--;
+		}
+		while (low < nbins - 1 && edges[low + 1] <= value) {
+			low++;
+		}
+		return low + 1;
+	}
+}
@@ -0,0 +1,97 @@
+package com.zenobase.search.facet.decimalhistogram;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.lease.Releasable;
+import org.elasticsearch.common.recycler.Recycler;
+import org.elasticsearch.common.util.BigArrays;
+import org.elasticsearch.search.internal.SearchContext;
+
+/**
+ * Limits the number of buckets of a facet, and charges the memory of its bucket storage
+ * to the request circuit breaker as it grows. Whatever is still charged when the search
+ * context is released is returned to the breaker then. Budgets are handed out by the
+ * {@link BucketBudgetService} of the node.
+ */
+final class BucketBudget implements Releasable {
+
+	/**
+	 * Label of the memory charged to the circuit breaker.
+	 */
+	static final String LABEL = "<decimal_histogram>";
+
+	final int maxBuckets;
+	/**
+	 * The arrays that bucket storage is allocated from while collecting. They are paged,
+	 * and their pages come from the page cache recycler of the node and go back to it
+	 * when released. They are not charged to a breaker, as the budget does that already.
+	 */
+	final BigArrays bigArrays;
+	final Recycler<DecimalBucketMap> maps;
+	private final CircuitBreaker breaker;
+	private long charged;
+	private long peak;
+	private boolean closed;
+
+	/**
+	 * @param service the service of the node
+	 * @param maxBuckets the maximum number of buckets, or 0 for no limit
+	 * @param context the search whose release returns the memory, or null
+	 */
+	BucketBudget(BucketBudgetService service, int maxBuckets, SearchContext context) {
+		this.maxBuckets = maxBuckets;
+		this.bigArrays = service.bigArrays;
+		this.maps = service.maps;
+		this.breaker = service.breaker();
+		if (context != null) {
+			context.addReleasable(this, SearchContext.Lifetime.CONTEXT);
+		}
+	}
+
+	/**
+	 * Throws if the given number of buckets exceeds the limit.
+	 */
+	void checkBuckets(long buckets) {
+		if (maxBuckets > 0 && buckets > maxBuckets) {
+			throw new TooManyBucketsException(maxBuckets);
+		}
+	}
+
+	/**
+	 * Charges the given number of bytes, before they are allocated.
+	 */
+	void charge(long bytes) {
+		if (breaker != null) {
+			breaker.addEstimateBytesAndMaybeBreak(bytes, LABEL);
+		}
+		charged += bytes;
+		peak = Math.max(peak, charged);
+	}
+
+	/**
+	 * Returns the given number of bytes, once they are no longer referenced, unless all
+	 * bytes have been returned already.
+	 */
+	void release(long bytes) {
+		if (closed) {
+			return;
+		}
+		if (breaker != null) {
+			breaker.addWithoutBreaking(-bytes);
+		}
+		charged -= bytes;
+	}
+
+	/**
+	 * Returns the largest number of bytes charged at any one time.
+	 */
+	long peak() {
+		return peak;
+	}
+
+	@Override
+	public void close() throws ElasticsearchException {
+		release(charged);
+		closed = true;
+	}
+}
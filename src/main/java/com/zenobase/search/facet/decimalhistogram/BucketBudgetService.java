@@ -0,0 +1,86 @@
+package com.zenobase.search.facet.decimalhistogram;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.cache.recycler.CacheRecycler;
+import org.elasticsearch.cache.recycler.PageCacheRecycler;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.component.AbstractLifecycleComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.recycler.Recycler;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.BigArrays;
+import org.elasticsearch.indices.breaker.CircuitBreakerService;
+import org.elasticsearch.search.internal.SearchContext;
+
+/**
+ * Hands out the {@link BucketBudget}s of a node, which allocate bucket storage from the
+ * page cache recycler of the node and charge it to its request circuit breaker.
+ */
+public class BucketBudgetService extends AbstractLifecycleComponent<BucketBudgetService> {
+
+	/**
+	 * Default maximum number of buckets of a facet on each shard; 0 means no limit.
+	 */
+	static final String MAX_BUCKETS_SETTING = "decimal_histogram.max_buckets";
+
+	static final int DEFAULT_MAX_BUCKETS = 1000000;
+
+	private static final NodeRegistry<BucketBudgetService> NODES = new NodeRegistry<>();
+
+	private final CacheRecycler cacheRecycler;
+	private final CircuitBreakerService breakerService;
+	private final int defaultMaxBuckets;
+	final BigArrays bigArrays;
+	final Recycler<DecimalBucketMap> maps;
+
+	@Inject
+	public BucketBudgetService(Settings settings, CacheRecycler cacheRecycler, CircuitBreakerService breakerService, PageCacheRecycler recycler) {
+		super(settings);
+		this.cacheRecycler = cacheRecycler;
+		this.breakerService = breakerService;
+		this.defaultMaxBuckets = settings.getAsInt(MAX_BUCKETS_SETTING, DEFAULT_MAX_BUCKETS);
+		this.bigArrays = new BigArrays(recycler, null);
+		this.maps = DecimalBucketMap.recycler(bigArrays);
+	}
+
+	/**
+	 * Returns the service of the node that owns the given cache recycler, or null.
+	 */
+	static BucketBudgetService of(CacheRecycler cacheRecycler) {
+		return NODES.get(cacheRecycler);
+	}
+
+	int defaultMaxBuckets() {
+		return defaultMaxBuckets;
+	}
+
+	/**
+	 * Returns the request circuit breaker, or null if there is none.
+	 */
+	CircuitBreaker breaker() {
+		return breakerService != null ? breakerService.getBreaker(CircuitBreaker.Name.REQUEST) : null;
+	}
+
+	/**
+	 * @param maxBuckets the maximum number of buckets, or 0 for no limit
+	 * @param context the search whose release returns the memory, or null
+	 */
+	BucketBudget budget(int maxBuckets, SearchContext context) {
+		return new BucketBudget(this, maxBuckets, context);
+	}
+
+	@Override
+	protected void doStart() throws ElasticsearchException {
+		NODES.register(cacheRecycler, this);
+	}
+
+	@Override
+	protected void doStop() throws ElasticsearchException {
+		NODES.unregister(cacheRecycler, this);
+	}
+
+	@Override
+	protected void doClose() throws ElasticsearchException {
+		maps.close();
+	}
+}
@@ -0,0 +1,450 @@
+package com.zenobase.search.facet.decimalhistogram;
+
+import org.elasticsearch.common.lease.Releasables;
+import org.elasticsearch.common.recycler.AbstractRecyclerC;
+import org.elasticsearch.common.recycler.Recycler;
+import org.elasticsearch.common.recycler.Recyclers;
+import org.elasticsearch.common.util.BigArrays;
+import org.elasticsearch.common.util.DoubleArray;
+import org.elasticsearch.common.util.LongArray;
+
+/**
+ * Open addressing map from bucket keys to counts, bin contents and sums of squares,
+ * backed by parallel paged arrays. A slot is free as long as its count is zero,
+ * so no per-bucket objects are created while collecting or reducing. Growing the map
+ * allocates pages rather than one contiguous array, and returns the pages of the old
+ * arrays to the page cache recycler. Bin contents and sums of squares equal the counts
+ * until a bucket is added to with a weight, and are only allocated from then on.
+ *
+ * The range of the keys is tracked as well. Whenever the map would grow and its keys
+ * are dense enough that an array indexed by the key minus the lowest key takes no more
+ * memory than the hash table, it switches to such an array, which needs neither keys
+ * nor probing. It widens the array for keys outside of it, and switches back to the
+ * hash table once the keys have become too sparse.
+ */
+final class DecimalBucketMap {
+
+	private static final int INITIAL_CAPACITY = 64;
+	private static final int MAX_RECYCLED_CAPACITY = 1 << 16;
+
+	/**
+	 * Largest dense array, in slots.
+	 */
+	private static final int MAX_DENSE_CAPACITY = 1 << 30;
+
+	/**
+	 * Returns a pool of maps allocating from the given arrays, pooled the same way the
+	 * cache recycler pools its hppc maps, which cannot hold our parallel arrays. Each
+	 * node has its own, so that maps only hold pages of the recycler of their node.
+	 */
+	static Recycler<DecimalBucketMap> recycler(final BigArrays bigArrays) {
+		return Recyclers.concurrent(
+			Recyclers.softFactory(Recyclers.dequeFactory(new AbstractRecyclerC<DecimalBucketMap>() {
+
+				@Override
+				public DecimalBucketMap newInstance(int sizing) {
+					return new DecimalBucketMap(bigArrays, sizing);
+				}
+
+				@Override
+				public void recycle(DecimalBucketMap value) {
+					value.clear();
+				}
+			}, Runtime.getRuntime().availableProcessors() * 10)),
+			Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Obtains a map from the pool of the given budget, whose storage is charged to the
+	 * budget, which also limits its number of buckets. The storage is returned to the
+	 * budget when the map is recycled.
+	 */
+	static Recycler.V<DecimalBucketMap> obtain(BucketBudget budget) {
+		Recycler.V<DecimalBucketMap> map = budget.maps.obtain();
+		budget.charge(map.v().bytes());
+		map.v().budget = budget;
+		return map;
+	}
+
+	/**
+	 * Keys of the slots, or null while the map is dense.
+	 */
+	LongArray keys;
+	LongArray counts;
+	/**
+	 * Bin contents and sums of squares, or null while they equal the counts.
+	 */
+	DoubleArray sums;
+	DoubleArray sumSq;
+	/**
+	 * Whether any bucket has been added to with an explicit weight.
+	 */
+	boolean weighted;
+	private final BigArrays bigArrays;
+	private BucketBudget budget;
+	private int size;
+	private int mask;
+	private int resizeAt;
+	/**
+	 * Lowest and highest key in the map.
+	 */
+	private long min = Long.MAX_VALUE;
+	private long max = Long.MIN_VALUE;
+	/**
+	 * Keys of the first and last slot while the map is dense.
+	 */
+	private long base;
+	private long last;
+
+	DecimalBucketMap(BigArrays bigArrays, int expectedSize) {
+		this.bigArrays = bigArrays;
+		allocate(capacityFor(expectedSize), false);
+	}
+
+	private static int capacityFor(int expectedSize) {
+		int capacity = INITIAL_CAPACITY;
+		while (capacity >> 1 < expectedSize) {
+			capacity <<= 1;
+		}
+		return capacity;
+	}
+
+	/**
+	 * Bytes of a slot: the key, unless dense, the count, and the sum and sum of squares,
+	 * if weighted.
+	 */
+	private static int slotBytes(boolean dense, boolean sums) {
+		return (dense ? 0 : 8) + 8 + (sums ? 16 : 0);
+	}
+
+	private static long bytes(int capacity, boolean dense, boolean sums) {
+		return (long) capacity * slotBytes(dense, sums);
+	}
+
+	private long bytes() {
+		return bytes(capacity(), keys == null, sums != null);
+	}
+
+	/**
+	 * Returns the number of slots a dense array for the given number of buckets may have,
+	 * which is as many as fit into the memory of a hash table at its maximum load.
+	 */
+	private long denseLimit(int buckets) {
+		boolean sums = this.sums != null;
+		return Math.min((long) buckets * 2 * slotBytes(false, sums) / slotBytes(true, sums), MAX_DENSE_CAPACITY);
+	}
+
+	private void allocate(int capacity, boolean sums) {
+		this.keys = bigArrays.newLongArray(capacity, false);
+		this.counts = bigArrays.newLongArray(capacity);
+		this.sums = sums ? bigArrays.newDoubleArray(capacity) : null;
+		this.sumSq = sums ? bigArrays.newDoubleArray(capacity) : null;
+		this.mask = capacity - 1;
+		this.resizeAt = capacity >> 1;
+	}
+
+	private void allocateDense(long base, int capacity, boolean sums) {
+		this.keys = null;
+		this.counts = bigArrays.newLongArray(capacity);
+		this.sums = sums ? bigArrays.newDoubleArray(capacity) : null;
+		this.sumSq = sums ? bigArrays.newDoubleArray(capacity) : null;
+		this.base = base;
+		this.last = base + (capacity - 1);
+	}
+
+	/**
+	 * Allocates the bin contents and sums of squares, starting out as the counts.
+	 */
+	private void allocateSums() {
+		int capacity = capacity();
+		if (budget != null) {
+			budget.charge(bytes(capacity, keys == null, true) - bytes(capacity, keys == null, false));
+		}
+		sums = bigArrays.newDoubleArray(capacity, false);
+		sumSq = bigArrays.newDoubleArray(capacity, false);
+		for (int slot = 0; slot < capacity; ++slot) {
+			long count = counts.get(slot);
+			sums.set(slot, count);
+			sumSq.set(slot, count);
+		}
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Number of slots; a slot is in use if its count is not zero.
+	 */
+	int capacity() {
+		return (int) counts.size();
+	}
+
+	/**
+	 * Whether the slots are indexed by key rather than hashed.
+	 */
+	boolean dense() {
+		return keys == null;
+	}
+
+	long key(int slot) {
+		return keys != null ? keys.get(slot) : base + slot;
+	}
+
+	long count(int slot) {
+		return counts.get(slot);
+	}
+
+	double sum(int slot) {
+		return sums != null ? sums.get(slot) : counts.get(slot);
+	}
+
+	double sumOfSquares(int slot) {
+		return sumSq != null ? sumSq.get(slot) : counts.get(slot);
+	}
+
+	void increment(long key) {
+		int slot = slot(key);
+		counts.increment(slot, 1L);
+		if (sums != null) {
+			sums.increment(slot, 1.0);
+			sumSq.increment(slot, 1.0);
+		}
+	}
+
+	void add(long key, double weight) {
+		weighted = true;
+		if (sums == null) {
+			allocateSums();
+		}
+		int slot = slot(key);
+		counts.increment(slot, 1L);
+		sums.increment(slot, weight);
+		sumSq.increment(slot, weight * weight);
+	}
+
+	void add(long key, long count, double sum, double sumOfSquares) {
+		if (count == 0) {
+			return;
+		}
+		if (sums == null && (sum != count || sumOfSquares != count)) {
+			allocateSums();
+		}
+		int slot = slot(key);
+		counts.increment(slot, count);
+		if (sums != null) {
+			sums.increment(slot, sum);
+			sumSq.increment(slot, sumOfSquares);
+		}
+	}
+
+	/**
+	 * Returns the slot for the given key, claiming a free one if the key is new. The
+	 * caller must make the count of a claimed slot non-zero.
+	 */
+	private int slot(long key) {
+		if (keys == null) {
+			if (key < base || key > last) {
+				widen(key);
+				return slot(key);
+			}
+			int slot = (int) (key - base);
+			if (counts.get(slot) == 0) {
+				claim(key);
+			}
+			return slot;
+		}
+		int slot = hash(key) & mask;
+		while (counts.get(slot) != 0) {
+			if (keys.get(slot) == key) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		if (size >= resizeAt) {
+			grow();
+			return slot(key);
+		}
+		claim(key);
+		keys.set(slot, key);
+		return slot;
+	}
+
+	private void claim(long key) {
+		if (budget != null) {
+			budget.checkBuckets(size + 1);
+		}
+		size++;
+		if (key < min) {
+			min = key;
+		}
+		if (key > max) {
+			max = key;
+		}
+	}
+
+	private static int hash(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	/**
+	 * Doubles the capacity of the hash table, or switches to a dense array if the keys
+	 * are dense enough.
+	 */
+	private void grow() {
+		long span = max - min;
+		if (span >= 0 && span < denseLimit(size + 1)) {
+			rebuild(true, min, (int) (span + 1));
+		} else {
+			rebuild(false, 0, capacity() << 1);
+		}
+	}
+
+	/**
+	 * Widens the dense array to cover the given key, leaving as much room again in the
+	 * direction it is widened in as far as the limit allows, or switches back to a hash
+	 * table if the keys would be too sparse.
+	 */
+	private void widen(long key) {
+		long low = Math.min(min, key);
+		long high = Math.max(max, key);
+		long span = high - low;
+		long limit = denseLimit(size + 1);
+		if (span < 0 || span >= limit) {
+			rebuild(false, 0, capacityFor(size + 1));
+			return;
+		}
+		int capacity = (int) Math.min(Math.max(span + 1, 2L * capacity()), limit);
+		long first = key < base ? high - (capacity - 1) : low;
+		if (first > low || first + (capacity - 1) < high) {
+			first = low;
+			capacity = (int) (span + 1);
+		}
+		rebuild(true, first, capacity);
+	}
+
+	/**
+	 * Moves the buckets into a hash table or a dense array of the given capacity.
+	 */
+	private void rebuild(boolean dense, long base, int capacity) {
+		int oldCapacity = capacity();
+		LongArray oldKeys = keys;
+		LongArray oldCounts = counts;
+		DoubleArray oldSums = sums;
+		DoubleArray oldSumSq = sumSq;
+		long oldBase = this.base;
+		long oldBytes = bytes();
+		if (budget != null) {
+			budget.charge(bytes(capacity, dense, oldSums != null));
+		}
+		if (dense) {
+			allocateDense(base, capacity, oldSums != null);
+		} else {
+			allocate(capacity, oldSums != null);
+		}
+		for (int i = 0; i < oldCapacity; ++i) {
+			long count = oldCounts.get(i);
+			if (count != 0) {
+				int slot = place(oldKeys != null ? oldKeys.get(i) : oldBase + i);
+				counts.set(slot, count);
+				if (oldSums != null) {
+					sums.set(slot, oldSums.get(i));
+					sumSq.set(slot, oldSumSq.get(i));
+				}
+			}
+		}
+		Releasables.close(oldKeys, oldCounts, oldSums, oldSumSq);
+		if (budget != null) {
+			budget.release(oldBytes);
+		}
+	}
+
+	/**
+	 * Returns the slot for a key that is not in the map yet, without counting it.
+	 */
+	private int place(long key) {
+		if (keys == null) {
+			return (int) (key - base);
+		}
+		int slot = hash(key) & mask;
+		while (counts.get(slot) != 0) {
+			slot = (slot + 1) & mask;
+		}
+		keys.set(slot, key);
+		return slot;
+	}
+
+	/**
+	 * Merges each bucket into the bucket that covers it at 2^shift times the width, that
+	 * is, the bucket whose key is the key shifted right.
+	 */
+	void coarsen(int shift) {
+		int oldCapacity = capacity();
+		LongArray oldKeys = keys;
+		LongArray oldCounts = counts;
+		DoubleArray oldSums = sums;
+		DoubleArray oldSumSq = sumSq;
+		long oldBase = base;
+		long oldBytes = bytes();
+		if (oldKeys == null) {
+			long first = coarsen(min, shift);
+			int capacity = (int) (coarsen(max, shift) - first + 1);
+			if (budget != null) {
+				budget.charge(bytes(capacity, true, oldSums != null));
+			}
+			allocateDense(first, capacity, oldSums != null);
+		} else {
+			if (budget != null) {
+				budget.charge(oldBytes);
+			}
+			allocate(oldCapacity, oldSums != null);
+		}
+		size = 0;
+		min = Long.MAX_VALUE;
+		max = Long.MIN_VALUE;
+		for (int i = 0; i < oldCapacity; ++i) {
+			long count = oldCounts.get(i);
+			if (count != 0) {
+				long key = coarsen(oldKeys != null ? oldKeys.get(i) : oldBase + i, shift);
+				if (oldSums != null) {
+					add(key, count, oldSums.get(i), oldSumSq.get(i));
+				} else {
+					add(key, count, count, count);
+				}
+			}
+		}
+		Releasables.close(oldKeys, oldCounts, oldSums, oldSumSq);
+		if (budget != null) {
+			budget.release(oldBytes);
+		}
+	}
+
+	/**
+	 * Returns the key of the bucket that covers the given one at 2^shift times the width.
+	 */
+	static long coarsen(long key, int shift) {
+		return shift < 64 ? key >> shift : key >> 63;
+	}
+
+	void clear() {
+		int capacity = capacity();
+		if (budget != null) {
+			budget.release(bytes());
+			budget = null;
+		}
+		Releasables.close(sums, sumSq);
+		sums = null;
+		sumSq = null;
+		if (keys == null || capacity > MAX_RECYCLED_CAPACITY) {
+			Releasables.close(keys, counts);
+			allocate(INITIAL_CAPACITY, false);
+		} else {
+			counts.fill(0, capacity, 0L);
+		}
+		size = 0;
+		min = Long.MAX_VALUE;
+		max = Long.MIN_VALUE;
+		weighted = false;
+	}
+}
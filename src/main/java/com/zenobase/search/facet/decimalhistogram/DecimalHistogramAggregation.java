@@ -0,0 +1,60 @@
+package com.zenobase.search.facet.decimalhistogram;
+
+import java.util.List;
+
+import org.elasticsearch.search.aggregations.bucket.MultiBucketsAggregation;
+
+public interface DecimalHistogramAggregation extends MultiBucketsAggregation {
+
+	/**
+	 * The non-empty bins, in key order.
+	 */
+	@Override
+	List<? extends Bucket> getBuckets();
+
+	/**
+	 * Returns the bin with the given index, as a string, or null if it is empty.
+	 */
+	@Override
+	<B extends MultiBucketsAggregation.Bucket> B getBucketByKey(String key);
+
+	/**
+	 * The sum of the weights of the values below xmin, or 0 without a fixed number of
+	 * bins.
+	 */
+	double getUnderflows();
+
+	/**
+	 * The sum of the weights of the values at or above xmax, or 0 without a fixed number
+	 * of bins.
+	 */
+	double getOverflows();
+
+	interface Bucket extends MultiBucketsAggregation.Bucket {
+
+		/**
+		 * The index of the bin.
+		 */
+		long getBin();
+
+		/**
+		 * The lower edge of the bin.
+		 */
+		double getLowEdge();
+
+		/**
+		 * The number of values in the bin, which may be more than the number of documents.
+		 */
+		long getCount();
+
+		/**
+		 * The sum of the weights of the values in the bin.
+		 */
+		double getBinContent();
+
+		/**
+		 * The square root of the sum of the squared weights.
+		 */
+		double getError();
+	}
+}
@@ -0,0 +1,65 @@
+package com.zenobase.search.facet.decimalhistogram;
+
+import java.io.IOException;
+
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.search.aggregations.ValuesSourceAggregationBuilder;
+
+public class DecimalHistogramAggregationBuilder extends ValuesSourceAggregationBuilder<DecimalHistogramAggregationBuilder> {
+
+	private double interval;
+	private double offset;
+	private int nbin;
+	private double xmin;
+	private double xmax;
+	private String valueField;
+
+	public DecimalHistogramAggregationBuilder(String name) {
+		super(name, InternalDecimalHistogramAggregation.TYPE.name());
+	}
+
+	public DecimalHistogramAggregationBuilder interval(double interval) {
+		this.interval = interval;
+		return this;
+	}
+
+	public DecimalHistogramAggregationBuilder offset(double offset) {
+		this.offset = offset;
+		return this;
+	}
+
+	/**
+	 * Uses the given number of bins between xmin and xmax instead of the interval and
+	 * offset.
+	 */
+	public DecimalHistogramAggregationBuilder bins(int nbin, double xmin, double xmax) {
+		this.nbin = nbin;
+		this.xmin = xmin;
+		this.xmax = xmax;
+		return this;
+	}
+
+	/**
+	 * Weights each value with the values of the given numeric field.
+	 */
+	public DecimalHistogramAggregationBuilder valueField(String valueField) {
+		this.valueField = valueField;
+		return this;
+	}
+
+	@Override
+	protected XContentBuilder doInternalXContent(XContentBuilder builder, Params params) throws IOException {
+		if (nbin != 0) {
+			builder.field("nbin", nbin);
+			builder.field("xmin", xmin);
+			builder.field("xmax", xmax);
+		} else {
+			builder.field("interval", interval);
+			builder.field("offset", offset);
+		}
+		if (valueField != null) {
+			builder.field("value_field", valueField);
+		}
+		return builder;
+	}
+}
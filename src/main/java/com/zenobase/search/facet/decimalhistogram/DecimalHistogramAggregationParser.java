@@ -0,0 +1,91 @@
+package com.zenobase.search.facet.decimalhistogram;
+
+import java.io.IOException;
+
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.index.fielddata.IndexFieldData;
+import org.elasticsearch.index.fielddata.IndexNumericFieldData;
+import org.elasticsearch.index.mapper.FieldMapper;
+import org.elasticsearch.search.SearchParseException;
+import org.elasticsearch.search.aggregations.Aggregator;
+import org.elasticsearch.search.aggregations.AggregatorFactory;
+import org.elasticsearch.search.aggregations.support.ValuesSource;
+import org.elasticsearch.search.aggregations.support.ValuesSourceParser;
+import org.elasticsearch.search.internal.SearchContext;
+
+/**
+ * Parses a decimal histogram aggregation, which takes the field or script of other
+ * numeric aggregations, plus the interval, offset, nbin, xmin, xmax and value_field
+ * parameters of the facet.
+ */
+public class DecimalHistogramAggregationParser implements Aggregator.Parser {
+
+	@Override
+	public String type() {
+		return InternalDecimalHistogramAggregation.TYPE.name();
+	}
+
+	@Override
+	public AggregatorFactory parse(String aggregationName, XContentParser parser, SearchContext context) throws IOException {
+		ValuesSourceParser<ValuesSource.Numeric> vsParser = ValuesSourceParser.numeric(aggregationName, InternalDecimalHistogramAggregation.TYPE, context)
+			.formattable(false)
+			.build();
+		String valueField = null;
+		double interval = 0.0;
+		double offset = 0.0;
+		int nbin = 0;
+		double xmin = 1.;
+		double xmax = -1.;
+
+		String currentName = null;
+		XContentParser.Token token;
+		while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+			if (token == XContentParser.Token.FIELD_NAME) {
+				currentName = parser.currentName();
+			} else if (vsParser.token(currentName, token, parser)) {
+				continue;
+			} else if (token.isValue()) {
+				if ("interval".equals(currentName)) {
+					interval = parser.doubleValue();
+				} else if ("offset".equals(currentName)) {
+					offset = parser.doubleValue();
+				} else if ("nbin".equals(currentName)) {
+					nbin = parser.intValue();
+				} else if ("xmin".equals(currentName)) {
+					xmin = parser.doubleValue();
+				} else if ("xmax".equals(currentName)) {
+					xmax = parser.doubleValue();
+				} else if ("value_field".equals(currentName) || "valueField".equals(currentName)) {
+					valueField = parser.text();
+				} else {
+					throw new SearchParseException(context, "Unknown key for a " + token + " in [" + aggregationName + "]: [" + currentName + "].");
+				}
+			} else {
+				throw new SearchParseException(context, "Unexpected token " + token + " in [" + aggregationName + "].");
+			}
+		}
+
+		if (nbin < 0) {
+			throw new SearchParseException(context, "[nbin] must not be negative in [" + aggregationName + "]");
+		}
+		if (nbin > 0 && !(xmax > xmin)) {
+			throw new SearchParseException(context, "[xmax] must be greater than [xmin] in [" + aggregationName + "]");
+		}
+		if (nbin == 0 && !(interval > 0.0)) {
+			throw new SearchParseException(context, "[interval] must be greater than 0.0 in [" + aggregationName + "]");
+		}
+		IndexNumericFieldData weightFieldData = null;
+		if (valueField != null) {
+			FieldMapper<?> mapper = context.smartNameFieldMapper(valueField);
+			if (mapper == null) {
+				throw new SearchParseException(context, "failed to find mapping for [" + valueField + "] in [" + aggregationName + "]");
+			}
+			IndexFieldData<?> fieldData = context.fieldData().getForField(mapper);
+			if (!(fieldData instanceof IndexNumericFieldData)) {
+				throw new SearchParseException(context, "[value_field] must be a numeric field in [" + aggregationName + "]");
+			}
+			weightFieldData = (IndexNumericFieldData) fieldData;
+		}
+		return new DecimalHistogramAggregator.Factory(aggregationName, vsParser.config(), weightFieldData, interval, offset, nbin, xmin, xmax);
+	}
+}
@@ -0,0 +1,292 @@
+package com.zenobase.search.facet.decimalhistogram;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.elasticsearch.common.lease.Releasables;
+import org.elasticsearch.common.util.DoubleArray;
+import org.elasticsearch.common.util.LongArray;
+import org.elasticsearch.common.util.LongHash;
+import org.elasticsearch.index.fielddata.IndexNumericFieldData;
+import org.elasticsearch.index.fielddata.SortedNumericDoubleValues;
+import org.elasticsearch.search.aggregations.Aggregator;
+import org.elasticsearch.search.aggregations.AggregatorFactories;
+import org.elasticsearch.search.aggregations.InternalAggregation;
+import org.elasticsearch.search.aggregations.bucket.BucketsAggregator;
+import org.elasticsearch.search.aggregations.support.AggregationContext;
+import org.elasticsearch.search.aggregations.support.ValuesSource;
+import org.elasticsearch.search.aggregations.support.ValuesSourceAggregatorFactory;
+import org.elasticsearch.search.aggregations.support.ValuesSourceConfig;
+
+/**
+ * Decimal histogram as a bucket aggregation, binned like the facet. With a fixed number
+ * of bins, the bins of all parent buckets are kept in flat big arrays, nbin + 2 slots
+ * per parent bucket, so that a single aggregator serves any number of parent buckets.
+ * With an interval, keys are mapped to bucket ordinals with a hash, and an aggregator
+ * is created per parent bucket, as for the histogram aggregation.
+ */
+public class DecimalHistogramAggregator extends BucketsAggregator {
+
+	private static final Comparator<long[]> KEY_ORDER = new Comparator<long[]>() {
+
+		@Override
+		public int compare(long[] a, long[] b) {
+			return a[0] < b[0] ? -1 : a[0] == b[0] ? 0 : 1;
+		}
+	};
+
+	private final ValuesSource.Numeric valuesSource;
+	private final IndexNumericFieldData weightFieldData;
+	private final double interval;
+	private final double offset;
+	private final int nbins;
+	private final double xmin;
+	private final double xmax;
+	/**
+	 * Bucket ordinals of the keys in interval mode, or null with a fixed number of bins.
+	 */
+	private final LongHash bucketOrds;
+	private LongArray counts;
+	/**
+	 * Bin contents and sums of squares, only kept for weighted histograms.
+	 */
+	private DoubleArray binContents;
+	private DoubleArray sumOfSquares;
+	private SortedNumericDoubleValues values;
+	private SortedNumericDoubleValues weightValues;
+	private double weight;
+
+	/**
+	 * Creates a histogram with the given interval and offset.
+	 *
+	 * @param valuesSource the values, or null if the field is not mapped
+	 * @param weightFieldData the weights, or null to count values
+	 */
+	DecimalHistogramAggregator(String name, AggregatorFactories factories, ValuesSource.Numeric valuesSource, IndexNumericFieldData weightFieldData,
+			double interval, double offset, AggregationContext context, Aggregator parent) {
+		super(name, BucketAggregationMode.PER_BUCKET, factories, 50, context, parent);
+		this.valuesSource = valuesSource;
+		this.weightFieldData = weightFieldData;
+		this.interval = interval;
+		this.offset = offset;
+		this.nbins = 0;
+		this.xmin = -offset;
+		this.xmax = -1.;
+		this.bucketOrds = new LongHash(50, context.bigArrays());
+		allocate(1);
+	}
+
+	/**
+	 * Creates a histogram with the given number of bins between xmin and xmax.
+	 *
+	 * @param valuesSource the values, or null if the field is not mapped
+	 * @param weightFieldData the weights, or null to count values
+	 */
+	DecimalHistogramAggregator(String name, AggregatorFactories factories, ValuesSource.Numeric valuesSource, IndexNumericFieldData weightFieldData,
+			int nbins, double xmin, double xmax, AggregationContext context, Aggregator parent) {
+		super(name, BucketAggregationMode.MULTI_BUCKETS, factories, nbins + 2, context, parent);
+		this.valuesSource = valuesSource;
+		this.weightFieldData = weightFieldData;
+		this.interval = (xmax - xmin) / nbins;
+		this.offset = 0.;
+		this.nbins = nbins;
+		this.xmin = xmin;
+		this.xmax = xmax;
+		this.bucketOrds = null;
+		allocate(nbins + 2);
+	}
+
+	private void allocate(long size) {
+		counts = bigArrays.newLongArray(size, true);
+		if (weightFieldData != null) {
+			binContents = bigArrays.newDoubleArray(size, true);
+			sumOfSquares = bigArrays.newDoubleArray(size, true);
+		}
+	}
+
+	@Override
+	public boolean shouldCollect() {
+		return valuesSource != null;
+	}
+
+	@Override
+	public void setNextReader(AtomicReaderContext reader) {
+		if (valuesSource != null) {
+			values = valuesSource.doubleValues();
+		}
+		if (weightFieldData != null) {
+			weightValues = weightFieldData.load(reader).getDoubleValues();
+		}
+	}
+
+	/**
+	 * Adds every value of the document with the sum of its weights, and collects the
+	 * document once into each regular bin that it has values in. Values are sorted, so
+	 * the bins of a document are visited in order.
+	 */
+	@Override
+	public void collect(int doc, long owningBucketOrdinal) throws IOException {
+		values.setDocument(doc);
+		int count = values.count();
+		if (count == 0) {
+			return;
+		}
+		if (!loadWeight(doc)) {
+			return;
+		}
+		long base = owningBucketOrdinal * (nbins + 2);
+		long previous = -1;
+		for (int i = 0; i < count; ++i) {
+			double value = values.valueAt(i);
+			long bucketOrd;
+			boolean regular;
+			if (bucketOrds == null) {
+				int slot = FixedBins.slot(value, nbins, xmin, xmax, interval);
+				bucketOrd = base + slot;
+				regular = slot != 0 && slot != nbins + 1;
+			} else {
+				bucketOrd = bucketOrds.add((long) Math.floor((value + offset) / interval));
+				if (bucketOrd < 0) {
+					bucketOrd = -1 - bucketOrd;
+				}
+				regular = true;
+			}
+			add(bucketOrd);
+			if (regular && bucketOrd != previous) {
+				collectBucket(doc, bucketOrd);
+				previous = bucketOrd;
+			}
+		}
+	}
+
+	/**
+	 * Loads the sum of the weights of the given document, and returns false if it has
+	 * none.
+	 */
+	private boolean loadWeight(int doc) {
+		if (weightFieldData == null) {
+			return true;
+		}
+		weightValues.setDocument(doc);
+		int count = weightValues.count();
+		weight = 0.0;
+		for (int i = 0; i < count; ++i) {
+			weight += weightValues.valueAt(i);
+		}
+		return count != 0;
+	}
+
+	private void add(long bucketOrd) {
+		if (bucketOrd >= counts.size()) {
+			counts = bigArrays.grow(counts, bucketOrd + 1);
+			if (weightFieldData != null) {
+				binContents = bigArrays.grow(binContents, bucketOrd + 1);
+				sumOfSquares = bigArrays.grow(sumOfSquares, bucketOrd + 1);
+			}
+		}
+		counts.increment(bucketOrd, 1L);
+		if (weightFieldData != null) {
+			binContents.increment(bucketOrd, weight);
+			sumOfSquares.increment(bucketOrd, weight * weight);
+		}
+	}
+
+	private long count(long bucketOrd) {
+		return bucketOrd < counts.size() ? counts.get(bucketOrd) : 0;
+	}
+
+	private double binContent(long bucketOrd) {
+		return weightFieldData == null ? count(bucketOrd) : bucketOrd < binContents.size() ? binContents.get(bucketOrd) : 0.;
+	}
+
+	private double sumOfSquares(long bucketOrd) {
+		return weightFieldData == null ? count(bucketOrd) : bucketOrd < sumOfSquares.size() ? sumOfSquares.get(bucketOrd) : 0.;
+	}
+
+	@Override
+	public InternalAggregation buildAggregation(long owningBucketOrdinal) {
+		InternalDecimalHistogramAggregation histogram = (InternalDecimalHistogramAggregation) buildEmptyAggregation();
+		if (bucketOrds == null) {
+			long base = owningBucketOrdinal * (nbins + 2);
+			for (int slot = 1; slot <= nbins; ++slot) {
+				long bucketOrd = base + slot;
+				long count = count(bucketOrd);
+				if (count != 0) {
+					histogram.add(slot - 1, bucketDocCount(bucketOrd), count, binContent(bucketOrd), sumOfSquares(bucketOrd), bucketAggregations(bucketOrd));
+				}
+			}
+			histogram.underflowCount = count(base);
+			histogram.underflows = binContent(base);
+			histogram.underflowSumOfSquares = sumOfSquares(base);
+			histogram.overflowCount = count(base + nbins + 1);
+			histogram.overflows = binContent(base + nbins + 1);
+			histogram.overflowSumOfSquares = sumOfSquares(base + nbins + 1);
+			return histogram;
+		}
+		assert owningBucketOrdinal == 0;
+		List<long[]> keys = new ArrayList<>((int) bucketOrds.size());
+		for (long bucketOrd = 0; bucketOrd < bucketOrds.size(); ++bucketOrd) {
+			keys.add(new long[] { bucketOrds.get(bucketOrd), bucketOrd });
+		}
+		Collections.sort(keys, KEY_ORDER);
+		for (long[] key : keys) {
+			long bucketOrd = key[1];
+			histogram.add(key[0], bucketDocCount(bucketOrd), count(bucketOrd), binContent(bucketOrd), sumOfSquares(bucketOrd), bucketAggregations(bucketOrd));
+		}
+		return histogram;
+	}
+
+	@Override
+	public InternalAggregation buildEmptyAggregation() {
+		return bucketOrds == null
+			? new InternalDecimalHistogramAggregation(name, nbins, xmin, xmax, weightFieldData != null)
+			: new InternalDecimalHistogramAggregation(name, interval, offset, weightFieldData != null);
+	}
+
+	@Override
+	public void doClose() {
+		Releasables.close(bucketOrds, counts, binContents, sumOfSquares);
+	}
+
+	public static class Factory extends ValuesSourceAggregatorFactory<ValuesSource.Numeric> {
+
+		private final IndexNumericFieldData weightFieldData;
+		private final double interval;
+		private final double offset;
+		private final int nbins;
+		private final double xmin;
+		private final double xmax;
+
+		/**
+		 * @param nbins the number of bins between xmin and xmax, or 0 to use the interval
+		 * and offset
+		 */
+		public Factory(String name, ValuesSourceConfig<ValuesSource.Numeric> config, IndexNumericFieldData weightFieldData,
+				double interval, double offset, int nbins, double xmin, double xmax) {
+			super(name, InternalDecimalHistogramAggregation.TYPE.name(), config);
+			this.weightFieldData = weightFieldData;
+			this.interval = interval;
+			this.offset = offset;
+			this.nbins = nbins;
+			this.xmin = xmin;
+			this.xmax = xmax;
+		}
+
+		@Override
+		protected Aggregator createUnmapped(AggregationContext context, Aggregator parent) {
+			return create(null, 1, context, parent);
+		}
+
+		@Override
+		protected Aggregator create(ValuesSource.Numeric valuesSource, long expectedBucketsCount, AggregationContext context, Aggregator parent) {
+			if (nbins != 0) {
+				return new DecimalHistogramAggregator(name, factories, valuesSource, weightFieldData, nbins, xmin, xmax, context, parent);
+			}
+			return new DecimalHistogramAggregator(name, factories, valuesSource, weightFieldData, interval, offset, context, parent);
+		}
+	}
+}
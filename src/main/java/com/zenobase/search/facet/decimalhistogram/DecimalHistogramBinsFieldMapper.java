@@ -0,0 +1,211 @@
+package com.zenobase.search.facet.decimalhistogram;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.elasticsearch.common.Explicit;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.elasticsearch.index.codec.docvaluesformat.DocValuesFormatProvider;
+import org.elasticsearch.index.codec.postingsformat.PostingsFormatProvider;
+import org.elasticsearch.index.mapper.Mapper;
+import org.elasticsearch.index.mapper.MapperParsingException;
+import org.elasticsearch.index.mapper.MergeContext;
+import org.elasticsearch.index.mapper.MergeMappingException;
+import org.elasticsearch.index.mapper.ParseContext;
+import org.elasticsearch.index.mapper.core.LongFieldMapper;
+import org.elasticsearch.index.mapper.core.TypeParsers;
+import org.elasticsearch.index.similarity.SimilarityProvider;
+
+/**
+ * Field of type decimal_histogram_bins, which indexes the bin of each numeric value in
+ * a histogram that is declared in the mapping, either with nbin, xmin and xmax or with
+ * an interval and offset. Bins are stored as longs, with doc values by default: the
+ * slot of fixed bins (0 for the underflow, nbin + 1 for the overflow), or the key of
+ * interval bins. Decimal histogram facets with the same binning count these bins
+ * instead of the values; the field is usually a multi-field of the numeric field.
+ */
+public class DecimalHistogramBinsFieldMapper extends LongFieldMapper {
+
+	public static final String CONTENT_TYPE = "decimal_histogram_bins";
+
+	private final int nbin;
+	private final double xmin;
+	private final double xmax;
+	private final double interval;
+	private final double offset;
+
+	public static class Builder extends LongFieldMapper.Builder {
+
+		private int nbin;
+		private double xmin = 1.;
+		private double xmax = -1.;
+		private double interval;
+		private double offset;
+
+		public Builder(String name) {
+			super(name);
+			this.docValues = true;
+			this.includeInAll = false;
+		}
+
+		public Builder bins(int nbin, double xmin, double xmax) {
+			this.nbin = nbin;
+			this.xmin = xmin;
+			this.xmax = xmax;
+			return this;
+		}
+
+		public Builder interval(double interval, double offset) {
+			this.interval = interval;
+			this.offset = offset;
+			return this;
+		}
+
+		@Override
+		public DecimalHistogramBinsFieldMapper build(BuilderContext context) {
+			if (nbin != 0 ? !(xmax > xmin) || interval != 0.0 : !(interval > 0.0) || Double.isInfinite(interval)) {
+				throw new MapperParsingException("[" + CONTENT_TYPE + "] field [" + name + "] requires either [nbin], [xmin] and [xmax], with [xmax] greater than [xmin], or an [interval] greater than 0.0");
+			}
+			fieldType.setOmitNorms(fieldType.omitNorms() && boost == 1.0f);
+			DecimalHistogramBinsFieldMapper fieldMapper = new DecimalHistogramBinsFieldMapper(buildNames(context), nbin, xmin, xmax, interval, offset,
+				fieldType.numericPrecisionStep(), boost, fieldType, docValues, nullValue, ignoreMalformed(context), coerce(context), postingsProvider,
+				docValuesProvider, similarity, normsLoading, fieldDataSettings, context.indexSettings(), multiFieldsBuilder.build(this, context), copyTo);
+			fieldMapper.includeInAll(includeInAll);
+			return fieldMapper;
+		}
+	}
+
+	public static class TypeParser implements Mapper.TypeParser {
+
+		@Override
+		public Mapper.Builder<?, ?> parse(String name, Map<String, Object> node, ParserContext parserContext) throws MapperParsingException {
+			Builder builder = new Builder(name);
+			int nbin = 0;
+			double xmin = 1.;
+			double xmax = -1.;
+			double interval = 0.0;
+			double offset = 0.0;
+			for (Iterator<Map.Entry<String, Object>> i = node.entrySet().iterator(); i.hasNext();) {
+				Map.Entry<String, Object> entry = i.next();
+				if ("nbin".equals(entry.getKey())) {
+					nbin = XContentMapValues.nodeIntegerValue(entry.getValue());
+				} else if ("xmin".equals(entry.getKey())) {
+					xmin = XContentMapValues.nodeDoubleValue(entry.getValue());
+				} else if ("xmax".equals(entry.getKey())) {
+					xmax = XContentMapValues.nodeDoubleValue(entry.getValue());
+				} else if ("interval".equals(entry.getKey())) {
+					interval = XContentMapValues.nodeDoubleValue(entry.getValue());
+				} else if ("offset".equals(entry.getKey())) {
+					offset = XContentMapValues.nodeDoubleValue(entry.getValue());
+				} else {
+					continue;
+				}
+				i.remove();
+			}
+			if (nbin < 0) {
+				throw new MapperParsingException("[nbin] must not be negative");
+			}
+			builder.bins(nbin, xmin, xmax);
+			builder.interval(interval, offset);
+			TypeParsers.parseNumberField(builder, name, node, parserContext);
+			return builder;
+		}
+	}
+
+	protected DecimalHistogramBinsFieldMapper(Names names, int nbin, double xmin, double xmax, double interval, double offset,
+			int precisionStep, float boost, FieldType fieldType, Boolean docValues, Long nullValue, Explicit<Boolean> ignoreMalformed,
+			Explicit<Boolean> coerce, PostingsFormatProvider postingsProvider, DocValuesFormatProvider docValuesProvider,
+			SimilarityProvider similarity, Loading normsLoading, Settings fieldDataSettings, Settings indexSettings,
+			MultiFields multiFields, CopyTo copyTo) {
+		super(names, precisionStep, boost, fieldType, docValues, nullValue, ignoreMalformed, coerce, postingsProvider, docValuesProvider,
+			similarity, normsLoading, fieldDataSettings, indexSettings, multiFields, copyTo);
+		this.nbin = nbin;
+		this.xmin = xmin;
+		this.xmax = xmax;
+		this.interval = nbin != 0 ? (xmax - xmin) / nbin : interval;
+		this.offset = nbin != 0 ? 0.0 : offset;
+	}
+
+	/**
+	 * Returns true if this field stores the bins of a histogram with the given number of
+	 * bins between xmin and xmax.
+	 */
+	boolean hasBins(int nbin, double xmin, double xmax) {
+		return nbin != 0 && this.nbin == nbin && this.xmin == xmin && this.xmax == xmax;
+	}
+
+	/**
+	 * Returns true if this field stores the bins of a histogram with the given interval
+	 * and offset.
+	 */
+	boolean hasBins(double interval, double offset) {
+		return nbin == 0 && this.interval == interval && this.offset == offset;
+	}
+
+	/**
+	 * Returns the bin of the given value, the same way the facet executors do.
+	 */
+	long bin(double value) {
+		if (nbin != 0) {
+			return FixedBins.slot(value, nbin, xmin, xmax, interval);
+		}
+		return (long) Math.floor((value + offset) / interval);
+	}
+
+	@Override
+	protected void innerParseCreateField(ParseContext context, List<Field> fields) throws IOException {
+		double value;
+		if (context.externalValueSet()) {
+			Object externalValue = context.externalValue();
+			if (externalValue == null) {
+				return;
+			}
+			value = externalValue instanceof Number ? ((Number) externalValue).doubleValue() : Double.parseDouble(externalValue.toString());
+		} else {
+			XContentParser parser = context.parser();
+			if (parser.currentToken() == XContentParser.Token.VALUE_NULL
+					|| (parser.currentToken() == XContentParser.Token.VALUE_STRING && parser.textLength() == 0)) {
+				return;
+			}
+			value = parser.doubleValue(coerce.value());
+		}
+		super.innerParseCreateField(context.createExternalValueContext(bin(value)), fields);
+	}
+
+	@Override
+	protected String contentType() {
+		return CONTENT_TYPE;
+	}
+
+	@Override
+	public void merge(Mapper mergeWith, MergeContext mergeContext) throws MergeMappingException {
+		super.merge(mergeWith, mergeContext);
+		if (mergeWith instanceof DecimalHistogramBinsFieldMapper) {
+			DecimalHistogramBinsFieldMapper other = (DecimalHistogramBinsFieldMapper) mergeWith;
+			if (nbin != 0 ? !other.hasBins(nbin, xmin, xmax) : !other.hasBins(interval, offset)) {
+				mergeContext.addConflict("mapper [" + names.fullName() + "] has different bins");
+			}
+		}
+	}
+
+	@Override
+	protected void doXContentBody(XContentBuilder builder, boolean includeDefaults, ToXContent.Params params) throws IOException {
+		super.doXContentBody(builder, includeDefaults, params);
+		if (nbin != 0) {
+			builder.field("nbin", nbin);
+			builder.field("xmin", xmin);
+			builder.field("xmax", xmax);
+		} else {
+			builder.field("interval", interval);
+			builder.field("offset", offset);
+		}
+	}
+}
@@ -0,0 +1,11 @@
+package com.zenobase.search.facet.decimalhistogram;
+
+import org.elasticsearch.common.inject.AbstractModule;
+
+public class DecimalHistogramBinsIndexModule extends AbstractModule {
+
+	@Override
+	protected void configure() {
+		bind(RegisterDecimalHistogramBinsType.class).asEagerSingleton();
+	}
+}
@@ -1,17 +1,36 @@
 package com.zenobase.search.facet.decimalhistogram;
 
 import java.io.IOException;
+import java.util.Locale;
 
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.search.facet.FacetBuilder;
 import org.elasticsearch.search.facet.histogram.HistogramFacet.ComparatorType;
 
+import com.zenobase.search.facet.decimalhistogram.DecimalHistogramFacetExecutor.CollectMode;
+
 public class DecimalHistogramFacetBuilder extends FacetBuilder {
 
 	private final String field;
 	private final double interval;
 	private final double offset;
 	private final ComparatorType comparatorType;
+	private String valueField;
+	private int maxBins;
+	private double baseInterval;
+	private int nbin;
+	private double xmin;
+	private double xmax;
+	private String splitField;
+	private double logBase;
+	private double[] edges;
+	private CollectMode collectMode;
+	private boolean profile;
+	private boolean cache;
+	private Double keyFrom;
+	private Double keyTo;
+	private int size;
+	private int shardSize;
 
 	public DecimalHistogramFacetBuilder(String name, String field, double interval, double offset, ComparatorType comparatorType) {
 		super(name);
@@ -22,16 +41,174 @@ public class DecimalHistogramFacetBuilder extends FacetBuilder {
 		System.out.println("builder constructor");
 	}
 
+	/**
+	 * Weights each value of the field with the values of the given field, or with the
+	 * score of the document if the field is "_score".
+	 */
+	public DecimalHistogramFacetBuilder valueField(String valueField) {
+		this.valueField = valueField;
+		return this;
+	}
+
+	/**
+	 * Keeps at most the given number of buckets, doubling their width, starting from the
+	 * interval, as often as needed.
+	 */
+	public DecimalHistogramFacetBuilder maxBins(int maxBins) {
+		this.maxBins = maxBins;
+		return this;
+	}
+
+	/**
+	 * Collects the histogram at the given base interval, of which the interval and offset
+	 * are multiples, so that the cached bins of each segment serve every such interval.
+	 */
+	public DecimalHistogramFacetBuilder baseInterval(double baseInterval) {
+		this.baseInterval = baseInterval;
+		return this;
+	}
+
+	/**
+	 * Uses the given number of bins between xmin and xmax instead of the interval and
+	 * offset.
+	 */
+	public DecimalHistogramFacetBuilder bins(int nbin, double xmin, double xmax) {
+		this.nbin = nbin;
+		this.xmin = xmin;
+		this.xmax = xmax;
+		return this;
+	}
+
+	/**
+	 * Uses bins between consecutive powers of the given base instead of the interval and
+	 * offset.
+	 */
+	public DecimalHistogramFacetBuilder logBase(double logBase) {
+		this.logBase = logBase;
+		return this;
+	}
+
+	/**
+	 * Uses bins between the given, increasing edges instead of the interval and offset.
+	 */
+	public DecimalHistogramFacetBuilder edges(double... edges) {
+		this.edges = edges;
+		return this;
+	}
+
+	/**
+	 * Computes one histogram per term of the given field; requires bins.
+	 */
+	public DecimalHistogramFacetBuilder splitField(String splitField) {
+		this.splitField = splitField;
+		return this;
+	}
+
+	public DecimalHistogramFacetBuilder collectMode(CollectMode collectMode) {
+		this.collectMode = collectMode;
+		return this;
+	}
+
+	/**
+	 * Only returns the bins that overlap [from, to); the others count as underflows and
+	 * overflows. Either bound may be null.
+	 */
+	public DecimalHistogramFacetBuilder keyRange(Double from, Double to) {
+		this.keyFrom = from;
+		this.keyTo = to;
+		return this;
+	}
+
+	/**
+	 * Only returns the given number of bins with the highest counts.
+	 */
+	public DecimalHistogramFacetBuilder size(int size) {
+		this.size = size;
+		return this;
+	}
+
+	/**
+	 * Number of bins with the highest counts that each shard returns; defaults to more
+	 * than the size if there are several shards.
+	 */
+	public DecimalHistogramFacetBuilder shardSize(int shardSize) {
+		this.shardSize = shardSize;
+		return this;
+	}
+
+	/**
+	 * Merges the cached histograms of unchanged segments, and caches the others.
+	 */
+	public DecimalHistogramFacetBuilder cache(boolean cache) {
+		this.cache = cache;
+		return this;
+	}
+
+	/**
+	 * Adds a profile of the execution to the result.
+	 */
+	public DecimalHistogramFacetBuilder profile(boolean profile) {
+		this.profile = profile;
+		return this;
+	}
+
 	@Override
 	public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
 		builder.startObject(name);
 		builder.startObject(DecimalHistogramFacet.TYPE);
 		builder.field("field", field);
-		builder.field("interval", interval);
-		builder.field("offset", offset);
+		if (valueField != null) {
+			builder.field("value_field", valueField);
+		}
+		if (splitField != null) {
+			builder.field("split_field", splitField);
+		}
+		if (logBase != 0.0) {
+			builder.field("log_base", logBase);
+		} else if (edges != null) {
+			builder.field("edges", edges);
+		} else if (nbin != 0) {
+			builder.field("nbin", nbin);
+			builder.field("xmin", xmin);
+			builder.field("xmax", xmax);
+		} else {
+			builder.field("interval", interval);
+			builder.field("offset", offset);
+			if (baseInterval != 0.0) {
+				builder.field("base_interval", baseInterval);
+			}
+		}
+		if (maxBins != 0) {
+			builder.field("max_bins", maxBins);
+		}
 		if (comparatorType != null) {
 			builder.field("order", comparatorType.description());
 		}
+		if (collectMode != null) {
+			builder.field("collect_mode", collectMode.name().toLowerCase(Locale.ROOT));
+		}
+		if (keyFrom != null || keyTo != null) {
+			builder.startObject("key_range");
+			if (keyFrom != null) {
+				builder.field("from", keyFrom);
+			}
+			if (keyTo != null) {
+				builder.field("to", keyTo);
+			}
+			builder.endObject();
+		}
+		if (size != 0) {
+			builder.field("size", size);
+		}
+		if (shardSize != 0) {
+			builder.field("shard_size", shardSize);
+		}
+		if (profile) {
+			builder.field("profile", true);
+		}
+		if (cache) {
+			builder.field("cache", true);
+		}
 		builder.endObject();
 		addFilterFacetAndGlobal(builder, params);
 		builder.endObject();
@@ -1,35 +1,91 @@
 package com.zenobase.search.facet.decimalhistogram;
 
 import java.io.IOException;
+import java.util.Arrays;
 
+import org.apache.lucene.index.AtomicReader;
 import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.common.lucene.search.Queries;
 import org.elasticsearch.common.recycler.Recycler;
+import org.elasticsearch.index.fielddata.FieldData;
 import org.elasticsearch.index.fielddata.IndexNumericFieldData;
+import org.elasticsearch.index.fielddata.NumericDoubleValues;
 import org.elasticsearch.index.fielddata.SortedNumericDoubleValues;
-import org.elasticsearch.search.facet.DoubleFacetAggregatorBase;
 import org.elasticsearch.search.facet.FacetExecutor;
 import org.elasticsearch.search.facet.InternalFacet;
+import org.elasticsearch.search.facet.SearchContextFacets;
 import org.elasticsearch.search.facet.histogram.HistogramFacet.ComparatorType;
 import org.elasticsearch.search.internal.SearchContext;
-import org.elasticsearch.common.hppc.LongObjectOpenHashMap;
 
-import com.zenobase.search.facet.decimalhistogram.InternalDecimalHistogramFacet.DecimalEntry;
+public class DecimalHistogramFacetExecutor extends FacetExecutor {
 
+	/**
+	 * How matching documents are handed to the histogram.
+	 */
+	public static enum CollectMode {
 
-public class DecimalHistogramFacetExecutor extends FacetExecutor {
+		/**
+		 * Each document is binned as soon as it is collected.
+		 */
+		DOC,
+
+		/**
+		 * Documents are buffered in fixed-size blocks, whose values are loaded and binned
+		 * in separate tight loops.
+		 */
+		BATCH;
+
+		public static CollectMode fromString(String mode) {
+			if ("doc".equals(mode)) {
+				return DOC;
+			} else if ("batch".equals(mode)) {
+				return BATCH;
+			}
+			throw new ElasticsearchIllegalArgumentException("unknown collect mode [" + mode + "]");
+		}
+	}
+
+	static final int BATCH_SIZE = 1024;
+
+	/**
+	 * Maximum number of buckets of a segment to count in a dense array in interval mode.
+	 */
+	static final int MAX_DENSE_BUCKETS = 1 << 16;
 
 	private final IndexNumericFieldData indexFieldData;
 	private final ComparatorType comparatorType;
 	private final double interval;
 	private final double offset;
+	/**
+	 * Interval and offset of the result, which differ from those values are binned at in
+	 * pyramid mode.
+	 */
+	private final double resultInterval;
+	private final double resultOffset;
+	/**
+	 * In pyramid mode, the number of bins collected at the base interval that make up a
+	 * bin of the result, and by how many of them the result is offset; 0 otherwise.
+	 */
+	private final long multiple;
+	private final long baseShift;
 	private final int nbins;
 	private final double xmin;
 	private final double xmax;
+	private final CollectMode collectMode;
+	private final SegmentHistogramCache cache;
+	private final BucketBudget budget;
+	private final SearchContext context;
 
-	final Recycler.V<LongObjectOpenHashMap<InternalDecimalHistogramFacet.DecimalEntry>> counts;
+	final Recycler.V<DecimalBucketMap> counts;
+	final FixedBins bins;
 
-
-	public DecimalHistogramFacetExecutor(IndexNumericFieldData indexFieldData, int nbin, double xmin, double xmax, ComparatorType comparatorType, SearchContext context) {
+
+	public DecimalHistogramFacetExecutor(IndexNumericFieldData indexFieldData, int nbin, double xmin, double xmax, ComparatorType comparatorType, CollectMode collectMode, SegmentHistogramCache cache, BucketBudget budget, SearchContext context) {
 		this.indexFieldData = indexFieldData;
 		this.nbins=nbin; //2 more will be added for underflow and overflow
 		this.xmax = xmax;
@@ -37,133 +93,676 @@ public class DecimalHistogramFacetExecutor extends FacetExecutor {
 		
 		this.interval = (xmax-xmin)/nbins;
 		this.offset = 0.;
+		this.resultInterval = interval;
+		this.resultOffset = offset;
+		this.multiple = 0;
+		this.baseShift = 0;
 		this.comparatorType = comparatorType;
-		this.counts = context.cacheRecycler().longObjectMap(-1);
+		this.collectMode = collectMode;
+		this.cache = cache;
+		this.budget = budget;
+		this.context = context;
+		this.counts = null;
+		budget.charge(FixedBins.bytes(nbin, false));
+		this.bins = new FixedBins(budget.bigArrays, nbin, xmin, xmax);
 	}
 	
-	public DecimalHistogramFacetExecutor(IndexNumericFieldData indexFieldData, double interval, double offset, ComparatorType comparatorType, SearchContext context) {
+	public DecimalHistogramFacetExecutor(IndexNumericFieldData indexFieldData, double interval, double offset, ComparatorType comparatorType, CollectMode collectMode, SegmentHistogramCache cache, BucketBudget budget, SearchContext context) {
+		this(indexFieldData, interval, offset, 0.0, comparatorType, collectMode, cache, budget, context);
+	}
+
+	/**
+	 * Creates a histogram in pyramid mode, unless the base interval is 0. The interval and
+	 * offset are then multiples of the base interval, and the values of each segment are
+	 * binned at the base interval, without offset, and merged into the bins of the result.
+	 * Histograms of any such interval and offset share the cached bins of a segment, to
+	 * which the cache adds coarser levels to merge from.
+	 */
+	public DecimalHistogramFacetExecutor(IndexNumericFieldData indexFieldData, double interval, double offset, double baseInterval, ComparatorType comparatorType, CollectMode collectMode, SegmentHistogramCache cache, BucketBudget budget, SearchContext context) {
 		this.indexFieldData = indexFieldData;
 		this.nbins = 0;
 		this.xmin=1.;
 		this.xmax=-1.; //signal automatic binning
-		this.interval = interval;
-		this.offset = offset;
+		this.resultInterval = interval;
+		this.resultOffset = offset;
+		if (baseInterval != 0.0) {
+			this.interval = baseInterval;
+			this.offset = 0.0;
+			this.multiple = Math.round(interval / baseInterval);
+			this.baseShift = Math.round(offset / baseInterval);
+		} else {
+			this.interval = interval;
+			this.offset = offset;
+			this.multiple = 0;
+			this.baseShift = 0;
+		}
 		this.comparatorType = comparatorType;
-		this.counts = context.cacheRecycler().longObjectMap(-1);
+		this.collectMode = collectMode;
+		this.cache = cache;
+		this.budget = budget;
+		this.context = context;
+		this.counts = DecimalBucketMap.obtain(budget);
+		this.bins = null;
 	}
 
 	@Override
 	public FacetExecutor.Collector collector() {
-		return new Collector();
+		if (collectMode == CollectMode.BATCH) {
+			if (nbins == 0) {
+				return new BatchIntervalCollector();
+			}
+			return new BatchFixedBinsCollector();
+		}
+		if (nbins == 0) {
+			return new IntervalCollector();
+		}
+		return new FixedBinsCollector();
 	}
 
 	@Override
 	public InternalFacet buildFacet(String facetName) {
-		InternalDecimalHistogramFacet.DecimalEntry[] entries = new InternalDecimalHistogramFacet.DecimalEntry[counts.v().size()];
-		final boolean[] states = counts.v().allocated;
-		final long[] keys = counts.v().keys;
-		final Object[] values = counts.v().values;
-		int entryIndex = 0;
-		for (int i = 0; i < states.length; ++i) {
-			if (states[i]) {
-				InternalDecimalHistogramFacet.DecimalEntry value = (InternalDecimalHistogramFacet.DecimalEntry)values[i];
-				entries[entryIndex++] = new InternalDecimalHistogramFacet.DecimalEntry(keys[i], value.getCount(), 
-						value.getBinContent(), value.getSumOfSquares());
-			}
+		if (nbins != 0) {
+			InternalDecimalHistogramFacet facet = new InternalDecimalHistogramFacet(facetName, bins, comparatorType);
+			bins.close();
+			facet.memory = budget.peak();
+			return facet;
 		}
+		InternalDecimalHistogramFacet facet = new InternalDecimalHistogramFacet(facetName, resultInterval, resultOffset, comparatorType, counts.v());
 		counts.close();
-		if(nbins==0)
-			return new InternalDecimalHistogramFacet(facetName, interval, offset, comparatorType, entries);
-		else
-			return new InternalDecimalHistogramFacet(facetName, nbins, xmin, xmax, comparatorType, entries);
+		facet.memory = budget.peak();
+		return facet;
+	}
 
-	}		
+	/**
+	 * Returns the facet entry of the given executor in the given search, or null if it is
+	 * not executed directly, e.g. because it is nested. The entry holds the executor that
+	 * the parser returned, which may wrap the given one.
+	 */
+	static SearchContextFacets.Entry entry(SearchContext context, FacetExecutor executor) {
+		SearchContextFacets facets = context.facets();
+		if (facets == null) {
+			return null;
+		}
+		for (SearchContextFacets.Entry entry : facets.entries()) {
+			if (unwrap(entry.getFacetExecutor()) == executor) {
+				return entry;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the executor that does the collecting for the given one, which may measure
+	 * or prune it.
+	 */
+	static FacetExecutor unwrap(FacetExecutor executor) {
+		while (true) {
+			if (executor instanceof ProfiledFacetExecutor) {
+				executor = ((ProfiledFacetExecutor) executor).executor();
+			} else if (executor instanceof PrunedFacetExecutor) {
+				executor = ((PrunedFacetExecutor) executor).executor();
+			} else {
+				return executor;
+			}
+		}
+	}
 
-	private class Collector extends FacetExecutor.Collector {
+	/**
+	 * Returns true if this facet is known to collect all live documents of every segment,
+	 * and all of them are certain to be collected.
+	 */
+	private boolean matchesAllDocuments() {
+		if (context == null || context.minimumScore() != null || context.timeoutInMillis() >= 0
+				|| context.terminateAfter() != SearchContext.DEFAULT_TERMINATE_AFTER) {
+			return false;
+		}
+		SearchContextFacets.Entry entry = entry(context, this);
+		if (entry == null || entry.getFilter() != null) {
+			return false;
+		}
+		if (entry.isGlobal()) {
+			return context.searchFilter(context.types()) == null;
+		}
+		return context.query() instanceof MatchAllDocsQuery || Queries.isConstantMatchAllQuery(context.query());
+	}
 
-		private final HistogramProc histoProc;
-		private SortedNumericDoubleValues values;
+	/**
+	 * Returns the key of the bucket of the given value. Dividing by the interval rounds
+	 * values on a bucket edge the same way as scripts and stored bins, where multiplying
+	 * by its inverse could move them into the next bucket.
+	 */
+	private long key(double value) {
+		return (long) Math.floor((value + offset) / interval);
+	}
 
-		public Collector() {
-			if(nbins==0)
-				this.histoProc = new HistogramProc(interval, offset, counts.v());
-			else
-				this.histoProc = new HistogramProc(nbins,xmin,xmax, counts.v());
+	/**
+	 * Returns what identifies the partial histograms of this facet in the segment cache,
+	 * or null if they are not cached.
+	 */
+	private Object cacheRequest() {
+		Object documents = cache != null ? cache.identify(context, this) : null;
+		if (documents == null) {
+			return null;
 		}
+		return Arrays.asList(indexFieldData.getFieldNames().indexName(), nbins, xmin, xmax, interval, offset, documents);
+	}
+
+	/**
+	 * Switches to the plain numeric values of a segment when its field is single-valued,
+	 * so that collecting does not have to go through setDocument() and count().
+	 *
+	 * If the segment cache applies, a segment that is in the cache is merged right away
+	 * and its documents are skipped. Any other segment is collected into bins of its own,
+	 * which are merged and cached once the segment is complete. In pyramid mode, every
+	 * segment is collected into bins of its own, as they are binned at the base interval.
+	 *
+	 * The range of the values of a segment is looked up in its terms. If all values fall
+	 * into the same bin, only their number is counted, or taken from the number of live
+	 * documents if every document is collected and has exactly one value. Otherwise, in
+	 * interval mode, a narrow range of buckets is counted in a dense array.
+	 */
+	private abstract class Collector extends FacetExecutor.Collector {
+
+		protected SortedNumericDoubleValues values;
+		protected NumericDoubleValues singleValues;
+		protected Bits docsWithField;
+		protected DecimalBucketMap counts = DecimalHistogramFacetExecutor.this.counts != null ? DecimalHistogramFacetExecutor.this.counts.v() : null;
+		protected FixedBins bins = DecimalHistogramFacetExecutor.this.bins;
+		/**
+		 * Whether the documents of the current segment have been accounted for already.
+		 */
+		protected boolean skip;
+		/**
+		 * Whether all values of the current segment fall into the bin {@link #singleKey}.
+		 */
+		protected boolean single;
+		protected long singleKey;
+		protected long singleCount;
+		/**
+		 * Counts of the {@link #denseSize} buckets from {@link #denseBase} on, unless the
+		 * size is zero.
+		 */
+		protected long[] dense;
+		protected long denseBase;
+		protected int denseSize;
+
+		private final Object cacheRequest = cacheRequest();
+		private final boolean matchesAll = matchesAllDocuments();
+		private AtomicReader segment;
+		private SegmentHistogramCache.Key segmentKey;
+		private Recycler.V<DecimalBucketMap> segmentCounts;
+		private FixedBins segmentBins;
 
 		@Override
 		public void setNextReader(AtomicReaderContext context) throws IOException {
+			flushSegment();
+			endSegment(true);
+			if ((cacheRequest != null || multiple != 0) && beginSegment(context.reader())) {
+				skip = true;
+				return;
+			}
+			skip = false;
 			values = indexFieldData.load(context).getDoubleValues();
+			singleValues = FieldData.unwrapSingleton(values);
+			docsWithField = singleValues != null ? FieldData.unwrapSingletonBits(values) : null;
+			if (docsWithField instanceof Bits.MatchAllBits) {
+				docsWithField = null;
+			}
+			SegmentRange range = SegmentRange.of(context.reader(), indexFieldData.getFieldNames().indexName(), indexFieldData.getNumericType());
+			if (range != null) {
+				narrow(range, context.reader());
+			}
 		}
 
 		@Override
-		public void collect(int doc) throws IOException {
-			histoProc.onDoc(doc, values);
+		public void postCollection() {
+			flushSegment();
+			if (segment != null) {
+				endSegment(!context.queryResult().searchTimedOut());
+			}
+			if (segmentBins != null) {
+				segmentBins.close();
+				segmentBins = null;
+			}
 		}
 
-		@Override
-		public void postCollection() {
+		private void narrow(SegmentRange range, AtomicReader reader) {
+			if (nbins != 0) {
+				int low = bins.slot(range.min);
+				if (low == bins.slot(range.max)) {
+					single(low, reader);
+				}
+				return;
+			}
+			if (Double.isInfinite(range.min) || Double.isInfinite(range.max)) {
+				return;
+			}
+			long low = key(range.min);
+			long high = key(range.max);
+			if (low == high) {
+				single(low, reader);
+			} else if (high - low < Math.min(MAX_DENSE_BUCKETS, reader.maxDoc())) {
+				denseSize = (int) (high - low + 1);
+				if (dense == null || dense.length < denseSize) {
+					int length = ArrayUtil.oversize(denseSize, RamUsageEstimator.NUM_BYTES_LONG);
+					budget.charge(length * (long) RamUsageEstimator.NUM_BYTES_LONG);
+					if (dense != null) {
+						budget.release(dense.length * (long) RamUsageEstimator.NUM_BYTES_LONG);
+					}
+					dense = new long[length];
+				}
+				denseBase = low;
+			}
+		}
 
+		private void single(long key, AtomicReader reader) {
+			if (matchesAll && singleValues != null && docsWithField == null) {
+				singleCount = reader.numDocs();
+				skip = true;
+			}
+			single = true;
+			singleKey = key;
 		}
-	}
 
-	private static class HistogramProc extends DoubleFacetAggregatorBase {
+		/**
+		 * Returns the number of values of the given document.
+		 */
+		protected final int count(int doc) {
+			if (singleValues != null) {
+				return docsWithField == null || docsWithField.get(doc) ? 1 : 0;
+			}
+			values.setDocument(doc);
+			return values.count();
+		}
 
-		private final double interval;
-		private final double offset;
-		private final int nbins;
-		private final double xmin;
-		private final double xmax;
-		private final LongObjectOpenHashMap<DecimalEntry> counts;
+		/**
+		 * Adds what has been counted for the current segment in bulk.
+		 */
+		private void flushSegment() {
+			if (single) {
+				if (singleCount != 0) {
+					if (nbins == 0) {
+						counts.add(singleKey, singleCount, singleCount, singleCount);
+					} else {
+						bins.add((int) singleKey, singleCount, singleCount, singleCount);
+					}
+				}
+				single = false;
+				singleCount = 0;
+			}
+			if (denseSize != 0) {
+				for (int i = 0; i < denseSize; ++i) {
+					long count = dense[i];
+					if (count != 0) {
+						counts.add(denseBase + i, count, count, count);
+						dense[i] = 0;
+					}
+				}
+				denseSize = 0;
+			}
+		}
 
-		public HistogramProc(double interval, double offset, LongObjectOpenHashMap<DecimalEntry> counts) {
-			this.interval = interval;
-			this.offset = offset;
-			this.nbins = 0;
-			this.xmin=1.;
-			this.xmax=-1.;
-			this.counts = counts;
+		/**
+		 * Merges the cached bins of the given segment and returns true, or else starts
+		 * collecting it into bins of its own.
+		 */
+		private boolean beginSegment(AtomicReader reader) {
+			SegmentHistogramCache.Key key = cacheRequest != null ? cache.key(reader, cacheRequest) : null;
+			SegmentHistogramCache.Bins cachedBins = key != null ? cache.get(key) : null;
+			if (cachedBins != null) {
+				merge(cachedBins);
+				return true;
+			}
+			segment = reader;
+			segmentKey = key;
+			if (nbins == 0) {
+				segmentCounts = DecimalBucketMap.obtain(budget);
+				counts = segmentCounts.v();
+			} else {
+				if (segmentBins == null) {
+					budget.charge(FixedBins.bytes(nbins, false));
+					segmentBins = new FixedBins(budget.bigArrays, nbins, xmin, xmax);
+				}
+				bins = segmentBins;
+			}
+			return false;
 		}
 
-		public HistogramProc(int nbins, double xmin, double xmax, LongObjectOpenHashMap<DecimalEntry> counts) {
-			this.interval = (xmax-xmin)/nbins;
-			this.xmax=xmax;
-			this.xmin=xmin;
-			this.nbins=nbins;
-			this.offset = 0.;
-			this.counts = counts;
+		/**
+		 * Merges the bins of the segment collected last, if it has bins of its own, and
+		 * caches them if the segment has been collected completely.
+		 */
+		private void endSegment(boolean complete) {
+			if (segment == null) {
+				return;
+			}
+			SegmentHistogramCache.Bins segmentBins = nbins == 0 ? toBins(counts) : toBins(bins);
+			counts = DecimalHistogramFacetExecutor.this.counts != null ? DecimalHistogramFacetExecutor.this.counts.v() : null;
+			bins = DecimalHistogramFacetExecutor.this.bins;
+			boolean cached = complete && segmentKey != null;
+			if (cached && multiple != 0) {
+				segmentBins.addLevels();
+			}
+			merge(segmentBins);
+			if (cached) {
+				cache.put(segment, segmentKey, segmentBins);
+			}
+			if (segmentCounts != null) {
+				segmentCounts.close();
+				segmentCounts = null;
+			} else {
+				this.segmentBins.clear();
+			}
+			segment = null;
+			segmentKey = null;
 		}
-		
+
+		private void merge(SegmentHistogramCache.Bins segmentBins) {
+			if (multiple != 0) {
+				mergeRebinned(segmentBins);
+				return;
+			}
+			long[] keys = segmentBins.keys;
+			long[] counts = segmentBins.counts;
+			for (int i = 0; i < keys.length; ++i) {
+				if (nbins == 0) {
+					this.counts.add(keys[i], counts[i], counts[i], counts[i]);
+				} else {
+					this.bins.add((int) keys[i], counts[i], counts[i], counts[i]);
+				}
+			}
+		}
+
+		/**
+		 * Merges the bins of a segment into the bins of the result from the coarsest of
+		 * its levels whose bins fall entirely within them. The key of a result bin is the
+		 * base key plus the base shift, divided by the multiple and rounded down, which is
+		 * the same when both are scaled down by the width of the level.
+		 */
+		private void mergeRebinned(SegmentHistogramCache.Bins segmentBins) {
+			int maxShift = Long.numberOfTrailingZeros(multiple | baseShift);
+			SegmentHistogramCache.Bins level = segmentBins;
+			while (level.coarser != null && level.coarser.shift <= maxShift) {
+				level = level.coarser;
+			}
+			long multiple = DecimalHistogramFacetExecutor.this.multiple >> level.shift;
+			long shift = baseShift >> level.shift;
+			long[] keys = level.keys;
+			long[] counts = level.counts;
+			for (int i = 0; i < keys.length; ++i) {
+				long key = keys[i] + shift;
+				long bucket = key / multiple;
+				if (key % multiple < 0) {
+					bucket--;
+				}
+				this.counts.add(bucket, counts[i], counts[i], counts[i]);
+			}
+		}
+	}
+
+	private static SegmentHistogramCache.Bins toBins(DecimalBucketMap counts) {
+		long[] keys = new long[counts.size()];
+		long[] values = new long[counts.size()];
+		int n = 0;
+		for (int slot = 0; slot < counts.capacity(); ++slot) {
+			long count = counts.count(slot);
+			if (count != 0) {
+				keys[n] = counts.key(slot);
+				values[n++] = count;
+			}
+		}
+		return new SegmentHistogramCache.Bins(keys, values);
+	}
+
+	private static SegmentHistogramCache.Bins toBins(FixedBins bins) {
+		int size = 0;
+		for (int slot = 0; slot < bins.nbins + 2; ++slot) {
+			if (bins.count(slot) != 0) {
+				size++;
+			}
+		}
+		long[] keys = new long[size];
+		long[] values = new long[size];
+		int n = 0;
+		for (int slot = 0; slot < bins.nbins + 2; ++slot) {
+			long count = bins.count(slot);
+			if (count != 0) {
+				keys[n] = slot;
+				values[n++] = count;
+			}
+		}
+		return new SegmentHistogramCache.Bins(keys, values);
+	}
+
+	/**
+	 * Values of a document are sorted, so consecutive values that fall into the same
+	 * bucket are added in one step.
+	 */
+	private final class IntervalCollector extends Collector {
+
 		@Override
-		public void onValue(int docId, double value) {
-			if(nbins==0){
-				long bucket = (long) Math.floor(((value + offset) / interval));
-				DecimalEntry entry = counts.get(bucket);
-				if (entry == null) {
-					entry = new InternalDecimalHistogramFacet.DecimalEntry(bucket,1,1., 1.);
-					counts.put(bucket, entry);
+		public void collect(int doc) throws IOException {
+			if (skip) {
+				return;
+			}
+			if (single) {
+				singleCount += count(doc);
+				return;
+			}
+			if (singleValues != null) {
+				double value = singleValues.get(doc);
+				if (value != 0.0 || docsWithField == null || docsWithField.get(doc)) {
+					long key = key(value);
+					if (denseSize != 0) {
+						dense[(int) (key - denseBase)]++;
+					} else {
+						counts.increment(key);
+					}
+				}
+				return;
+			}
+			values.setDocument(doc);
+			int count = values.count();
+			if (count == 0) {
+				return;
+			}
+			long current = key(values.valueAt(0));
+			long run = 1;
+			for (int i = 1; i < count; ++i) {
+				long bucket = key(values.valueAt(i));
+				if (bucket == current) {
+					run++;
 				} else {
-					entry.count++;
-					entry.binContent += 1.0;
-					entry.sumOfSquares += 1.0;
+					add(current, run);
+					current = bucket;
+					run = 1;
 				}
 			}
-			else{
-				long bucket = 0;
-				if(value>xmax) bucket = Integer.MAX_VALUE;
-				else if(value<xmin) bucket = Integer.MIN_VALUE;
-				else bucket = (long) Math.floor(((value - xmin) / interval));
-				
-				DecimalEntry entry = counts.get(bucket);
-				if (entry == null) {
-					entry = new InternalDecimalHistogramFacet.DecimalEntry(bucket,1,1.,1.);
-					counts.put(bucket, entry);
+			add(current, run);
+		}
+
+		private void add(long key, long run) {
+			if (denseSize != 0) {
+				dense[(int) (key - denseBase)] += run;
+			} else {
+				counts.add(key, run, run, run);
+			}
+		}
+	}
+
+	private final class FixedBinsCollector extends Collector {
+
+		@Override
+		public void collect(int doc) throws IOException {
+			if (skip) {
+				return;
+			}
+			if (single) {
+				singleCount += count(doc);
+				return;
+			}
+			if (singleValues != null) {
+				double value = singleValues.get(doc);
+				if (value != 0.0 || docsWithField == null || docsWithField.get(doc)) {
+					bins.increment(bins.slot(value));
+				}
+				return;
+			}
+			values.setDocument(doc);
+			int count = values.count();
+			if (count == 0) {
+				return;
+			}
+			int current = bins.slot(values.valueAt(0));
+			long run = 1;
+			for (int i = 1; i < count; ++i) {
+				int slot = bins.slot(values.valueAt(i));
+				if (slot == current) {
+					run++;
 				} else {
-					entry.count++;
-					entry.binContent += 1.0;
-					entry.sumOfSquares += 1.0;
+					bins.add(current, run, run, run);
+					current = slot;
+					run = 1;
+				}
+			}
+			bins.add(current, run, run, run);
+		}
+	}
+
+	/**
+	 * Buffers the matching documents of a segment into blocks of {@link #BATCH_SIZE}.
+	 * A full block is processed in two passes: first its values are loaded, then they
+	 * are binned. Pending documents are flushed before switching segments and at the end
+	 * of collection.
+	 */
+	private abstract class BatchCollector extends Collector {
+
+		private final int[] docs = new int[BATCH_SIZE];
+		private int pending;
+		protected double[] buffer = new double[BATCH_SIZE];
+
+		@Override
+		public void setNextReader(AtomicReaderContext context) throws IOException {
+			flush();
+			super.setNextReader(context);
+		}
+
+		@Override
+		public void collect(int doc) throws IOException {
+			if (skip) {
+				return;
+			}
+			if (single) {
+				singleCount += count(doc);
+				return;
+			}
+			docs[pending++] = doc;
+			if (pending == BATCH_SIZE) {
+				flush();
+			}
+		}
+
+		@Override
+		public void postCollection() {
+			flush();
+			super.postCollection();
+		}
+
+		private void flush() {
+			if (pending != 0) {
+				int n = load();
+				pending = 0;
+				accumulate(n);
+			}
+		}
+
+		private int load() {
+			final int[] docs = this.docs;
+			final int pending = this.pending;
+			if (singleValues != null) {
+				final double[] buffer = this.buffer;
+				if (docsWithField == null) {
+					for (int i = 0; i < pending; ++i) {
+						buffer[i] = singleValues.get(docs[i]);
+					}
+					return pending;
+				}
+				int n = 0;
+				for (int i = 0; i < pending; ++i) {
+					double value = singleValues.get(docs[i]);
+					if (value != 0.0 || docsWithField.get(docs[i])) {
+						buffer[n++] = value;
+					}
 				}
+				return n;
 			}
+			int n = 0;
+			for (int i = 0; i < pending; ++i) {
+				values.setDocument(docs[i]);
+				int count = values.count();
+				buffer = ArrayUtil.grow(buffer, n + count);
+				for (int j = 0; j < count; ++j) {
+					buffer[n++] = values.valueAt(j);
+				}
 			}
+			return n;
+		}
+
+		/**
+		 * Bins the first n values of the buffer.
+		 */
+		protected abstract void accumulate(int n);
+	}
+
+	private final class BatchIntervalCollector extends BatchCollector {
+
+		private long[] keys = new long[BATCH_SIZE];
+
+		@Override
+		protected void accumulate(int n) {
+			if (keys.length < n) {
+				keys = new long[buffer.length];
+			}
+			final double[] buffer = this.buffer;
+			final long[] keys = this.keys;
+			final double offset = DecimalHistogramFacetExecutor.this.offset;
+			final double interval = DecimalHistogramFacetExecutor.this.interval;
+			for (int i = 0; i < n; ++i) {
+				keys[i] = (long) Math.floor((buffer[i] + offset) / interval);
+			}
+			if (denseSize != 0) {
+				final long[] dense = this.dense;
+				final long denseBase = this.denseBase;
+				for (int i = 0; i < n; ++i) {
+					dense[(int) (keys[i] - denseBase)]++;
+				}
+				return;
+			}
+			final DecimalBucketMap counts = this.counts;
+			for (int i = 0; i < n; ++i) {
+				counts.increment(keys[i]);
+			}
+		}
+	}
+
+	private final class BatchFixedBinsCollector extends BatchCollector {
+
+		private int[] slots = new int[BATCH_SIZE];
+
+		@Override
+		protected void accumulate(int n) {
+			if (slots.length < n) {
+				slots = new int[buffer.length];
+			}
+			final double[] buffer = this.buffer;
+			final int[] slots = this.slots;
+			final FixedBins bins = this.bins;
+			for (int i = 0; i < n; ++i) {
+				slots[i] = bins.slot(buffer[i]);
+			}
+			for (int i = 0; i < n; ++i) {
+				bins.increment(slots[i]);
+			}
+		}
 	}
 }
@@ -0,0 +1,14 @@
+package com.zenobase.search.facet.decimalhistogram;
+
+import org.elasticsearch.common.inject.AbstractModule;
+
+public class DecimalHistogramFacetModule extends AbstractModule {
+
+	@Override
+	protected void configure() {
+		bind(SegmentHistogramCache.class).asEagerSingleton();
+		bind(ParallelReduceService.class).asEagerSingleton();
+		bind(BucketBudgetService.class).asEagerSingleton();
+		bind(FacetMetrics.class).asEagerSingleton();
+	}
+}
@@ -1,16 +1,21 @@
 package com.zenobase.search.facet.decimalhistogram;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 import org.elasticsearch.common.component.AbstractComponent;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.xcontent.XContentParser;
-import org.elasticsearch.index.fielddata.AtomicNumericFieldData;
+import org.elasticsearch.index.fielddata.IndexFieldData;
 import org.elasticsearch.index.fielddata.IndexNumericFieldData;
+import org.elasticsearch.index.fielddata.IndexOrdinalsFieldData;
 import org.elasticsearch.index.mapper.FieldMapper;
+import org.elasticsearch.index.mapper.FieldMapperListener;
 import org.elasticsearch.script.ScriptService;
+import org.elasticsearch.search.aggregations.bucket.BucketUtils;
 import org.elasticsearch.search.facet.FacetExecutor;
 import org.elasticsearch.search.facet.FacetExecutor.Mode;
 import org.elasticsearch.search.facet.FacetParser;
@@ -20,12 +25,20 @@ import org.elasticsearch.search.facet.histogram.HistogramFacet.ComparatorType;
 import org.elasticsearch.search.internal.SearchContext;
 
 import com.zenobase.search.facet.decimalhistogram.DecimalHistogramFacet;
+import com.zenobase.search.facet.decimalhistogram.DecimalHistogramFacetExecutor.CollectMode;
 
 public class DecimalHistogramFacetParser extends AbstractComponent implements FacetParser {
 
+	private final SegmentHistogramCache cache;
+	private final BucketBudgetService budgets;
+	private final FacetMetrics metrics;
+
 	@Inject
-	public DecimalHistogramFacetParser(Settings settings) {
+	public DecimalHistogramFacetParser(Settings settings, SegmentHistogramCache cache, BucketBudgetService budgets, FacetMetrics metrics) {
 		super(settings);
+		this.cache = cache;
+		this.budgets = budgets;
+		this.metrics = metrics;
 		InternalDecimalHistogramFacet.registerStreams();
 	}
 
@@ -59,10 +72,23 @@ public class DecimalHistogramFacetParser extends AbstractComponent implements Fa
         
 		double interval = 0.0;
 		double offset = 0.0;
+		double baseInterval = 0.0;
 		int nbin = 0;
+		int maxBins = 0;
+		int maxBuckets = budgets.defaultMaxBuckets();
+		String splitField = null;
+		double logBase = 0.0;
+		double[] edges = null;
 		double xmin = 1.;
 		double xmax = -1.;
 		ComparatorType comparatorType = ComparatorType.KEY;
+		CollectMode collectMode = CollectMode.DOC;
+		boolean profile = false;
+		boolean useCache = false;
+		double keyFrom = Double.NEGATIVE_INFINITY;
+		double keyTo = Double.POSITIVE_INFINITY;
+		int size = 0;
+		int shardSize = 0;
  
 		
 		String currentName = parser.currentName();
@@ -73,14 +99,44 @@ public class DecimalHistogramFacetParser extends AbstractComponent implements Fa
 			} else if (token == XContentParser.Token.START_OBJECT) {
                 if ("params".equals(currentName)) {
                     params = parser.map();
+                } else if ("key_range".equals(currentName) || "keyRange".equals(currentName)) {
+					String rangeName = null;
+					while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+						if (token == XContentParser.Token.FIELD_NAME) {
+							rangeName = parser.currentName();
+						} else if ("from".equals(rangeName)) {
+							keyFrom = parser.doubleValue();
+						} else if ("to".equals(rangeName)) {
+							keyTo = parser.doubleValue();
+						}
+					}
                 }
+            } else if (token == XContentParser.Token.START_ARRAY) {
+				if ("edges".equals(currentName)) {
+					List<Double> values = new ArrayList<>();
+					while ((token = parser.nextToken()) != XContentParser.Token.END_ARRAY) {
+						values.add(parser.doubleValue());
+					}
+					edges = new double[values.size()];
+					for (int i = 0; i < edges.length; ++i) {
+						edges[i] = values.get(i);
+					}
+				}
             } else if (token.isValue()) {
 				if ("field".equals(currentName)) {
 					field = parser.text();
 				} else if ("interval".equals(currentName)) {
 					interval = parser.doubleValue();
+				} else if ("base_interval".equals(currentName) || "baseInterval".equals(currentName)) {
+					baseInterval = parser.doubleValue();
 				} else if ("nbin".equals(currentName)) {
 					nbin = parser.intValue();
+				} else if ("log_base".equals(currentName) || "logBase".equals(currentName)) {
+					logBase = parser.doubleValue();
+				} else if ("max_bins".equals(currentName) || "maxBins".equals(currentName)) {
+					maxBins = parser.intValue();
+				} else if ("max_buckets".equals(currentName) || "maxBuckets".equals(currentName)) {
+					maxBuckets = parser.intValue();
 				} else if ("xmin".equals(currentName)) {
 					xmin = parser.doubleValue();
 				} else if ("xmax".equals(currentName)) {
@@ -89,6 +145,8 @@ public class DecimalHistogramFacetParser extends AbstractComponent implements Fa
                     field = parser.text();
                 } else if ("value_field".equals(currentName) || "valueField".equals(currentName)) {
                     value = parser.text();
+                } else if ("split_field".equals(currentName) || "splitField".equals(currentName)) {
+                    splitField = parser.text();
                 } else if ("key_script".equals(currentName) || "keyScript".equals(currentName)) {
                     keyScript = parser.text();
                 } else if ("value_script".equals(currentName) || "valueScript".equals(currentName)) {
@@ -97,17 +155,109 @@ public class DecimalHistogramFacetParser extends AbstractComponent implements Fa
 					offset = parser.doubleValue();
 				} else if ("order".equals(currentName) || "comparator".equals(currentName)) {
 					comparatorType = ComparatorType.fromString(parser.text());
+				} else if ("collect_mode".equals(currentName) || "collectMode".equals(currentName)) {
+					collectMode = CollectMode.fromString(parser.text());
+				} else if ("profile".equals(currentName)) {
+					profile = parser.booleanValue();
+				} else if ("cache".equals(currentName)) {
+					useCache = parser.booleanValue();
+				} else if ("size".equals(currentName)) {
+					size = parser.intValue();
+				} else if ("shard_size".equals(currentName) || "shardSize".equals(currentName)) {
+					shardSize = parser.intValue();
 				} else if ("lang".equals(currentName)) {
                     scriptLang = parser.text();
                 }
 			}
 		}
 
+		if (nbin < 0) {
+			throw new FacetPhaseExecutionException(facetName, "[nbin] must not be negative");
+		}
+		if (nbin > 0 && !(xmax > xmin)) {
+			throw new FacetPhaseExecutionException(facetName, "[xmax] must be greater than [xmin]");
+		}
+		if (maxBuckets < 0) {
+			throw new FacetPhaseExecutionException(facetName, "[max_buckets] must not be negative");
+		}
+		if (size < 0 || shardSize < 0) {
+			throw new FacetPhaseExecutionException(facetName, "[size] and [shard_size] must not be negative");
+		}
+		if (Double.isNaN(keyFrom) || Double.isNaN(keyTo) || !(keyTo > keyFrom)) {
+			throw new FacetPhaseExecutionException(facetName, "[key_range] must end above where it starts");
+		}
+		if (maxBins != 0 && (size != 0 || keyFrom != Double.NEGATIVE_INFINITY || keyTo != Double.POSITIVE_INFINITY)) {
+			throw new FacetPhaseExecutionException(facetName, "[size] and [key_range] cannot be combined with [max_bins]");
+		}
+		if (baseInterval != 0.0) {
+			if (!(baseInterval > 0.0) || Double.isInfinite(baseInterval)) {
+				throw new FacetPhaseExecutionException(facetName, "[base_interval] must be greater than 0.0");
+			}
+			if (nbin != 0 || maxBins != 0 || logBase != 0.0 || edges != null || keyScript != null || value != null || splitField != null) {
+				throw new FacetPhaseExecutionException(facetName, "[base_interval] cannot be combined with [nbin], [max_bins], [log_base], [edges], scripts, [value_field] or [split_field]");
+			}
+			if (!isMultiple(interval, baseInterval) || Math.round(interval / baseInterval) < 1) {
+				throw new FacetPhaseExecutionException(facetName, "[interval] must be a multiple of [base_interval]");
+			}
+			if (!isMultiple(offset, baseInterval)) {
+				throw new FacetPhaseExecutionException(facetName, "[offset] must be a multiple of [base_interval]");
+			}
+		}
+		if (size != 0) {
+			shardSize = Math.max(size, shardSize != 0 ? shardSize : BucketUtils.suggestShardSideQueueSize(size, context.numberOfShards()));
+		}
+		int bins = Math.max(Math.max(nbin, maxBins), edges != null ? edges.length - 1 : 0);
+		if (maxBuckets > 0 && bins > maxBuckets) {
+			throw new FacetPhaseExecutionException(facetName, "[nbin], [max_bins] or [edges] ask for more than [max_buckets] (" + maxBuckets + ") buckets");
+		}
+		BucketBudget budget = budgets.budget(maxBuckets, context);
+		if (logBase != 0.0 || edges != null) {
+			if (logBase != 0.0 && edges != null) {
+				throw new FacetPhaseExecutionException(facetName, "[log_base] and [edges] cannot be combined");
+			}
+			if (nbin != 0 || maxBins != 0 || keyScript != null || value != null || splitField != null) {
+				throw new FacetPhaseExecutionException(facetName, "[log_base] and [edges] cannot be combined with [nbin], [max_bins], scripts, [value_field] or [split_field]");
+			}
+			if (field == null) {
+				throw new FacetPhaseExecutionException(facetName, "[field] is required for decimal histogram facet");
+			}
+			if (edges == null) {
+				if (!(logBase > 1.0) || Double.isInfinite(logBase)) {
+					throw new FacetPhaseExecutionException(facetName, "[log_base] must be greater than 1.0");
+				}
+				return executor(new VariableDecimalHistogramFacetExecutor(fieldData(facetName, field, context), logBase, comparatorType, budget), keyFrom, keyTo, size, shardSize, profile);
+			}
+			if (edges.length < 2) {
+				throw new FacetPhaseExecutionException(facetName, "[edges] must list at least two edges");
+			}
+			for (int i = 0; i < edges.length; ++i) {
+				if (Double.isNaN(edges[i]) || Double.isInfinite(edges[i]) || (i > 0 && !(edges[i] > edges[i - 1]))) {
+					throw new FacetPhaseExecutionException(facetName, "[edges] must be finite and strictly increasing");
+				}
+			}
+			return executor(new VariableDecimalHistogramFacetExecutor(fieldData(facetName, field, context), edges, comparatorType, budget), keyFrom, keyTo, size, shardSize, profile);
+		}
+		if (maxBins != 0) {
+			if (maxBins < 2) {
+				throw new FacetPhaseExecutionException(facetName, "[max_bins] must be at least 2");
+			}
+			if (nbin != 0 || keyScript != null || value != null || splitField != null) {
+				throw new FacetPhaseExecutionException(facetName, "[max_bins] cannot be combined with [nbin], scripts, [value_field] or [split_field]");
+			}
+			if (field == null) {
+				throw new FacetPhaseExecutionException(facetName, "[field] is required for decimal histogram facet");
+			}
+			if (interval < 0.0) {
+				throw new FacetPhaseExecutionException(facetName, "[interval] must be greater than 0.0");
+			}
+			return executor(new AdaptiveDecimalHistogramFacetExecutor(fieldData(facetName, field, context), maxBins,
+				interval > 0.0 ? interval : AdaptiveDecimalHistogramFacetExecutor.DEFAULT_MIN_INTERVAL, offset, comparatorType, budget), keyFrom, keyTo, size, shardSize, profile);
+		}
 		if (keyScript != null && valueScript != null) {
 			if(nbin==0)
-				return new ScriptDecimalHistogramFacetExecutor(scriptLang, keyScript, ScriptService.ScriptType.INLINE, valueScript, ScriptService.ScriptType.INLINE, params, interval, offset, comparatorType, context);
+				return executor(new ScriptDecimalHistogramFacetExecutor(scriptLang, keyScript, ScriptService.ScriptType.INLINE, valueScript, ScriptService.ScriptType.INLINE, params, interval, offset, comparatorType, budget, context), keyFrom, keyTo, size, shardSize, profile);
 			else
-				return new ScriptDecimalHistogramFacetExecutor(scriptLang, keyScript, ScriptService.ScriptType.INLINE, valueScript, ScriptService.ScriptType.INLINE, params, nbin, xmin, xmax, comparatorType, context);
+				return executor(new ScriptDecimalHistogramFacetExecutor(scriptLang, keyScript, ScriptService.ScriptType.INLINE, valueScript, ScriptService.ScriptType.INLINE, params, nbin, xmin, xmax, comparatorType, budget, context), keyFrom, keyTo, size, shardSize, profile);
 		}
         if (field == null) {
 			throw new FacetPhaseExecutionException(facetName, "[field] is required for decimal histogram facet");
@@ -115,14 +265,102 @@ public class DecimalHistogramFacetParser extends AbstractComponent implements Fa
 		if (interval <= 0.0 && nbin == 0) {
 			throw new FacetPhaseExecutionException(facetName, "[interval] must be greater than 0.0");
 		}
-		FieldMapper<AtomicNumericFieldData> fieldMapper = context.smartNameFieldMapper(field);
-        if (fieldMapper == null) {
-            throw new FacetPhaseExecutionException(facetName, "failed to find mapping for [" + field + "]");
-        }
-        IndexNumericFieldData indexFieldData = context.fieldData().getForField(fieldMapper);
+		if (baseInterval == 0.0 && splitField == null && value == null) {
+			FieldMapper<?> binsMapper = binsMapper(field, nbin, xmin, xmax, interval, offset, context);
+			if (binsMapper != null) {
+				IndexNumericFieldData binsFieldData = context.fieldData().getForField(binsMapper);
+				if (nbin == 0) {
+					return executor(new OrdinalDecimalHistogramFacetExecutor(binsFieldData, interval, offset, comparatorType, budget), keyFrom, keyTo, size, shardSize, profile);
+				}
+				return executor(new OrdinalDecimalHistogramFacetExecutor(binsFieldData, nbin, xmin, xmax, comparatorType, budget), keyFrom, keyTo, size, shardSize, profile);
+			}
+		}
+		IndexNumericFieldData indexFieldData = fieldData(facetName, field, context);
+		if (splitField != null) {
+			if (nbin == 0 || value != null) {
+				throw new FacetPhaseExecutionException(facetName, "[split_field] requires [nbin] and cannot be combined with [value_field]");
+			}
+			FieldMapper<?> splitMapper = context.smartNameFieldMapper(splitField);
+			if (splitMapper == null) {
+				throw new FacetPhaseExecutionException(facetName, "failed to find mapping for [" + splitField + "]");
+			}
+			IndexFieldData<?> splitFieldData = context.fieldData().getForField(splitMapper);
+			if (!(splitFieldData instanceof IndexOrdinalsFieldData)) {
+				throw new FacetPhaseExecutionException(facetName, "[split_field] must be a field with ordinals, such as a string field");
+			}
+			return executor(new SplitDecimalHistogramFacetExecutor(indexFieldData, (IndexOrdinalsFieldData) splitFieldData, nbin, xmin, xmax, comparatorType, budget, context), keyFrom, keyTo, size, shardSize, profile);
+		}
+		if (value != null) {
+			IndexNumericFieldData valueFieldData = ValueDecimalHistogramFacetExecutor.SCORE.equals(value) ? null : fieldData(facetName, value, context);
+			if (nbin == 0) {
+				return executor(new ValueDecimalHistogramFacetExecutor(indexFieldData, valueFieldData, interval, offset, comparatorType, budget), keyFrom, keyTo, size, shardSize, profile);
+			}
+			return executor(new ValueDecimalHistogramFacetExecutor(indexFieldData, valueFieldData, nbin, xmin, xmax, comparatorType, budget), keyFrom, keyTo, size, shardSize, profile);
+		}
         if(nbin==0)
-        	return new DecimalHistogramFacetExecutor(indexFieldData, interval, offset, comparatorType, context);
+        	return executor(new DecimalHistogramFacetExecutor(indexFieldData, interval, offset, baseInterval, comparatorType, collectMode, useCache ? cache : null, budget, context), keyFrom, keyTo, size, shardSize, profile);
         else
-        	return new DecimalHistogramFacetExecutor(indexFieldData, nbin, xmin, xmax, comparatorType, context);
+        	return executor(new DecimalHistogramFacetExecutor(indexFieldData, nbin, xmin, xmax, comparatorType, collectMode, useCache ? cache : null, budget, context), keyFrom, keyTo, size, shardSize, profile);
+	}
+
+	/**
+	 * Returns true if the given value is an integer multiple of the given base, up to
+	 * rounding errors.
+	 */
+	private static boolean isMultiple(double value, double base) {
+		double multiple = Math.rint(value / base);
+		return Math.abs(multiple) < (double) Long.MAX_VALUE && Math.abs(value - multiple * base) <= 1e-9 * Math.max(Math.abs(value), base);
+	}
+
+	/**
+	 * Prunes the bins of the given executor if a key range or size was asked for, and
+	 * measures its execution if a profile was asked for.
+	 */
+	private FacetExecutor executor(FacetExecutor executor, double keyFrom, double keyTo, int size, int shardSize, boolean profile) {
+		metrics.executed();
+		if (size != 0 || keyFrom != Double.NEGATIVE_INFINITY || keyTo != Double.POSITIVE_INFINITY) {
+			executor = new PrunedFacetExecutor(executor, keyFrom, keyTo, size, shardSize);
+		}
+		return profile ? new ProfiledFacetExecutor(executor, metrics) : executor;
+	}
+
+	/**
+	 * Returns the decimal_histogram_bins field that stores the given bins of the given
+	 * field, which is either the field itself or one of its multi-fields, or null if
+	 * there is none.
+	 */
+	private static FieldMapper<?> binsMapper(String field, final int nbin, final double xmin, final double xmax, final double interval, final double offset, SearchContext context) {
+		FieldMapper<?> fieldMapper = context.smartNameFieldMapper(field);
+		if (fieldMapper == null) {
+			return null;
+		}
+		final List<FieldMapper<?>> binsMappers = new ArrayList<>(1);
+		fieldMapper.traverse(new FieldMapperListener() {
+			@Override
+			public void fieldMapper(FieldMapper<?> mapper) {
+				if (mapper instanceof DecimalHistogramBinsFieldMapper) {
+					DecimalHistogramBinsFieldMapper binsMapper = (DecimalHistogramBinsFieldMapper) mapper;
+					if (nbin != 0 ? binsMapper.hasBins(nbin, xmin, xmax) : binsMapper.hasBins(interval, offset)) {
+						binsMappers.add(mapper);
+					}
+				}
+			}
+		});
+		return binsMappers.isEmpty() ? null : binsMappers.get(0);
+	}
+
+	/**
+	 * Returns the field data of the given numeric field, which must hold the values
+	 * rather than their bins.
+	 */
+	static IndexNumericFieldData fieldData(String facetName, String field, SearchContext context) {
+		FieldMapper<?> fieldMapper = context.smartNameFieldMapper(field);
+		if (fieldMapper == null) {
+			throw new FacetPhaseExecutionException(facetName, "failed to find mapping for [" + field + "]");
+		}
+		if (fieldMapper instanceof DecimalHistogramBinsFieldMapper) {
+			throw new FacetPhaseExecutionException(facetName, "[" + field + "] stores bins rather than values, and can only be counted with the same bins, without other options");
+		}
+		return context.fieldData().getForField(fieldMapper);
 	}
 }
@@ -1,6 +1,14 @@
 package com.zenobase.search.facet.decimalhistogram;
 
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+
+import org.elasticsearch.common.component.LifecycleComponent;
+import org.elasticsearch.common.inject.Module;
 import org.elasticsearch.plugins.AbstractPlugin;
+import org.elasticsearch.rest.RestModule;
+import org.elasticsearch.search.aggregations.AggregationModule;
 import org.elasticsearch.search.facet.FacetModule;
 
 public class DecimalHistogramFacetPlugin extends AbstractPlugin {
@@ -12,11 +20,40 @@ public class DecimalHistogramFacetPlugin extends AbstractPlugin {
 
 	@Override
 	public String description() {
-		return "Facet for decimal histograms";
+		return "Facet and aggregation for decimal histograms";
 	}
 
 	public void onModule(FacetModule module) {
 		module.addFacetProcessor(DecimalHistogramFacetParser.class);
+		module.addFacetProcessor(DecimalHistogramsFacetParser.class);
 		InternalDecimalHistogramFacet.registerStreams();
+		InternalDecimalHistogramsFacet.registerStreams();
+		InternalSplitDecimalHistogramFacet.registerStreams();
+	}
+
+	public void onModule(AggregationModule module) {
+		module.addAggregatorParser(DecimalHistogramAggregationParser.class);
+		InternalDecimalHistogramAggregation.registerStreams();
+	}
+
+	public void onModule(RestModule module) {
+		module.addRestAction(RestSegmentHistogramCacheStatsAction.class);
+		module.addRestAction(RestDecimalHistogramStatsAction.class);
+	}
+
+	@Override
+	public Collection<Class<? extends Module>> modules() {
+		return Collections.<Class<? extends Module>> singleton(DecimalHistogramFacetModule.class);
+	}
+
+	@Override
+	@SuppressWarnings("rawtypes")
+	public Collection<Class<? extends LifecycleComponent>> services() {
+		return Arrays.<Class<? extends LifecycleComponent>> asList(ParallelReduceService.class, BucketBudgetService.class, FacetMetrics.class);
+	}
+
+	@Override
+	public Collection<Class<? extends Module>> indexModules() {
+		return Collections.<Class<? extends Module>> singleton(DecimalHistogramBinsIndexModule.class);
 	}
 }
@@ -0,0 +1,18 @@
+package com.zenobase.search.facet.decimalhistogram;
+
+import java.util.List;
+
+import org.elasticsearch.search.facet.Facet;
+
+public interface DecimalHistogramsFacet extends Facet {
+
+	/**
+	 * The type of the facet.
+	 */
+	public String TYPE = "decimal_histograms";
+
+	/**
+	 * The histograms, in the order they were requested in.
+	 */
+	List<? extends DecimalHistogramFacet> getHistograms();
+}
@@ -0,0 +1,61 @@
+package com.zenobase.search.facet.decimalhistogram;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.search.facet.FacetBuilder;
+import org.elasticsearch.search.facet.histogram.HistogramFacet.ComparatorType;
+
+public class DecimalHistogramsFacetBuilder extends FacetBuilder {
+
+	private final List<Object[]> histograms = new ArrayList<>();
+	private boolean profile;
+
+	public DecimalHistogramsFacetBuilder(String name) {
+		super(name);
+	}
+
+	public DecimalHistogramsFacetBuilder histogram(String name, String field, double interval, double offset, ComparatorType comparatorType) {
+		histograms.add(new Object[] { "name", name, "field", field, "interval", interval, "offset", offset, "order", comparatorType != null ? comparatorType.description() : null });
+		return this;
+	}
+
+	public DecimalHistogramsFacetBuilder histogram(String name, String field, int nbin, double xmin, double xmax, ComparatorType comparatorType) {
+		histograms.add(new Object[] { "name", name, "field", field, "nbin", nbin, "xmin", xmin, "xmax", xmax, "order", comparatorType != null ? comparatorType.description() : null });
+		return this;
+	}
+
+	/**
+	 * Adds a profile of the execution to the result.
+	 */
+	public DecimalHistogramsFacetBuilder profile(boolean profile) {
+		this.profile = profile;
+		return this;
+	}
+
+	@Override
+	public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+		builder.startObject(name);
+		builder.startObject(DecimalHistogramsFacet.TYPE);
+		if (profile) {
+			builder.field("profile", true);
+		}
+		builder.startArray("histograms");
+		for (Object[] histogram : histograms) {
+			builder.startObject();
+			for (int i = 0; i < histogram.length; i += 2) {
+				if (histogram[i + 1] != null) {
+					builder.field((String) histogram[i], histogram[i + 1]);
+				}
+			}
+			builder.endObject();
+		}
+		builder.endArray();
+		builder.endObject();
+		addFilterFacetAndGlobal(builder, params);
+		builder.endObject();
+		return builder;
+	}
+}
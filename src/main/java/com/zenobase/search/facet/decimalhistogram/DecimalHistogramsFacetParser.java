@@ -0,0 +1,180 @@
+package com.zenobase.search.facet.decimalhistogram;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.index.fielddata.IndexNumericFieldData;
+import org.elasticsearch.search.facet.FacetExecutor;
+import org.elasticsearch.search.facet.FacetExecutor.Mode;
+import org.elasticsearch.search.facet.FacetParser;
+import org.elasticsearch.search.facet.FacetPhaseExecutionException;
+import org.elasticsearch.search.facet.histogram.HistogramFacet.ComparatorType;
+import org.elasticsearch.search.internal.SearchContext;
+
+import com.zenobase.search.facet.decimalhistogram.MultiDecimalHistogramFacetExecutor.FixedBinsSpec;
+import com.zenobase.search.facet.decimalhistogram.MultiDecimalHistogramFacetExecutor.IntervalSpec;
+import com.zenobase.search.facet.decimalhistogram.MultiDecimalHistogramFacetExecutor.Spec;
+
+/**
+ * Parses a list of histograms, each with a field and either an interval and offset, or
+ * nbin, xmin and xmax. Histograms are named by their "name", or else by their position.
+ */
+public class DecimalHistogramsFacetParser extends AbstractComponent implements FacetParser {
+
+	private final BucketBudgetService budgets;
+	private final FacetMetrics metrics;
+
+	@Inject
+	public DecimalHistogramsFacetParser(Settings settings, BucketBudgetService budgets, FacetMetrics metrics) {
+		super(settings);
+		this.budgets = budgets;
+		this.metrics = metrics;
+		InternalDecimalHistogramFacet.registerStreams();
+		InternalDecimalHistogramsFacet.registerStreams();
+	}
+
+	@Override
+	public String[] types() {
+		return new String[] {
+			DecimalHistogramsFacet.TYPE
+		};
+	}
+
+	@Override
+	public Mode defaultMainMode() {
+		return FacetExecutor.Mode.COLLECTOR;
+	}
+
+	@Override
+	public Mode defaultGlobalMode() {
+		return FacetExecutor.Mode.COLLECTOR;
+	}
+
+	@Override
+	public FacetExecutor parse(String facetName, XContentParser parser, SearchContext context) throws IOException {
+		List<Histogram> histograms = new ArrayList<>();
+		int maxBuckets = budgets.defaultMaxBuckets();
+		boolean profile = false;
+		String currentName = parser.currentName();
+		XContentParser.Token token;
+		while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+			if (token == XContentParser.Token.FIELD_NAME) {
+				currentName = parser.currentName();
+			} else if (token.isValue() && "profile".equals(currentName)) {
+				profile = parser.booleanValue();
+			} else if (token.isValue() && ("max_buckets".equals(currentName) || "maxBuckets".equals(currentName))) {
+				maxBuckets = parser.intValue();
+			} else if (token == XContentParser.Token.START_ARRAY && "histograms".equals(currentName)) {
+				while ((token = parser.nextToken()) != XContentParser.Token.END_ARRAY) {
+					if (token == XContentParser.Token.START_OBJECT) {
+						histograms.add(parseHistogram(Integer.toString(histograms.size()), parser));
+					}
+				}
+			}
+		}
+		if (maxBuckets < 0) {
+			throw new FacetPhaseExecutionException(facetName, "[max_buckets] must not be negative");
+		}
+		if (histograms.isEmpty()) {
+			throw new FacetPhaseExecutionException(facetName, "[histograms] must list at least one histogram");
+		}
+		Set<String> names = new HashSet<>();
+		for (Histogram histogram : histograms) {
+			if (!names.add(histogram.name)) {
+				throw new FacetPhaseExecutionException(facetName, "duplicate histogram name [" + histogram.name + "]");
+			}
+			histogram.validate(facetName, maxBuckets);
+		}
+		BucketBudget budget = budgets.budget(maxBuckets, context);
+		List<Spec> specs = new ArrayList<>(histograms.size());
+		for (Histogram histogram : histograms) {
+			specs.add(histogram.spec(facetName, budget, context));
+		}
+		metrics.executed();
+		FacetExecutor executor = new MultiDecimalHistogramFacetExecutor(specs);
+		return profile ? new ProfiledFacetExecutor(executor, metrics) : executor;
+	}
+
+	private static Histogram parseHistogram(String name, XContentParser parser) throws IOException {
+		Histogram histogram = new Histogram(name);
+		String currentName = null;
+		XContentParser.Token token;
+		while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+			if (token == XContentParser.Token.FIELD_NAME) {
+				currentName = parser.currentName();
+			} else if (token.isValue()) {
+				if ("name".equals(currentName)) {
+					histogram.name = parser.text();
+				} else if ("field".equals(currentName)) {
+					histogram.field = parser.text();
+				} else if ("interval".equals(currentName)) {
+					histogram.interval = parser.doubleValue();
+				} else if ("offset".equals(currentName)) {
+					histogram.offset = parser.doubleValue();
+				} else if ("nbin".equals(currentName)) {
+					histogram.nbin = parser.intValue();
+				} else if ("xmin".equals(currentName)) {
+					histogram.xmin = parser.doubleValue();
+				} else if ("xmax".equals(currentName)) {
+					histogram.xmax = parser.doubleValue();
+				} else if ("order".equals(currentName) || "comparator".equals(currentName)) {
+					histogram.comparatorType = ComparatorType.fromString(parser.text());
+				}
+			}
+		}
+		return histogram;
+	}
+
+	/**
+	 * A histogram as it was parsed, which is only validated once the whole facet has
+	 * been, so that the order of its options does not matter.
+	 */
+	private static final class Histogram {
+
+		String name;
+		String field;
+		double interval = 0.0;
+		double offset = 0.0;
+		int nbin = 0;
+		double xmin = 1.;
+		double xmax = -1.;
+		ComparatorType comparatorType = ComparatorType.KEY;
+
+		Histogram(String name) {
+			this.name = name;
+		}
+
+		void validate(String facetName, int maxBuckets) {
+			if (field == null) {
+				throw new FacetPhaseExecutionException(facetName, "[field] is required for histogram [" + name + "]");
+			}
+			if (nbin < 0) {
+				throw new FacetPhaseExecutionException(facetName, "[nbin] must not be negative");
+			}
+			if (nbin > 0 && !(xmax > xmin)) {
+				throw new FacetPhaseExecutionException(facetName, "[xmax] must be greater than [xmin]");
+			}
+			if (maxBuckets > 0 && nbin > maxBuckets) {
+				throw new FacetPhaseExecutionException(facetName, "[nbin] asks for more than [max_buckets] (" + maxBuckets + ") buckets");
+			}
+			if (interval <= 0.0 && nbin == 0) {
+				throw new FacetPhaseExecutionException(facetName, "[interval] must be greater than 0.0");
+			}
+		}
+
+		Spec spec(String facetName, BucketBudget budget, SearchContext context) {
+			IndexNumericFieldData fieldData = DecimalHistogramFacetParser.fieldData(facetName, field, context);
+			if (nbin == 0) {
+				return new IntervalSpec(name, fieldData, interval, offset, comparatorType, budget);
+			}
+			return new FixedBinsSpec(name, fieldData, nbin, xmin, xmax, comparatorType, budget);
+		}
+	}
+}
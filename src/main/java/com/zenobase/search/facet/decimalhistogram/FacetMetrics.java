@@ -0,0 +1,167 @@
+package com.zenobase.search.facet.decimalhistogram;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.cache.recycler.CacheRecycler;
+import org.elasticsearch.common.component.AbstractLifecycleComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.metrics.CounterMetric;
+import org.elasticsearch.common.metrics.MeanMetric;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+/**
+ * Node level totals of the facets executed and reduced on this node. Facets are only
+ * measured while executing if they ask for a profile, so only their executions add to
+ * the segments, documents, values, buckets and times of the shard phases, and only
+ * their shard results add to the serialized size.
+ */
+public class FacetMetrics extends AbstractLifecycleComponent<FacetMetrics> {
+
+	private static final NodeRegistry<FacetMetrics> NODES = new NodeRegistry<>();
+
+	private final CacheRecycler cacheRecycler;
+	private final CounterMetric executions = new CounterMetric();
+	private final CounterMetric profiled = new CounterMetric();
+	private final CounterMetric segments = new CounterMetric();
+	private final CounterMetric docs = new CounterMetric();
+	private final CounterMetric values = new CounterMetric();
+	private final CounterMetric buckets = new CounterMetric();
+	private final MeanMetric serializedBytes = new MeanMetric();
+	private final Timer nextReader = new Timer();
+	private final Timer collect = new Timer();
+	private final Timer build = new Timer();
+	private final Timer reduce = new Timer();
+
+	@Inject
+	public FacetMetrics(Settings settings, CacheRecycler cacheRecycler) {
+		super(settings);
+		this.cacheRecycler = cacheRecycler;
+	}
+
+	/**
+	 * Returns the metrics of the node that owns the given cache recycler, or null.
+	 */
+	static FacetMetrics of(CacheRecycler cacheRecycler) {
+		return NODES.get(cacheRecycler);
+	}
+
+	/**
+	 * Records the execution of a facet on a shard.
+	 */
+	void executed() {
+		executions.inc();
+	}
+
+	/**
+	 * Records the measurements of a facet that asked for a profile on a shard.
+	 */
+	void profiled(FacetProfile profile) {
+		profiled.inc();
+		segments.inc(profile.segments);
+		docs.inc(profile.docs);
+		values.inc(profile.values);
+		buckets.inc(profile.buckets);
+		nextReader.add(profile.nextReaderNanos);
+		collect.add(profile.collectNanos);
+		build.add(profile.buildNanos);
+	}
+
+	void reduced(long nanos) {
+		reduce.add(nanos);
+	}
+
+	/**
+	 * Records the size of the shard results of a facet that asked for a profile, as
+	 * received for reduce. Results of local shards are not serialized.
+	 */
+	void received(List<FacetProfile> profiles) {
+		for (FacetProfile profile : profiles) {
+			if (profile != null && profile.serializedBytes != 0) {
+				serializedBytes.inc(profile.serializedBytes);
+			}
+		}
+	}
+
+	ToXContent stats() {
+		return new ToXContent() {
+
+			@Override
+			public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+				builder.field("executions", executions.count());
+				builder.field("profiled_executions", profiled.count());
+				builder.field("segments", segments.count());
+				builder.field("docs", docs.count());
+				builder.field("values", values.count());
+				builder.field("buckets", buckets.count());
+				builder.startObject("serialized");
+				builder.field("count", serializedBytes.count());
+				builder.field("size_in_bytes", serializedBytes.sum());
+				builder.endObject();
+				nextReader.toXContent(builder, "next_reader");
+				collect.toXContent(builder, "collect");
+				build.toXContent(builder, "build");
+				reduce.toXContent(builder, "reduce");
+				return builder;
+			}
+		};
+	}
+
+	@Override
+	protected void doStart() throws ElasticsearchException {
+		NODES.register(cacheRecycler, this);
+	}
+
+	@Override
+	protected void doStop() throws ElasticsearchException {
+		NODES.unregister(cacheRecycler, this);
+	}
+
+	@Override
+	protected void doClose() throws ElasticsearchException {
+
+	}
+
+	/**
+	 * Total time of a phase, and a histogram of its durations in power of two buckets of
+	 * microseconds.
+	 */
+	private static final class Timer {
+
+		private static final int BUCKETS = 32;
+
+		private final MeanMetric total = new MeanMetric();
+		private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+		void add(long nanos) {
+			total.inc(nanos);
+			long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+			histogram.incrementAndGet(Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKETS - 1));
+		}
+
+		void toXContent(XContentBuilder builder, String name) throws IOException {
+			builder.startObject(name);
+			builder.field("count", total.count());
+			builder.field("time_in_nanos", total.sum());
+			builder.startArray("histogram");
+			for (int i = 0; i < BUCKETS; ++i) {
+				long count = histogram.get(i);
+				if (count != 0) {
+					builder.startObject();
+					if (i < BUCKETS - 1) {
+						builder.field("lt_in_micros", 1L << i);
+					}
+					builder.field("count", count);
+					builder.endObject();
+				}
+			}
+			builder.endArray();
+			builder.endObject();
+		}
+	}
+}
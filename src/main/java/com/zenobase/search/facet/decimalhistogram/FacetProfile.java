@@ -0,0 +1,162 @@
+package com.zenobase.search.facet.decimalhistogram;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentBuilderString;
+
+/**
+ * Measurements of the execution of a facet that asked for a profile, summed over shards
+ * once reduced. Times are in nanoseconds.
+ */
+final class FacetProfile implements ToXContent {
+
+	long shards;
+	long segments;
+	long docs;
+	long values;
+	long buckets;
+	/**
+	 * Time spent switching segments: loading field data, and merging cached histograms
+	 * of the segment, if any.
+	 */
+	long nextReaderNanos;
+	/**
+	 * Time from the start of each segment to the start of the next one or the end of
+	 * collection, including switching segments and matching documents.
+	 */
+	long collectNanos;
+	long buildNanos;
+	/**
+	 * Bytes of the facet as sent by the shards, without the profile. Results of local
+	 * shards are not serialized.
+	 */
+	long serializedBytes;
+	long reduceNanos;
+
+	/**
+	 * Counts the values and buckets of the given histogram.
+	 */
+	void count(InternalDecimalHistogramFacet histogram) {
+		long total = histogram.underflowCount + histogram.overflowCount;
+		for (int i = 0; i < histogram.size; ++i) {
+			total += histogram.counts.get(i);
+		}
+		values += total;
+		buckets += histogram.size;
+	}
+
+	void add(FacetProfile other) {
+		shards += other.shards;
+		segments += other.segments;
+		docs += other.docs;
+		values += other.values;
+		buckets += other.buckets;
+		nextReaderNanos += other.nextReaderNanos;
+		collectNanos += other.collectNanos;
+		buildNanos += other.buildNanos;
+		serializedBytes += other.serializedBytes;
+		reduceNanos += other.reduceNanos;
+	}
+
+	/**
+	 * Returns the sum of the given profiles plus the time it took to reduce their facets,
+	 * or null if there are no profiles. The sizes of the shard results are recorded in
+	 * the given node level metrics, if any.
+	 */
+	static FacetProfile reduce(List<FacetProfile> profiles, long reduceNanos, FacetMetrics metrics) {
+		if (metrics != null) {
+			metrics.received(profiles);
+		}
+		FacetProfile sum = null;
+		for (FacetProfile profile : profiles) {
+			if (profile != null) {
+				if (sum == null) {
+					sum = new FacetProfile();
+				}
+				sum.add(profile);
+			}
+		}
+		if (sum != null) {
+			sum.reduceNanos += reduceNanos;
+		}
+		return sum;
+	}
+
+	static FacetProfile readFrom(StreamInput in) throws IOException {
+		FacetProfile profile = new FacetProfile();
+		profile.shards = in.readVLong();
+		profile.segments = in.readVLong();
+		profile.docs = in.readVLong();
+		profile.values = in.readVLong();
+		profile.buckets = in.readVLong();
+		profile.nextReaderNanos = in.readVLong();
+		profile.collectNanos = in.readVLong();
+		profile.buildNanos = in.readVLong();
+		profile.serializedBytes = in.readVLong();
+		profile.reduceNanos = in.readVLong();
+		return profile;
+	}
+
+	/**
+	 * Writes the given body of a facet followed by this profile, with the size of the
+	 * body unless it is known already, as for a reduced facet.
+	 */
+	void writeTo(StreamOutput out, BytesStreamOutput body) throws IOException {
+		body.bytes().writeTo(out);
+		if (serializedBytes == 0) {
+			serializedBytes = body.size();
+		}
+		writeTo(out);
+	}
+
+	void writeTo(StreamOutput out) throws IOException {
+		out.writeVLong(shards);
+		out.writeVLong(segments);
+		out.writeVLong(docs);
+		out.writeVLong(values);
+		out.writeVLong(buckets);
+		out.writeVLong(nextReaderNanos);
+		out.writeVLong(collectNanos);
+		out.writeVLong(buildNanos);
+		out.writeVLong(serializedBytes);
+		out.writeVLong(reduceNanos);
+	}
+
+	private interface Fields {
+
+		final XContentBuilderString PROFILE = new XContentBuilderString("profile");
+		final XContentBuilderString SHARDS = new XContentBuilderString("shards");
+		final XContentBuilderString SEGMENTS = new XContentBuilderString("segments");
+		final XContentBuilderString DOCS = new XContentBuilderString("docs");
+		final XContentBuilderString VALUES = new XContentBuilderString("values");
+		final XContentBuilderString BUCKETS = new XContentBuilderString("buckets");
+		final XContentBuilderString NEXT_READER_TIME = new XContentBuilderString("next_reader_time_in_nanos");
+		final XContentBuilderString COLLECT_TIME = new XContentBuilderString("collect_time_in_nanos");
+		final XContentBuilderString BUILD_TIME = new XContentBuilderString("build_time_in_nanos");
+		final XContentBuilderString SERIALIZED = new XContentBuilderString("serialized_size_in_bytes");
+		final XContentBuilderString REDUCE_TIME = new XContentBuilderString("reduce_time_in_nanos");
+	}
+
+	@Override
+	public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+		builder.startObject(Fields.PROFILE);
+		builder.field(Fields.SHARDS, shards);
+		builder.field(Fields.SEGMENTS, segments);
+		builder.field(Fields.DOCS, docs);
+		builder.field(Fields.VALUES, values);
+		builder.field(Fields.BUCKETS, buckets);
+		builder.field(Fields.NEXT_READER_TIME, nextReaderNanos);
+		builder.field(Fields.COLLECT_TIME, collectNanos);
+		builder.field(Fields.BUILD_TIME, buildNanos);
+		builder.field(Fields.SERIALIZED, serializedBytes);
+		builder.field(Fields.REDUCE_TIME, reduceNanos);
+		builder.endObject();
+		return builder;
+	}
+}
@@ -0,0 +1,141 @@
+package com.zenobase.search.facet.decimalhistogram;
+
+import org.elasticsearch.common.lease.Releasable;
+import org.elasticsearch.common.lease.Releasables;
+import org.elasticsearch.common.util.BigArrays;
+import org.elasticsearch.common.util.DoubleArray;
+import org.elasticsearch.common.util.LongArray;
+
+/**
+ * Dense bin storage for histograms with a fixed number of bins between xmin and xmax.
+ * Slot 0 holds the underflow, slots 1 to nbins the regular bins and slot nbins + 1
+ * the overflow. The bins are kept in paged arrays, whose pages are recycled once the
+ * bins are closed. Bin contents and sums of squares equal the counts until a bin is
+ * added to with a weight, and are only allocated from then on.
+ */
+final class FixedBins implements Releasable {
+
+	final int nbins;
+	final double xmin;
+	final double xmax;
+	final double interval;
+	final LongArray counts;
+	/**
+	 * Bin contents and sums of squares, or null while they equal the counts.
+	 */
+	DoubleArray binContent;
+	DoubleArray sumOfSquares;
+	/**
+	 * Whether any bin has been added to with an explicit weight.
+	 */
+	boolean weighted;
+	private final BigArrays bigArrays;
+
+	/**
+	 * Returns the bytes of the bins of a histogram with the given number of bins, with
+	 * or without weights.
+	 */
+	static long bytes(int nbins, boolean weighted) {
+		return (nbins + 2) * (weighted ? 24L : 8L);
+	}
+
+	FixedBins(BigArrays bigArrays, int nbins, double xmin, double xmax) {
+		this.bigArrays = bigArrays;
+		this.nbins = nbins;
+		this.xmin = xmin;
+		this.xmax = xmax;
+		this.interval = (xmax - xmin) / nbins;
+		this.counts = bigArrays.newLongArray(nbins + 2);
+	}
+
+	/**
+	 * Allocates the bin contents and sums of squares, starting out as the counts.
+	 */
+	private void allocateSums() {
+		binContent = bigArrays.newDoubleArray(nbins + 2, false);
+		sumOfSquares = bigArrays.newDoubleArray(nbins + 2, false);
+		for (int slot = 0; slot < nbins + 2; ++slot) {
+			long count = counts.get(slot);
+			binContent.set(slot, count);
+			sumOfSquares.set(slot, count);
+		}
+	}
+
+	/**
+	 * Returns the slot for the given value; values outside of [xmin, xmax) go into the
+	 * underflow or overflow slot.
+	 */
+	int slot(double value) {
+		return slot(value, nbins, xmin, xmax, interval);
+	}
+
+	/**
+	 * Returns the slot for the given value in bins with the given limits, as stored by
+	 * {@link DecimalHistogramBinsFieldMapper} at index time. Values are divided by the
+	 * interval, like the keys of interval bins.
+	 */
+	static int slot(double value, int nbins, double xmin, double xmax, double interval) {
+		if (!(value >= xmin)) {
+			return 0;
+		}
+		if (value >= xmax) {
+			return nbins + 1;
+		}
+		int bin = (int) ((value - xmin) / interval);
+		return bin < nbins ? bin + 1 : nbins;
+	}
+
+	long count(int slot) {
+		return counts.get(slot);
+	}
+
+	double binContent(int slot) {
+		return binContent != null ? binContent.get(slot) : counts.get(slot);
+	}
+
+	double sumOfSquares(int slot) {
+		return sumOfSquares != null ? sumOfSquares.get(slot) : counts.get(slot);
+	}
+
+	void increment(int slot) {
+		counts.increment(slot, 1L);
+		if (binContent != null) {
+			binContent.increment(slot, 1.0);
+			sumOfSquares.increment(slot, 1.0);
+		}
+	}
+
+	void add(int slot, double weight) {
+		weighted = true;
+		if (binContent == null) {
+			allocateSums();
+		}
+		counts.increment(slot, 1L);
+		binContent.increment(slot, weight);
+		sumOfSquares.increment(slot, weight * weight);
+	}
+
+	void add(int slot, long count, double content, double squares) {
+		if (binContent == null && (content != count || squares != count)) {
+			allocateSums();
+		}
+		counts.increment(slot, count);
+		if (binContent != null) {
+			binContent.increment(slot, content);
+			sumOfSquares.increment(slot, squares);
+		}
+	}
+
+	void clear() {
+		counts.fill(0, nbins + 2, 0L);
+		Releasables.close(binContent, sumOfSquares);
+		binContent = null;
+		sumOfSquares = null;
+		weighted = false;
+	}
+
+	@Override
+	public void close() {
+		Releasables.close(counts, binContent, sumOfSquares);
+	}
+}
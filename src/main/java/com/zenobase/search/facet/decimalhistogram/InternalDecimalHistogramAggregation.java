@@ -0,0 +1,365 @@
+package com.zenobase.search.facet.decimalhistogram;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.text.StringText;
+import org.elasticsearch.common.text.Text;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentBuilderString;
+import org.elasticsearch.search.aggregations.AggregationStreams;
+import org.elasticsearch.search.aggregations.Aggregations;
+import org.elasticsearch.search.aggregations.InternalAggregation;
+import org.elasticsearch.search.aggregations.InternalAggregations;
+import org.elasticsearch.search.aggregations.bucket.MultiBucketsAggregation;
+
+/**
+ * Result of a decimal histogram aggregation. The bins have the same keys, edges and
+ * moments as those of the facet, plus the number of documents and the sub-aggregations
+ * of each bin.
+ */
+public class InternalDecimalHistogramAggregation extends InternalAggregation implements DecimalHistogramAggregation {
+
+	public static final Type TYPE = new Type("decimal_histogram", "decimalHistogramAggregation");
+
+	public static void registerStreams() {
+		AggregationStreams.registerStream(STREAM, TYPE.stream());
+	}
+
+	static AggregationStreams.Stream STREAM = new AggregationStreams.Stream() {
+
+		@Override
+		public InternalDecimalHistogramAggregation readResult(StreamInput in) throws IOException {
+			InternalDecimalHistogramAggregation aggregation = new InternalDecimalHistogramAggregation();
+			aggregation.readFrom(in);
+			return aggregation;
+		}
+	};
+
+	private static final Comparator<Bucket> BIN_ORDER = new Comparator<Bucket>() {
+
+		@Override
+		public int compare(Bucket a, Bucket b) {
+			return a.bin < b.bin ? -1 : a.bin == b.bin ? 0 : 1;
+		}
+	};
+
+	public static class Bucket implements DecimalHistogramAggregation.Bucket {
+
+		final long bin;
+		final double lowEdge;
+		final long docCount;
+		final long count;
+		final double binContent;
+		final double sumOfSquares;
+		final InternalAggregations aggregations;
+
+		Bucket(long bin, double lowEdge, long docCount, long count, double binContent, double sumOfSquares, InternalAggregations aggregations) {
+			this.bin = bin;
+			this.lowEdge = lowEdge;
+			this.docCount = docCount;
+			this.count = count;
+			this.binContent = binContent;
+			this.sumOfSquares = sumOfSquares;
+			this.aggregations = aggregations;
+		}
+
+		@Override
+		public String getKey() {
+			return Long.toString(bin);
+		}
+
+		@Override
+		public Text getKeyAsText() {
+			return new StringText(getKey());
+		}
+
+		@Override
+		public long getDocCount() {
+			return docCount;
+		}
+
+		@Override
+		public Aggregations getAggregations() {
+			return aggregations;
+		}
+
+		@Override
+		public long getBin() {
+			return bin;
+		}
+
+		@Override
+		public double getLowEdge() {
+			return lowEdge;
+		}
+
+		@Override
+		public long getCount() {
+			return count;
+		}
+
+		@Override
+		public double getBinContent() {
+			return binContent;
+		}
+
+		@Override
+		public double getError() {
+			return Math.sqrt(sumOfSquares);
+		}
+	}
+
+	double interval;
+	double offset;
+	int nbins;
+	double xmin;
+	double xmax;
+	boolean weighted;
+	long underflowCount;
+	double underflows;
+	double underflowSumOfSquares;
+	long overflowCount;
+	double overflows;
+	double overflowSumOfSquares;
+	List<Bucket> buckets;
+
+	InternalDecimalHistogramAggregation() {
+
+	}
+
+	/**
+	 * Creates an empty histogram with the given interval and offset.
+	 */
+	InternalDecimalHistogramAggregation(String name, double interval, double offset, boolean weighted) {
+		super(name);
+		this.interval = interval;
+		this.offset = offset;
+		this.xmin = -offset;
+		this.xmax = -1.;
+		this.weighted = weighted;
+		this.buckets = new ArrayList<>();
+	}
+
+	/**
+	 * Creates an empty histogram with the given number of bins between xmin and xmax.
+	 */
+	InternalDecimalHistogramAggregation(String name, int nbins, double xmin, double xmax, boolean weighted) {
+		super(name);
+		this.interval = (xmax - xmin) / nbins;
+		this.nbins = nbins;
+		this.xmin = xmin;
+		this.xmax = xmax;
+		this.weighted = weighted;
+		this.buckets = new ArrayList<>();
+	}
+
+	private InternalDecimalHistogramAggregation(InternalDecimalHistogramAggregation prototype) {
+		super(prototype.getName());
+		this.interval = prototype.interval;
+		this.offset = prototype.offset;
+		this.nbins = prototype.nbins;
+		this.xmin = prototype.xmin;
+		this.xmax = prototype.xmax;
+		this.buckets = new ArrayList<>();
+	}
+
+	@Override
+	public Type type() {
+		return TYPE;
+	}
+
+	double lowEdge(long bin) {
+		return bin * interval + xmin;
+	}
+
+	/**
+	 * Adds a bin; bins must be added in key order.
+	 */
+	void add(long bin, long docCount, long count, double binContent, double sumOfSquares, InternalAggregations aggregations) {
+		buckets.add(new Bucket(bin, lowEdge(bin), docCount, count, binContent, sumOfSquares, aggregations));
+	}
+
+	@Override
+	public List<Bucket> getBuckets() {
+		return buckets;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public <B extends MultiBucketsAggregation.Bucket> B getBucketByKey(String key) {
+		long bin = Long.parseLong(key);
+		for (Bucket bucket : buckets) {
+			if (bucket.bin == bin) {
+				return (B) bucket;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public double getUnderflows() {
+		return underflows;
+	}
+
+	@Override
+	public double getOverflows() {
+		return overflows;
+	}
+
+	/**
+	 * Merges the bins with the same key, and reduces their sub-aggregations.
+	 */
+	@Override
+	public InternalAggregation reduce(ReduceContext reduceContext) {
+		List<InternalAggregation> aggregations = reduceContext.aggregations();
+		InternalDecimalHistogramAggregation reduced = new InternalDecimalHistogramAggregation(this);
+		List<Bucket> all = new ArrayList<>();
+		for (InternalAggregation aggregation : aggregations) {
+			InternalDecimalHistogramAggregation histogram = (InternalDecimalHistogramAggregation) aggregation;
+			reduced.weighted |= histogram.weighted;
+			reduced.underflowCount += histogram.underflowCount;
+			reduced.underflows += histogram.underflows;
+			reduced.underflowSumOfSquares += histogram.underflowSumOfSquares;
+			reduced.overflowCount += histogram.overflowCount;
+			reduced.overflows += histogram.overflows;
+			reduced.overflowSumOfSquares += histogram.overflowSumOfSquares;
+			all.addAll(histogram.buckets);
+		}
+		Collections.sort(all, BIN_ORDER);
+		List<InternalAggregations> subAggregations = new ArrayList<>(aggregations.size());
+		for (int i = 0; i < all.size();) {
+			Bucket first = all.get(i);
+			long docCount = 0;
+			long count = 0;
+			double binContent = 0.;
+			double sumOfSquares = 0.;
+			subAggregations.clear();
+			for (; i < all.size() && all.get(i).bin == first.bin; ++i) {
+				Bucket bucket = all.get(i);
+				docCount += bucket.docCount;
+				count += bucket.count;
+				binContent += bucket.binContent;
+				sumOfSquares += bucket.sumOfSquares;
+				subAggregations.add(bucket.aggregations);
+			}
+			reduced.add(first.bin, docCount, count, binContent, sumOfSquares, InternalAggregations.reduce(subAggregations, reduceContext));
+		}
+		return reduced;
+	}
+
+	static final class Fields {
+
+		static final XContentBuilderString BINSIZE = new XContentBuilderString("binsize");
+		static final XContentBuilderString NBIN = new XContentBuilderString("nbin");
+		static final XContentBuilderString INTEGRAL = new XContentBuilderString("integral");
+		static final XContentBuilderString MEAN = new XContentBuilderString("mean");
+		static final XContentBuilderString RMS = new XContentBuilderString("rms");
+		static final XContentBuilderString UNDERFLOWS = new XContentBuilderString("underflows");
+		static final XContentBuilderString OVERFLOWS = new XContentBuilderString("overflows");
+		static final XContentBuilderString BUCKETS = new XContentBuilderString("buckets");
+		static final XContentBuilderString BIN = new XContentBuilderString("bin");
+		static final XContentBuilderString KEY = new XContentBuilderString("xLow");
+		static final XContentBuilderString DOC_COUNT = new XContentBuilderString("doc_count");
+		static final XContentBuilderString COUNT = new XContentBuilderString("count");
+		static final XContentBuilderString BINCONTENT = new XContentBuilderString("binContent");
+		static final XContentBuilderString ERROR = new XContentBuilderString("error");
+	}
+
+	@Override
+	public XContentBuilder doXContentBody(XContentBuilder builder, Params params) throws IOException {
+		InternalDecimalHistogramFacet.Moments moments = new InternalDecimalHistogramFacet.Moments();
+		for (Bucket bucket : buckets) {
+			moments.add(bucket.lowEdge, bucket.count, bucket.binContent);
+		}
+		builder.field(Fields.BINSIZE, interval);
+		builder.field(Fields.NBIN, nbins);
+		builder.field(Fields.INTEGRAL, moments.integral);
+		builder.field(Fields.MEAN, moments.mean());
+		builder.field(Fields.RMS, moments.rms());
+		builder.field(Fields.UNDERFLOWS, underflows);
+		builder.field(Fields.OVERFLOWS, overflows);
+		builder.startArray(Fields.BUCKETS);
+		for (Bucket bucket : buckets) {
+			builder.startObject();
+			builder.field(Fields.BIN, bucket.bin);
+			builder.field(Fields.KEY, bucket.lowEdge);
+			builder.field(Fields.DOC_COUNT, bucket.docCount);
+			builder.field(Fields.COUNT, bucket.count);
+			builder.field(Fields.BINCONTENT, bucket.binContent);
+			builder.field(Fields.ERROR, bucket.getError());
+			bucket.aggregations.toXContentInternal(builder, params);
+			builder.endObject();
+		}
+		builder.endArray();
+		return builder;
+	}
+
+	/**
+	 * Bin contents and sums of squares are only written for weighted histograms, as they
+	 * equal the counts otherwise.
+	 */
+	@Override
+	public void readFrom(StreamInput in) throws IOException {
+		name = in.readString();
+		interval = in.readDouble();
+		offset = in.readDouble();
+		nbins = in.readVInt();
+		xmin = in.readDouble();
+		xmax = in.readDouble();
+		weighted = in.readBoolean();
+		underflowCount = in.readVLong();
+		underflows = weighted ? in.readDouble() : underflowCount;
+		underflowSumOfSquares = weighted ? in.readDouble() : underflowCount;
+		overflowCount = in.readVLong();
+		overflows = weighted ? in.readDouble() : overflowCount;
+		overflowSumOfSquares = weighted ? in.readDouble() : overflowCount;
+		int size = in.readVInt();
+		buckets = new ArrayList<>(size);
+		for (int i = 0; i < size; ++i) {
+			long bin = in.readLong();
+			long docCount = in.readVLong();
+			long count = in.readVLong();
+			double binContent = weighted ? in.readDouble() : count;
+			double sumOfSquares = weighted ? in.readDouble() : count;
+			add(bin, docCount, count, binContent, sumOfSquares, InternalAggregations.readAggregations(in));
+		}
+	}
+
+	@Override
+	public void writeTo(StreamOutput out) throws IOException {
+		out.writeString(name);
+		out.writeDouble(interval);
+		out.writeDouble(offset);
+		out.writeVInt(nbins);
+		out.writeDouble(xmin);
+		out.writeDouble(xmax);
+		out.writeBoolean(weighted);
+		out.writeVLong(underflowCount);
+		if (weighted) {
+			out.writeDouble(underflows);
+			out.writeDouble(underflowSumOfSquares);
+		}
+		out.writeVLong(overflowCount);
+		if (weighted) {
+			out.writeDouble(overflows);
+			out.writeDouble(overflowSumOfSquares);
+		}
+		out.writeVInt(buckets.size());
+		for (Bucket bucket : buckets) {
+			out.writeLong(bucket.bin);
+			out.writeVLong(bucket.docCount);
+			out.writeVLong(bucket.count);
+			if (weighted) {
+				out.writeDouble(bucket.binContent);
+				out.writeDouble(bucket.sumOfSquares);
+			}
+			bucket.aggregations.writeTo(out);
+		}
+	}
+}
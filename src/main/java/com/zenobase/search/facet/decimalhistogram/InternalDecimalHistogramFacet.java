@@ -1,17 +1,27 @@
 package com.zenobase.search.facet.decimalhistogram;
 
 import java.io.IOException;
-import java.util.Arrays;
+import java.util.AbstractList;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.ForkJoinPool;
 
+import org.apache.lucene.util.IntroSorter;
 import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.breaker.CircuitBreaker;
 import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.bytes.HashedBytesArray;
 
 
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
 import org.elasticsearch.common.io.stream.StreamInput;
 import org.elasticsearch.common.io.stream.StreamOutput;
-import org.elasticsearch.common.recycler.Recycler;
+import org.elasticsearch.common.lease.Releasables;
+import org.elasticsearch.common.util.BigArrays;
+import org.elasticsearch.common.util.DoubleArray;
+import org.elasticsearch.common.util.IntArray;
+import org.elasticsearch.common.util.LongArray;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.XContentBuilderString;
 import org.elasticsearch.search.facet.Facet;
@@ -19,12 +29,31 @@ import org.elasticsearch.search.facet.FacetPhaseExecutionException;
 import org.elasticsearch.search.facet.InternalFacet;
 import org.elasticsearch.search.facet.histogram.HistogramFacet;
 import org.elasticsearch.search.facet.histogram.HistogramFacet.ComparatorType;
-import org.elasticsearch.common.hppc.LongObjectOpenHashMap;
 
 import com.zenobase.search.facet.decimalhistogram.DecimalHistogramFacet;
 
 public class InternalDecimalHistogramFacet extends InternalFacet implements DecimalHistogramFacet {
 
+	/**
+	 * Version of the stream format, written ahead of each facet.
+	 */
+	private static final byte FORMAT_VERSION = 7;
+
+	private static final byte WEIGHTED = 1;
+	private static final byte SORTED = 2;
+	private static final byte DENSE = 4;
+	private static final byte LOG = 8;
+	private static final byte EDGES = 16;
+	private static final byte PROFILE = 32;
+	private static final byte TRUNCATED = 64;
+
+	/**
+	 * Bins are kept in paged arrays, so that histograms with millions of bins are not
+	 * allocated in one piece. Facets are never explicitly released, so their pages are
+	 * left to the garbage collector rather than taken from the page cache recycler.
+	 */
+	private static final BigArrays BINS = BigArrays.NON_RECYCLING_INSTANCE;
+
 	private static final BytesReference STREAM_TYPE = new HashedBytesArray(Strings.toUTF8Bytes("decimalHistogram"));
 
 	public static void registerStreams() {
@@ -123,8 +152,25 @@ public class InternalDecimalHistogramFacet extends InternalFacet implements Deci
 	double interval;
 	double offset;
 	int nbins;
+	/**
+	 * Maximum number of buckets of an adaptive histogram, or 0.
+	 */
+	int maxBins;
 	double xmin;
 	double xmax;
+	/**
+	 * Base of a logarithmic histogram, whose bin k starts at logBase^k, or 0.
+	 */
+	double logBase;
+	/**
+	 * Edges of a histogram with bins of varying width, or null.
+	 */
+	double[] edges;
+	/**
+	 * Sums over the regular bins, sent along with them so that they are not summed up
+	 * again after reading, and merged across shards where they can be.
+	 */
+	Moments moments = new Moments();
 	double integral;
 	long nentries;
 	double rms;
@@ -132,187 +178,749 @@ public class InternalDecimalHistogramFacet extends InternalFacet implements Deci
 	double overflows;
 	double mean;
 	HistogramFacet.ComparatorType comparatorType;
-	DecimalEntry[] entries;
+	long underflowCount;
+	double underflowSumOfSquares;
+	long overflowCount;
+	double overflowSumOfSquares;
+	boolean weighted;
+	boolean sorted;
+	/**
+	 * Number of bins with the highest counts to keep after reducing, or 0 to keep all.
+	 */
+	int requiredSize;
+	/**
+	 * Entries of the bins that were left out for not being among those with the highest
+	 * counts.
+	 */
+	long otherCount;
+	/**
+	 * Upper bound of the entries missing from the count of any bin, as the bin was left
+	 * out on some shards.
+	 */
+	long countError;
+	/**
+	 * Peak bytes of the bucket storage used to collect this histogram, summed over
+	 * shards.
+	 */
+	long memory;
+	/**
+	 * Measurements of the execution, if a profile was asked for, or null.
+	 */
+	FacetProfile profile;
+	/**
+	 * Bins as parallel arrays, the first size of which are in use.
+	 */
+	int size;
+	LongArray keys;
+	LongArray counts;
+	/**
+	 * Bin contents and sums of squares, or null if the histogram is not weighted, as
+	 * they equal the counts then.
+	 */
+	DoubleArray binContents;
+	DoubleArray sumOfSquares;
 
 	InternalDecimalHistogramFacet() {
 
 	}
 
-	public InternalDecimalHistogramFacet(String name, int nbins, double xmin, double xmax, HistogramFacet.ComparatorType comparatorType, DecimalEntry[] entries) {
-		super(name);
-		this.interval = (xmax-xmin)/nbins;
-		this.nbins = nbins;
-		this.xmin = xmin;
-		this.xmax = xmax;
-		this.offset = 0.;
-		this.comparatorType = comparatorType;
-		this.entries = entries;
-		this.nentries = 0;
-		this.rms = 0.;
-		this.integral = 0.;
-		this.underflows = 0.;
-		this.overflows = 0.;
-		this.mean = 0.;
-		recalculate();
-		
+	/**
+	 * Creates an empty facet with the same name and binning as the given one.
+	 */
+	InternalDecimalHistogramFacet(InternalDecimalHistogramFacet prototype) {
+		super(prototype.getName());
+		this.interval = prototype.interval;
+		this.offset = prototype.offset;
+		this.nbins = prototype.nbins;
+		this.maxBins = prototype.maxBins;
+		this.xmin = prototype.xmin;
+		this.xmax = prototype.xmax;
+		this.logBase = prototype.logBase;
+		this.edges = prototype.edges;
+		this.comparatorType = prototype.comparatorType;
+		this.requiredSize = prototype.requiredSize;
 	}
 
-	public InternalDecimalHistogramFacet(String name, int nbins, double xmin, double xmax, HistogramFacet.ComparatorType comparatorType, List<DecimalEntry> entries) {
-		super(name);
-		this.interval = (xmax-xmin)/nbins;
-		this.nbins = nbins;
-		this.xmin = xmin;
-		this.xmax = xmax;
-		this.offset = 0.;
-		this.comparatorType = comparatorType;
-		this.entries = (DecimalEntry[])entries.toArray();
-		this.nentries = 0;
-		this.rms = 0.;
-		this.integral = 0.;
-		this.underflows = 0.;
-		this.overflows = 0.;
-		this.mean = 0.;
-		recalculate();	
+	public InternalDecimalHistogramFacet(String name, double interval, double offset, HistogramFacet.ComparatorType comparatorType, DecimalBucketMap buckets) {
+		this(name, interval, offset, 0, comparatorType, buckets);
+	}
 
-		
+	/**
+	 * Creates an adaptive histogram with at most maxBins buckets, unless maxBins is 0.
+	 */
+	public InternalDecimalHistogramFacet(String name, double interval, double offset, int maxBins, HistogramFacet.ComparatorType comparatorType, DecimalBucketMap buckets) {
+		this(name, interval, offset, maxBins, 0., comparatorType, buckets);
 	}
 
-	
-	public InternalDecimalHistogramFacet(String name, double interval, double offset, HistogramFacet.ComparatorType comparatorType, DecimalEntry[] entries) {
+	/**
+	 * Creates a logarithmic histogram, whose bin k covers [logBase^k, logBase^(k+1)).
+	 */
+	public InternalDecimalHistogramFacet(String name, double logBase, HistogramFacet.ComparatorType comparatorType, DecimalBucketMap buckets) {
+		this(name, 0., 0., 0, logBase, comparatorType, buckets);
+	}
+
+	private InternalDecimalHistogramFacet(String name, double interval, double offset, int maxBins, double logBase, HistogramFacet.ComparatorType comparatorType, DecimalBucketMap buckets) {
 		super(name);
 		this.nbins = 0;
-		this.xmin=1.;
+		this.maxBins = maxBins;
+		this.logBase = logBase;
+		this.xmin = -offset;
 		this.xmax=-1.;
 		this.interval = interval;
 		this.offset = offset;
 		this.comparatorType = comparatorType;
-		this.entries = entries;
-		this.nentries = 0;
-		this.rms = 0.;
-		this.integral = 0.;
-		this.underflows = 0.;
-		this.overflows = 0.;
-		this.mean = 0.;
+		this.weighted = buckets.weighted;
+		allocate(buckets.size());
+		for (int slot = 0; slot < buckets.capacity(); ++slot) {
+			long count = buckets.count(slot);
+			if (count != 0) {
+				set(size++, buckets.key(slot), count, buckets.sum(slot), buckets.sumOfSquares(slot));
+			}
+		}
+		sort(ComparatorType.KEY);
 		recalculate();
+	}
 
-
+	public InternalDecimalHistogramFacet(String name, FixedBins bins, HistogramFacet.ComparatorType comparatorType) {
+		this(name, bins, null, comparatorType);
 	}
 
-	public InternalDecimalHistogramFacet(String name, double interval, double offset, HistogramFacet.ComparatorType comparatorType, List<DecimalEntry> entries) {
+	/**
+	 * Creates a histogram with the bins between the given edges, or with the fixed bins
+	 * of the given bins if edges is null.
+	 */
+	public InternalDecimalHistogramFacet(String name, FixedBins bins, double[] edges, HistogramFacet.ComparatorType comparatorType) {
 		super(name);
-		this.interval = interval;
-		this.offset = offset;
+		this.interval = edges != null ? 0. : bins.interval;
+		this.edges = edges;
+		this.nbins = bins.nbins;
+		this.xmin = bins.xmin;
+		this.xmax = bins.xmax;
+		this.offset = 0.;
 		this.comparatorType = comparatorType;
-		this.entries = (DecimalEntry[])entries.toArray();
-		this.nentries = 0;
-		this.rms = 0.;
-		this.integral = 0.;
-		this.underflows = 0.;
-		this.overflows = 0.;
-		this.mean = 0.;
-		recalculate();
+		this.weighted = bins.weighted;
+		int nonEmpty = 0;
+		for (int slot = 1; slot <= nbins; ++slot) {
+			if (bins.count(slot) != 0) {
+				nonEmpty++;
+			}
+		}
+		allocate(nonEmpty);
+		Moments moments = new Moments();
+		for (int slot = 1; slot <= nbins; ++slot) {
+			long count = bins.count(slot);
+			if (count != 0) {
+				double content = bins.binContent(slot);
+				set(size++, slot - 1, count, content, bins.sumOfSquares(slot));
+				moments.add(lowEdge(slot - 1), count, content);
+			}
+		}
+		this.underflowCount = bins.count(0);
+		this.underflows = bins.binContent(0);
+		this.underflowSumOfSquares = bins.sumOfSquares(0);
+		this.overflowCount = bins.count(nbins + 1);
+		this.overflows = bins.binContent(nbins + 1);
+		this.overflowSumOfSquares = bins.sumOfSquares(nbins + 1);
+		setMoments(moments);
+	}
+
+	/**
+	 * Allocates the arrays for the given number of bins, with bin contents and sums of
+	 * squares only if the histogram is weighted.
+	 */
+	void allocate(int capacity) {
+		this.keys = BINS.newLongArray(capacity, false);
+		this.counts = BINS.newLongArray(capacity, false);
+		this.binContents = weighted ? BINS.newDoubleArray(capacity, false) : null;
+		this.sumOfSquares = weighted ? BINS.newDoubleArray(capacity, false) : null;
+	}
+
+	void set(int i, long key, long count, double binContent, double squares) {
+		keys.set(i, key);
+		counts.set(i, count);
+		if (binContents != null) {
+			binContents.set(i, binContent);
+			sumOfSquares.set(i, squares);
+		}
+	}
+
+	/**
+	 * Adds to the i-th bin.
+	 */
+	void add(int i, long count, double binContent, double squares) {
+		counts.increment(i, count);
+		if (binContents != null) {
+			binContents.increment(i, binContent);
+			sumOfSquares.increment(i, squares);
+		}
+	}
+
+	double binContent(int i) {
+		return binContents != null ? binContents.get(i) : counts.get(i);
+	}
+
+	double sumOfSquares(int i) {
+		return sumOfSquares != null ? sumOfSquares.get(i) : counts.get(i);
+	}
 
-	}	
-	
 	public void recalculate(){
-		for (int i = (this.nbins==0?0:1); i < entries.length-(this.nbins==0?0:1); ++i) {
+		Moments moments = new Moments();
+		for (int i = 0; i < size; ++i) {
+			moments.add(lowEdge(keys.get(i)), counts.get(i), binContent(i));
+		}
+		setMoments(moments);
+	}
 
-				this.nentries += entries[i].getCount();
-				this.integral += entries[i].getBinContent();
-				this.mean += (entries[i].key*interval+xmin)*entries[i].getBinContent();
-			}
-		
-		if(nbins!=0){
-				if(entries.length!=0){
-						this.underflows=entries[0].getBinContent();
-						this.overflows=entries[entries.length-1].getBinContent();
-				}
-			}
-		this.mean /= this.integral;
-		for (int i = (this.nbins==0?0:1); i < entries.length-(this.nbins==0?0:1); ++i) {
-				this.rms += ((entries[i].key*interval+xmin)*entries[i].getBinContent()-this.mean)*
-						((entries[i].key*interval+xmin)*entries[i].getBinContent()-this.mean);
+	/**
+	 * Adds the bins that end at or below from to the underflows, and those that start at
+	 * or above to to the overflows. Returns true if any bin was.
+	 */
+	boolean window(double from, double to) {
+		int kept = 0;
+		for (int i = 0; i < size; ++i) {
+			long key = keys.get(i);
+			long count = counts.get(i);
+			double content = binContent(i);
+			double squares = sumOfSquares(i);
+			if (!(lowEdge(key + 1) > from)) {
+				underflowCount += count;
+				underflows += content;
+				underflowSumOfSquares += squares;
+			} else if (!(lowEdge(key) < to)) {
+				overflowCount += count;
+				overflows += content;
+				overflowSumOfSquares += squares;
+			} else {
+				set(kept++, key, count, content, squares);
 			}
-		
-		this.rms = Math.sqrt(this.rms);
-		this.rms /= this.integral;
+		}
+		boolean changed = kept != size;
+		size = kept;
+		return changed;
+	}
+
+	/**
+	 * Keeps the given number of bins with the highest counts, and adds the entries of the
+	 * others to the other count. Returns the lowest count kept, or 0 if no bin was left
+	 * out.
+	 */
+	long truncate(int requiredSize) {
+		if (requiredSize == 0 || size <= requiredSize) {
+			return 0;
+		}
+		sort(ComparatorType.COUNT);
+		int dropped = size - requiredSize;
+		for (int i = 0; i < dropped; ++i) {
+			otherCount += counts.get(i);
+		}
+		for (int i = 0; i < requiredSize; ++i) {
+			int j = dropped + i;
+			set(i, keys.get(j), counts.get(j), binContent(j), sumOfSquares(j));
+		}
+		size = requiredSize;
+		sorted = false;
+		return counts.get(0);
+	}
+
+	/**
+	 * Returns the lower edge of the bin with the given key.
+	 */
+	double lowEdge(long key) {
+		if (edges != null) {
+			return edges[(int) key];
+		}
+		if (logBase != 0.) {
+			return Math.pow(logBase, key);
+		}
+		return key*interval+xmin;
 	}
-	
+
+	void setMoments(Moments moments) {
+		this.moments = moments;
+		this.nentries = moments.entries;
+		this.integral = moments.integral;
+		this.mean = moments.mean();
+		this.rms = moments.rms();
+	}
+
+	/**
+	 * Sums over the regular bins, from which the mean and rms are derived without a
+	 * second pass. The entries, integral and sum are linear in the bin contents, and add
+	 * up across shards. The squares are of the contents of the merged bins, and have to
+	 * be summed over them.
+	 */
+	static final class Moments {
+
+		long entries;
+		double integral;
+		double sum;
+		double squares;
+		int bins;
+
+		void add(double x, long count, double binContent) {
+			entries += count;
+			integral += binContent;
+			sum += x*binContent;
+			addSquares(x, binContent);
+		}
+
+		void addSquares(double x, double binContent) {
+			squares += (x*binContent)*(x*binContent);
+			bins++;
+		}
+
+		/**
+		 * Adds the linear sums of the same bins on another shard.
+		 */
+		void addLinear(Moments other) {
+			entries += other.entries;
+			integral += other.integral;
+			sum += other.sum;
+		}
+
+		/**
+		 * Adds the squares of other bins.
+		 */
+		void addSquares(Moments other) {
+			squares += other.squares;
+			bins += other.bins;
+		}
+
+		double mean() {
+			return sum / integral;
+		}
+
+		double rms() {
+			double mean = mean();
+			return Math.sqrt(Math.max(0., squares - 2*mean*sum + bins*mean*mean)) / integral;
+		}
+	}
+
 	@Override
 	public String getType() {
 		return TYPE;
 	}
 
+	/**
+	 * Returns a view of the bins, which creates each entry as it is asked for.
+	 */
 	@Override
 	public List<DecimalEntry> getEntries() {
-		return Arrays.asList(entries);
+		return new Entries();
+	}
+
+	private final class Entries extends AbstractList<DecimalEntry> implements RandomAccess {
+
+		@Override
+		public DecimalEntry get(int i) {
+			if (i < 0 || i >= size) {
+				throw new IndexOutOfBoundsException("index [" + i + "] is out of bounds for [" + size + "] entries");
+			}
+			return new DecimalEntry(keys.get(i), counts.get(i), binContent(i), sumOfSquares(i));
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
 	}
 
+	/**
+	 * Records the time taken in the node level metrics, and adds it to the summed
+	 * profiles of the shards, if any.
+	 */
 	@Override
 	public Facet reduce(ReduceContext context) {
 		List<Facet> facets = context.facets();
+		long start = System.nanoTime();
+		ParallelReduceService parallel = ParallelReduceService.of(context.cacheRecycler());
+		BucketBudgetService budgets = BucketBudgetService.of(context.cacheRecycler());
+		InternalDecimalHistogramFacet reduced = reduce(facets, parallel == null ? null : parallel.pool(facets.size()),
+			budgets == null ? null : budgets.breaker());
+		long nanos = System.nanoTime() - start;
+		FacetMetrics metrics = FacetMetrics.of(context.cacheRecycler());
+		if (metrics != null) {
+			metrics.reduced(nanos);
+		}
+		List<FacetProfile> profiles = new ArrayList<>(facets.size());
+		for (Facet facet : facets) {
+			profiles.add(((InternalDecimalHistogramFacet) facet).profile);
+		}
+		reduced.profile = FacetProfile.reduce(profiles, nanos, metrics);
+		return reduced;
+	}
+
+	/**
+	 * Charges the bins of the merged histogram, 16 bytes each or 32 if weighted, to the
+	 * request circuit breaker, if any, while merging.
+	 */
+	private InternalDecimalHistogramFacet reduce(List<Facet> facets, ForkJoinPool pool, CircuitBreaker breaker) {
 		if (facets.size() == 1) {
 			InternalDecimalHistogramFacet facet = (InternalDecimalHistogramFacet) facets.get(0);
-			Arrays.sort(facet.entries, facet.comparatorType.comparator());
+			if (facet.truncate(facet.requiredSize) != 0) {
+				facet.recalculate();
+			}
+			facet.sort();
 			return facet;
 		}
+		long capacity = 0;
+		boolean weighted = false;
+		for (Facet facet : facets) {
+			capacity += ((InternalDecimalHistogramFacet) facet).size;
+			weighted |= ((InternalDecimalHistogramFacet) facet).weighted;
+		}
+		long bytes = capacity(capacity) * (weighted ? 32L : 16L);
+		if (breaker != null) {
+			breaker.addEstimateBytesAndMaybeBreak(bytes, BucketBudget.LABEL);
+		}
+		try {
+			InternalDecimalHistogramFacet reduced = merge(facets, pool);
+			if (reduced.truncate(requiredSize) != 0) {
+				reduced.recalculate();
+			}
+			reduced.sort();
+			return reduced;
+		} finally {
+			if (breaker != null) {
+				breaker.addWithoutBreaking(-bytes);
+			}
+		}
+	}
+
+	/**
+	 * Merges the bins of the given facets in key order, with a k-way merge over a heap of
+	 * per-facet cursors. The output arrays are sized up front, and the moments are
+	 * accumulated as each merged bin is completed. Ranges of keys are merged in parallel
+	 * if a pool is given.
+	 */
+	InternalDecimalHistogramFacet merge(List<? extends Facet> facets, ForkJoinPool pool) {
+		if (maxBins != 0) {
+			return mergeAdaptive(facets, pool);
+		}
+		if (pool != null) {
+			return ParallelReduce.merge(this, facets, pool);
+		}
+		return mergeSequential(facets);
+	}
+
+	/**
+	 * Widens the buckets of adaptive histograms to the widest of them before merging,
+	 * and widens the merged buckets further as long as there are too many.
+	 */
+	private InternalDecimalHistogramFacet mergeAdaptive(List<? extends Facet> facets, ForkJoinPool pool) {
+		InternalDecimalHistogramFacet widest = (InternalDecimalHistogramFacet) facets.get(0);
+		for (Facet facet : facets) {
+			InternalDecimalHistogramFacet histoFacet = (InternalDecimalHistogramFacet) facet;
+			if (histoFacet.interval > widest.interval) {
+				widest = histoFacet;
+			}
+		}
+		for (Facet facet : facets) {
+			InternalDecimalHistogramFacet histoFacet = (InternalDecimalHistogramFacet) facet;
+			histoFacet.coarsen(Math.getExponent(widest.interval) - Math.getExponent(histoFacet.interval));
+		}
+		InternalDecimalHistogramFacet merged = pool != null
+			? ParallelReduce.merge(widest, facets, pool) : widest.mergeSequential(facets);
+		while (merged.size > maxBins) {
+			merged.coarsen(1);
+		}
+		return merged;
+	}
+
+	/**
+	 * Merges each bin into the bin that covers it at 2^shift times the width, leaving
+	 * the bins in key order.
+	 */
+	void coarsen(int shift) {
+		if (shift <= 0) {
+			return;
+		}
+		IntArray order = keyOrder();
+		LongArray oldKeys = keys;
+		LongArray oldCounts = counts;
+		DoubleArray oldContents = binContents;
+		DoubleArray oldSquares = sumOfSquares;
+		int oldSize = size;
+		allocate(oldSize);
+		int last = -1;
+		for (int i = 0; i < oldSize; ++i) {
+			int j = index(order, i);
+			long key = DecimalBucketMap.coarsen(oldKeys.get(j), shift);
+			if (last >= 0 && keys.get(last) == key) {
+				add(last, oldCounts.get(j), oldContents != null ? oldContents.get(j) : 0., oldSquares != null ? oldSquares.get(j) : 0.);
+			} else {
+				set(++last, key, oldCounts.get(j), oldContents != null ? oldContents.get(j) : 0., oldSquares != null ? oldSquares.get(j) : 0.);
+			}
+		}
+		Releasables.close(order);
+		size = last + 1;
+		interval = Math.scalb(interval, shift);
+		sorted = false;
+		recalculate();
+	}
 
-		Recycler.V<LongObjectOpenHashMap<DecimalEntry>> counts = context.cacheRecycler().longObjectMap(-1);
+	private InternalDecimalHistogramFacet mergeSequential(List<? extends Facet> facets) {
+		InternalDecimalHistogramFacet merged = mergeOverflows(facets);
+		MergeHeap heap = new MergeHeap(facets.size());
+		IntArray[] orders = new IntArray[facets.size()];
+		long capacity = 0;
+		for (int i = 0; i < orders.length; ++i) {
+			InternalDecimalHistogramFacet histoFacet = (InternalDecimalHistogramFacet) facets.get(i);
+			orders[i] = histoFacet.keyOrder();
+			heap.add(histoFacet, orders[i], 0, histoFacet.size);
+			capacity += histoFacet.size;
+		}
+		merged.allocate(capacity(capacity));
+		merged.moments.addSquares(merged.mergeBins(heap));
+		merged.setMoments(merged.moments);
+		Releasables.close(orders);
+		return merged;
+	}
+
+	/**
+	 * Returns an empty facet with the same binning as this one, holding the summed
+	 * underflows and overflows of the given facets, and their summed linear moments.
+	 */
+	InternalDecimalHistogramFacet mergeOverflows(List<? extends Facet> facets) {
+		InternalDecimalHistogramFacet merged = new InternalDecimalHistogramFacet(this);
 		for (Facet facet : facets) {
 			InternalDecimalHistogramFacet histoFacet = (InternalDecimalHistogramFacet) facet;
-			for (DecimalEntry entry : histoFacet.entries) {
-
-				if(counts.v().containsKey(entry.getKey()))
-					counts.v().put(entry.getKey(),counts.v().get(entry.getKey()).add(entry));
-				else
-					counts.v().put(entry.getKey(), entry);
-			}
-		}
-		if(!counts.v().containsKey(Integer.MIN_VALUE))
-			counts.v().put(Integer.MIN_VALUE, new DecimalEntry(Integer.MIN_VALUE,0,0.,0.));
-		if(!counts.v().containsKey(Integer.MAX_VALUE))
-			counts.v().put(Integer.MAX_VALUE, new DecimalEntry(Integer.MAX_VALUE,0,0.,0.));
-		final boolean[] states = counts.v().allocated;
-		final long[] keys = counts.v().keys;
-		final Object[] values = counts.v().values;
-		DecimalEntry[] localentries = new DecimalEntry[counts.v().size()];
-		int entryIndex = 0;
-		for (int i = (this.nbins==0?0:1); i < states.length-(this.nbins==0?0:1); ++i) {
-			if (states[i]) {
-				DecimalEntry entry = (DecimalEntry)values[i];
-				localentries[entryIndex++] = new DecimalEntry(keys[i], entry.getCount(),
-							entry.getBinContent(), entry.getSumOfSquares());
-				this.nentries += entry.getCount();
-				this.integral += entry.getBinContent();
-				this.mean += (entry.key*interval+xmin)*entry.getBinContent();
-			}
-		}
-		if(nbins!=0){
-			if(states[0]){
-				DecimalEntry entry = (DecimalEntry)values[0];
-				this.underflows=entry.getBinContent();
-			}
-			if(states[states.length-1]){
-				DecimalEntry entry = (DecimalEntry)values[states.length-1];
-				this.overflows=entry.getBinContent();
-			}
-		}
-		this.mean /= this.integral;
-		for (int i = (this.nbins==0?0:1); i < states.length-(this.nbins==0?0:1); ++i) {
-			if (states[i]) {
-				DecimalEntry entry = (DecimalEntry)values[i];
-				this.rms += ((entry.key*interval+xmin)*this.interval*entry.getBinContent()-this.mean)*
-						((entry.key*interval+xmin)*entry.getBinContent()-this.mean);
-			}
-		}
-		this.rms = Math.sqrt(this.rms);
-		this.rms/=this.integral;
-		counts.close();
-		Arrays.sort(localentries, comparatorType.comparator());
-		if(nbins==0)
-			return new InternalDecimalHistogramFacet(getName(), interval, offset, comparatorType, localentries);
-		else
-			return new InternalDecimalHistogramFacet(getName(), nbins, xmin, xmax, comparatorType, localentries);
+			merged.weighted |= histoFacet.weighted;
+			merged.memory += histoFacet.memory;
+			merged.underflowCount += histoFacet.underflowCount;
+			merged.underflows += histoFacet.underflows;
+			merged.underflowSumOfSquares += histoFacet.underflowSumOfSquares;
+			merged.overflowCount += histoFacet.overflowCount;
+			merged.overflows += histoFacet.overflows;
+			merged.overflowSumOfSquares += histoFacet.overflowSumOfSquares;
+			merged.otherCount += histoFacet.otherCount;
+			merged.countError += histoFacet.countError;
+			merged.moments.addLinear(histoFacet.moments);
+		}
+		return merged;
+	}
+
+	/**
+	 * Returns the number of bins needed to hold the given number of input bins.
+	 */
+	int capacity(long bins) {
+		if (nbins != 0) {
+			bins = Math.min(bins, nbins);
+		}
+		return (int) Math.min(bins, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Appends the merged bins of the heap to the allocated, empty arrays of this facet,
+	 * and returns the squares of their moments.
+	 */
+	Moments mergeBins(MergeHeap heap) {
+		Moments moments = new Moments();
+		int last = -1;
+		while (!heap.isEmpty()) {
+			InternalDecimalHistogramFacet top = heap.top();
+			int i = heap.topIndex();
+			long key = top.keys.get(i);
+			if (last >= 0 && keys.get(last) == key) {
+				add(last, top.counts.get(i), top.binContent(i), top.sumOfSquares(i));
+			} else {
+				if (last >= 0) {
+					moments.addSquares(lowEdge(keys.get(last)), binContent(last));
+				}
+				set(++last, key, top.counts.get(i), top.binContent(i), top.sumOfSquares(i));
+			}
+			heap.next();
+		}
+		if (last >= 0) {
+			moments.addSquares(lowEdge(keys.get(last)), binContent(last));
+		}
+		size = last + 1;
+		return moments;
+	}
+
+	/**
+	 * Min-heap of cursors over ranges of the bins of several facets, ordered by the key
+	 * of the current bin of each cursor. Equal keys are taken in the order the cursors
+	 * were added, so that sums do not depend on the shape of the heap. The current key
+	 * of each cursor is kept at hand, rather than looked up in its paged arrays for each
+	 * comparison.
+	 */
+	static final class MergeHeap {
+
+		private final InternalDecimalHistogramFacet[] facets;
+		private final IntArray[] orders;
+		private final int[] positions;
+		private final int[] ends;
+		private final long[] keys;
+		private final int[] heap;
+		private int size;
+		private int cursors;
+
+		MergeHeap(int capacity) {
+			facets = new InternalDecimalHistogramFacet[capacity];
+			orders = new IntArray[capacity];
+			positions = new int[capacity];
+			ends = new int[capacity];
+			keys = new long[capacity];
+			heap = new int[capacity];
+		}
+
+		/**
+		 * Adds the bins from position from (inclusive) to to (exclusive) of the given
+		 * facet, in the key order given by order, or in array order if order is null.
+		 */
+		void add(InternalDecimalHistogramFacet facet, IntArray order, int from, int to) {
+			if (from >= to) {
+				return;
+			}
+			int cursor = cursors++;
+			facets[cursor] = facet;
+			orders[cursor] = order;
+			positions[cursor] = from;
+			ends[cursor] = to;
+			keys[cursor] = facet.keys.get(index(cursor));
+			heap[size++] = cursor;
+			siftUp(size - 1);
+		}
+
+		boolean isEmpty() {
+			return size == 0;
+		}
+
+		InternalDecimalHistogramFacet top() {
+			return facets[heap[0]];
+		}
+
+		int topIndex() {
+			return index(heap[0]);
+		}
+
+		/**
+		 * Advances the top cursor, dropping it once it is exhausted.
+		 */
+		void next() {
+			int cursor = heap[0];
+			if (++positions[cursor] == ends[cursor]) {
+				heap[0] = heap[--size];
+			} else {
+				keys[cursor] = facets[cursor].keys.get(index(cursor));
+			}
+			siftDown(0);
+		}
+
+		private int index(int cursor) {
+			return InternalDecimalHistogramFacet.index(orders[cursor], positions[cursor]);
+		}
+
+		private boolean less(int cursor1, long key1, int cursor2) {
+			long key2 = keys[cursor2];
+			return key1 < key2 || (key1 == key2 && cursor1 < cursor2);
+		}
+
+		private void siftUp(int i) {
+			int cursor = heap[i];
+			long key = keys[cursor];
+			while (i > 0) {
+				int parent = (i - 1) >>> 1;
+				if (!less(cursor, key, heap[parent])) {
+					break;
+				}
+				heap[i] = heap[parent];
+				i = parent;
+			}
+			heap[i] = cursor;
+		}
+
+		private void siftDown(int i) {
+			if (size == 0) {
+				return;
+			}
+			int cursor = heap[i];
+			long key = keys[cursor];
+			while (true) {
+				int child = 2 * i + 1;
+				if (child >= size) {
+					break;
+				}
+				if (child + 1 < size && less(heap[child + 1], keys[heap[child + 1]], heap[child])) {
+					child++;
+				}
+				if (less(cursor, key, heap[child])) {
+					break;
+				}
+				heap[i] = heap[child];
+				i = child;
+			}
+			heap[i] = cursor;
+		}
+	}
+
+	/**
+	 * Sorts the bins in place, according to the comparator type.
+	 */
+	void sort() {
+		sort(comparatorType);
+		sorted = true;
+	}
+
+	/**
+	 * Bins that are in order already, as they are after merging or reading them in key
+	 * order, are left as they are.
+	 */
+	private void sort(final ComparatorType comparatorType) {
+		IntroSorter sorter = new IntroSorter() {
+
+			private long pivotKey;
+			private long pivotCount;
+			private double pivotContent;
+
+			@Override
+			protected void swap(int i, int j) {
+				long key = keys.get(i);
+				long count = counts.get(i);
+				double content = binContent(i);
+				double squares = sumOfSquares(i);
+				set(i, keys.get(j), counts.get(j), binContent(j), sumOfSquares(j));
+				set(j, key, count, content, squares);
+			}
+
+			@Override
+			protected int compare(int i, int j) {
+				return compareBins(comparatorType, i, j);
+			}
+
+			@Override
+			protected void setPivot(int i) {
+				pivotKey = keys.get(i);
+				pivotCount = counts.get(i);
+				pivotContent = binContent(i);
+			}
+
+			@Override
+			protected int comparePivot(int j) {
+				return InternalDecimalHistogramFacet.compare(comparatorType, pivotKey, pivotCount, pivotContent, keys.get(j), counts.get(j), binContent(j));
+			}
+		};
+		for (int i = 1; i < size; ++i) {
+			if (compareBins(comparatorType, i - 1, i) > 0) {
+				sorter.sort(0, size);
+				return;
+			}
+		}
+	}
+
+	private int compareBins(ComparatorType comparatorType, int i, int j) {
+		return compare(comparatorType, keys.get(i), counts.get(i), binContent(i), keys.get(j), counts.get(j), binContent(j));
+	}
+
+	private static int compare(ComparatorType comparatorType, long key1, long count1, double content1, long key2, long count2, double content2) {
+		int cmp = 0;
+		if (comparatorType == ComparatorType.COUNT) {
+			cmp = Long.compare(count1, count2);
+		} else if (comparatorType == ComparatorType.TOTAL) {
+			cmp = Double.compare(content1, content2);
+		}
+		return cmp != 0 ? cmp : Long.compare(key1, key2);
 	}
 
 	private interface Fields {
@@ -321,11 +929,17 @@ public class InternalDecimalHistogramFacet extends InternalFacet implements Deci
 		final XContentBuilderString ENTRIES = new XContentBuilderString("entries");
 		final XContentBuilderString BINSIZE = new XContentBuilderString("binsize");
 		final XContentBuilderString NBIN = new XContentBuilderString("nbin");
+		final XContentBuilderString MAXBINS = new XContentBuilderString("max_bins");
+		final XContentBuilderString LOGBASE = new XContentBuilderString("log_base");
+		final XContentBuilderString EDGES = new XContentBuilderString("edges");
+		final XContentBuilderString MEMORY = new XContentBuilderString("bucket_memory_in_bytes");
 		final XContentBuilderString INTEGRAL = new XContentBuilderString("integral");
 		final XContentBuilderString MEAN = new XContentBuilderString("mean");
 		final XContentBuilderString RMS = new XContentBuilderString("rms");
 		final XContentBuilderString UNDERFLOWS = new XContentBuilderString("underflows");
 		final XContentBuilderString OVERFLOWS = new XContentBuilderString("overflows");
+		final XContentBuilderString OTHER_COUNT = new XContentBuilderString("other_count");
+		final XContentBuilderString COUNT_ERROR = new XContentBuilderString("count_error_upper_bound");
 		final XContentBuilderString BIN = new XContentBuilderString("bin");
 		final XContentBuilderString KEY = new XContentBuilderString("xLow");
 		final XContentBuilderString COUNT = new XContentBuilderString("count");
@@ -339,72 +953,381 @@ public class InternalDecimalHistogramFacet extends InternalFacet implements Deci
 		builder.field(Fields._TYPE, DecimalHistogramFacet.TYPE);
 		builder.field(Fields.BINSIZE, interval);
 		builder.field(Fields.NBIN, nbins);
+		if (maxBins != 0) {
+			builder.field(Fields.MAXBINS, maxBins);
+		}
+		if (logBase != 0.) {
+			builder.field(Fields.LOGBASE, logBase);
+		}
+		if (edges != null) {
+			builder.field(Fields.EDGES, edges);
+		}
 		builder.field(Fields.INTEGRAL, integral);
 		builder.field(Fields.MEAN, mean);
 		builder.field(Fields.RMS,rms);
 		builder.field(Fields.UNDERFLOWS, underflows);
 		builder.field(Fields.OVERFLOWS, overflows);
+		if (requiredSize != 0) {
+			builder.field(Fields.OTHER_COUNT, otherCount);
+			builder.field(Fields.COUNT_ERROR, countError);
+		}
+		builder.field(Fields.MEMORY, memory);
+		if (profile != null) {
+			profile.toXContent(builder, params);
+		}
 		builder.startArray(Fields.ENTRIES);
-		for (int i = (nbins==0?0:1); i < (nbins==0?entries.length:entries.length-1); i++) {
-			toXContent(entries[i], builder);
+		for (int i = 0; i < size; i++) {
+			builder.startObject();
+			long key = keys.get(i);
+			builder.field(Fields.BIN, key);
+			builder.field(Fields.KEY, lowEdge(key));
+			builder.field(Fields.COUNT, counts.get(i));
+			builder.field(Fields.BINCONTENT, binContent(i));
+			builder.field(Fields.ERROR, Math.sqrt(sumOfSquares(i)));
+			builder.endObject();
 		}
 		builder.endArray();
 		builder.endObject();
 		return builder;
 	}
 
-	private void toXContent(InternalDecimalHistogramFacet.DecimalEntry entry, XContentBuilder builder) throws IOException {
-		builder.startObject();
-		builder.field(Fields.BIN, entry.getKey());
-		builder.field(Fields.KEY, entry.getKey() * interval+xmin);
-		builder.field(Fields.COUNT, entry.getCount());
-		builder.field(Fields.BINCONTENT, entry.getBinContent());
-		builder.field(Fields.ERROR, Math.sqrt(entry.getSumOfSquares()));
-		builder.endObject();
-	}
-
 	public static InternalDecimalHistogramFacet readDecimalHistogramFacet(StreamInput in) throws IOException {
 		InternalDecimalHistogramFacet facet = new InternalDecimalHistogramFacet();
 		facet.readFrom(in);
 		return facet;
 	}
 
+	/**
+	 * Reads the format written by {@link #writeTo(StreamOutput)}. Bins arrive in key
+	 * order, and are put back into comparator order if the writer had sorted them.
+	 */
 	@Override
 	public void readFrom(StreamInput in) throws IOException {
 		super.readFrom(in);
+		byte version = in.readByte();
+		if (version != FORMAT_VERSION) {
+			throw new IOException("unsupported decimal histogram stream format [" + version + "]");
+		}
 		comparatorType = ComparatorType.fromId(in.readByte());
+		byte flags = in.readByte();
+		weighted = (flags & WEIGHTED) != 0;
 		interval = in.readDouble();
-		nbins = in.readInt();
-		int size = in.readVInt();
-		integral = in.readDouble();
-		mean = in.readDouble();
-		rms = in.readDouble();
-		underflows = in.readDouble();
-		overflows = in.readDouble();
-		entries = new DecimalEntry[size];
-		for (int i = (nbins==0?0:1); i < (nbins==0?size:size-1); i++) {
-			entries[i] = new DecimalEntry(in.readLong(), in.readVLong(), in.readDouble(), in.readDouble());
+		offset = in.readDouble();
+		nbins = in.readVInt();
+		maxBins = in.readVInt();
+		memory = in.readVLong();
+		xmin = in.readDouble();
+		xmax = in.readDouble();
+		if ((flags & LOG) != 0) {
+			logBase = in.readDouble();
+		}
+		if ((flags & EDGES) != 0) {
+			edges = new double[in.readVInt()];
+			for (int i = 0; i < edges.length; ++i) {
+				edges[i] = in.readDouble();
+			}
+		}
+		underflowCount = in.readVLong();
+		underflows = weighted ? in.readDouble() : underflowCount;
+		underflowSumOfSquares = weighted ? in.readDouble() : underflowCount;
+		overflowCount = in.readVLong();
+		overflows = weighted ? in.readDouble() : overflowCount;
+		overflowSumOfSquares = weighted ? in.readDouble() : overflowCount;
+		if ((flags & TRUNCATED) != 0) {
+			requiredSize = in.readVInt();
+			otherCount = in.readVLong();
+			countError = in.readVLong();
+		}
+		Moments moments = new Moments();
+		moments.entries = in.readVLong();
+		moments.integral = weighted ? in.readDouble() : moments.entries;
+		moments.sum = in.readDouble();
+		moments.squares = in.readDouble();
+		size = in.readVInt();
+		moments.bins = size;
+		allocate(size);
+		if ((flags & DENSE) != 0) {
+			readBitmap(in);
+			readPacked(in, counts, size, in.readByte());
+		} else if (size > 0) {
+			long key = in.readLong();
+			keys.set(0, key);
+			counts.set(0, in.readVLong());
+			for (int i = 1; i < size; ++i) {
+				key += in.readVLong();
+				keys.set(i, key);
+				counts.set(i, in.readVLong());
+			}
 		}
+		if (weighted) {
+			for (int i = 0; i < size; ++i) {
+				binContents.set(i, in.readDouble());
+				sumOfSquares.set(i, in.readDouble());
+			}
+		}
+		if ((flags & PROFILE) != 0) {
+			profile = FacetProfile.readFrom(in);
+		}
+		if ((flags & SORTED) != 0) {
+			sort();
+		}
+		setMoments(moments);
 	}
 
+	/**
+	 * Writes the bins in key order, with delta-encoded keys. The bin contents and sums
+	 * of squares are only written for weighted histograms, as they equal the counts
+	 * otherwise. Histograms with a fixed number of bins are written as a bitmap of the
+	 * non-empty bins plus bit-packed counts, if that is smaller. The size and error of
+	 * the top bins are only written if they were asked for, the moments always. A
+	 * profile follows the bins, and measures their size.
+	 */
 	@Override
 	public void writeTo(StreamOutput out) throws IOException {
 		super.writeTo(out);
+		if (profile == null) {
+			writeBins(out);
+			return;
+		}
+		BytesStreamOutput body = new BytesStreamOutput();
+		writeBins(body);
+		profile.writeTo(out, body);
+	}
+
+	private void writeBins(StreamOutput out) throws IOException {
+		IntArray order = keyOrder();
+		try {
+			writeBins(out, order);
+		} finally {
+			Releasables.close(order);
+		}
+	}
+
+	private void writeBins(StreamOutput out, IntArray order) throws IOException {
+		boolean dense = nbins != 0 && denseSize() < sparseSize(order);
+		out.writeByte(FORMAT_VERSION);
 		out.writeByte(comparatorType.id());
+		out.writeByte((byte) ((weighted ? WEIGHTED : 0) | (sorted ? SORTED : 0) | (dense ? DENSE : 0)
+			| (logBase != 0. ? LOG : 0) | (edges != null ? EDGES : 0) | (profile != null ? PROFILE : 0)
+			| (requiredSize != 0 ? TRUNCATED : 0)));
 		out.writeDouble(interval);
-		out.writeInt(nbins);
-		out.writeVInt(entries.length);
-		out.writeDouble(integral);
-		out.writeDouble(mean);
-		out.writeDouble(rms);
-		out.writeDouble(underflows);
-		out.writeDouble(overflows);
-		for (int i = (nbins==0?0:1); i < (nbins==0?entries.length:entries.length-1); i++) {
-			out.writeLong(entries[i].key);
-			out.writeLong(entries[i].key);
-			out.writeVLong(entries[i].count);
-			out.writeDouble(entries[i].binContent);
-			out.writeDouble(Math.sqrt(entries[i].sumOfSquares));
+		out.writeDouble(offset);
+		out.writeVInt(nbins);
+		out.writeVInt(maxBins);
+		out.writeVLong(memory);
+		out.writeDouble(xmin);
+		out.writeDouble(xmax);
+		if (logBase != 0.) {
+			out.writeDouble(logBase);
+		}
+		if (edges != null) {
+			out.writeVInt(edges.length);
+			for (double edge : edges) {
+				out.writeDouble(edge);
+			}
+		}
+		out.writeVLong(underflowCount);
+		if (weighted) {
+			out.writeDouble(underflows);
+			out.writeDouble(underflowSumOfSquares);
+		}
+		out.writeVLong(overflowCount);
+		if (weighted) {
+			out.writeDouble(overflows);
+			out.writeDouble(overflowSumOfSquares);
+		}
+		if (requiredSize != 0) {
+			out.writeVInt(requiredSize);
+			out.writeVLong(otherCount);
+			out.writeVLong(countError);
+		}
+		out.writeVLong(moments.entries);
+		if (weighted) {
+			out.writeDouble(moments.integral);
+		}
+		out.writeDouble(moments.sum);
+		out.writeDouble(moments.squares);
+		out.writeVInt(size);
+		if (dense) {
+			writeBitmap(out, order);
+			int bitsPerValue = bitsPerCount();
+			out.writeByte((byte) bitsPerValue);
+			writePacked(out, order, bitsPerValue);
+		} else if (size > 0) {
+			long key = keys.get(index(order, 0));
+			out.writeLong(key);
+			out.writeVLong(counts.get(index(order, 0)));
+			for (int i = 1; i < size; ++i) {
+				int j = index(order, i);
+				out.writeVLong(keys.get(j) - key);
+				out.writeVLong(counts.get(j));
+				key = keys.get(j);
+			}
+		}
+		if (weighted) {
+			for (int i = 0; i < size; ++i) {
+				int j = index(order, i);
+				out.writeDouble(binContent(j));
+				out.writeDouble(sumOfSquares(j));
+			}
+		}
+	}
+
+	/**
+	 * Writes a bitmap of the non-empty bins, one bit per bin, byte by byte as the bins
+	 * are visited in key order.
+	 */
+	private void writeBitmap(StreamOutput out, IntArray order) throws IOException {
+		int index = 0;
+		int bits = 0;
+		for (int i = 0; i < size; ++i) {
+			int bin = (int) keys.get(index(order, i));
+			while (index < bin >>> 3) {
+				out.writeByte((byte) bits);
+				bits = 0;
+				index++;
+			}
+			bits |= 1 << (bin & 7);
+		}
+		for (int bytes = (nbins + 7) >>> 3; index < bytes; ++index) {
+			out.writeByte((byte) bits);
+			bits = 0;
+		}
+	}
+
+	private void readBitmap(StreamInput in) throws IOException {
+		int i = 0;
+		for (int index = 0, bytes = (nbins + 7) >>> 3; index < bytes; ++index) {
+			int bits = in.readByte() & 0xFF;
+			while (bits != 0) {
+				keys.set(i++, (index << 3) + Integer.numberOfTrailingZeros(bits));
+				bits &= bits - 1;
+			}
+		}
+	}
+
+	/**
+	 * Returns the indexes of the bins in key order, or null if the bins are in key order
+	 * already. The indexes are to be released once they are no longer needed.
+	 */
+	IntArray keyOrder() {
+		boolean ordered = true;
+		for (int i = 1; i < size && ordered; ++i) {
+			ordered = keys.get(i - 1) < keys.get(i);
+		}
+		if (ordered) {
+			return null;
+		}
+		final IntArray order = BINS.newIntArray(size, false);
+		for (int i = 0; i < size; ++i) {
+			order.set(i, i);
+		}
+		new IntroSorter() {
+
+			private long pivot;
+
+			@Override
+			protected void swap(int i, int j) {
+				order.set(i, order.set(j, order.get(i)));
+			}
+
+			@Override
+			protected int compare(int i, int j) {
+				return Long.compare(keys.get(order.get(i)), keys.get(order.get(j)));
+			}
+
+			@Override
+			protected void setPivot(int i) {
+				pivot = keys.get(order.get(i));
+			}
+
+			@Override
+			protected int comparePivot(int j) {
+				return Long.compare(pivot, keys.get(order.get(j)));
+			}
+		}.sort(0, size);
+		return order;
+	}
+
+	/**
+	 * Returns the index of the i-th bin in the given key order, or i if it is null.
+	 */
+	static int index(IntArray order, int i) {
+		return order == null ? i : order.get(i);
+	}
+
+	private int bitsPerCount() {
+		long max = 1;
+		for (int i = 0; i < size; ++i) {
+			max = Math.max(max, counts.get(i));
+		}
+		return 64 - Long.numberOfLeadingZeros(max);
+	}
+
+	private long denseSize() {
+		return ((nbins + 7) >>> 3) + 1 + (((long) size * bitsPerCount() + 63) >>> 6) * 8;
+	}
+
+	private long sparseSize(IntArray order) {
+		long bytes = 0;
+		long previous = 0;
+		for (int i = 0; i < size; ++i) {
+			int j = index(order, i);
+			long key = keys.get(j);
+			bytes += vLongSize(i == 0 ? 0 : key - previous) + vLongSize(counts.get(j));
+			previous = key;
+		}
+		return bytes + 8;
+	}
+
+	private static int vLongSize(long value) {
+		int bytes = 1;
+		while ((value & ~0x7FL) != 0) {
+			value >>>= 7;
+			bytes++;
+		}
+		return bytes;
+	}
+
+	/**
+	 * Writes the counts of the bins in the given key order, packed into longs with the
+	 * given number of bits each.
+	 */
+	private void writePacked(StreamOutput out, IntArray order, int bitsPerValue) throws IOException {
+		long word = 0;
+		int used = 0;
+		for (int i = 0; i < size; ++i) {
+			long value = counts.get(index(order, i));
+			word |= value << used;
+			used += bitsPerValue;
+			if (used >= 64) {
+				out.writeLong(word);
+				used -= 64;
+				word = used == 0 ? 0 : value >>> (bitsPerValue - used);
+			}
+		}
+		if (used > 0) {
+			out.writeLong(word);
+		}
+	}
+
+	private static void readPacked(StreamInput in, LongArray values, int n, int bitsPerValue) throws IOException {
+		long mask = bitsPerValue == 64 ? -1L : (1L << bitsPerValue) - 1;
+		long word = 0;
+		int available = 0;
+		for (int i = 0; i < n; ++i) {
+			if (available >= bitsPerValue) {
+				values.set(i, word & mask);
+				word = bitsPerValue == 64 ? 0 : word >>> bitsPerValue;
+				available -= bitsPerValue;
+			} else {
+				long next = in.readLong();
+				long value = word | (available == 0 ? next : next << available);
+				values.set(i, value & mask);
+				int consumed = bitsPerValue - available;
+				word = consumed == 64 ? 0 : next >>> consumed;
+				available = 64 - consumed;
+			}
 		}
 	}
 }
@@ -0,0 +1,149 @@
+package com.zenobase.search.facet.decimalhistogram;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.bytes.HashedBytesArray;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentBuilderString;
+import org.elasticsearch.search.facet.Facet;
+import org.elasticsearch.search.facet.InternalFacet;
+
+/**
+ * The histograms of a multi-histogram facet, reduced and streamed together.
+ */
+public class InternalDecimalHistogramsFacet extends InternalFacet implements DecimalHistogramsFacet {
+
+	private static final BytesReference STREAM_TYPE = new HashedBytesArray(Strings.toUTF8Bytes("decimalHistograms"));
+
+	public static void registerStreams() {
+		Streams.registerStream(STREAM, STREAM_TYPE);
+	}
+
+	static InternalFacet.Stream STREAM = new Stream() {
+
+		@Override
+		public Facet readFacet(StreamInput in) throws IOException {
+			InternalDecimalHistogramsFacet facet = new InternalDecimalHistogramsFacet();
+			facet.readFrom(in);
+			return facet;
+		}
+	};
+
+	@Override
+	public BytesReference streamType() {
+		return STREAM_TYPE;
+	}
+
+	private List<InternalDecimalHistogramFacet> histograms;
+	/**
+	 * Measurements of the execution, if a profile was asked for, or null.
+	 */
+	FacetProfile profile;
+
+	InternalDecimalHistogramsFacet() {
+
+	}
+
+	public InternalDecimalHistogramsFacet(String name, List<InternalDecimalHistogramFacet> histograms) {
+		super(name);
+		this.histograms = histograms;
+	}
+
+	@Override
+	public String getType() {
+		return TYPE;
+	}
+
+	@Override
+	public List<InternalDecimalHistogramFacet> getHistograms() {
+		return histograms;
+	}
+
+	/**
+	 * Reduces each histogram with the histograms at the same position in the other
+	 * facets.
+	 */
+	@Override
+	public Facet reduce(ReduceContext context) {
+		List<Facet> facets = context.facets();
+		long start = System.nanoTime();
+		List<InternalDecimalHistogramFacet> reduced = new ArrayList<>(histograms.size());
+		for (int i = 0; i < histograms.size(); ++i) {
+			List<Facet> histogramFacets = new ArrayList<>(facets.size());
+			for (Facet facet : facets) {
+				histogramFacets.add(((InternalDecimalHistogramsFacet) facet).histograms.get(i));
+			}
+			reduced.add((InternalDecimalHistogramFacet) histograms.get(i).reduce(new ReduceContext(context.cacheRecycler(), histogramFacets)));
+		}
+		InternalDecimalHistogramsFacet result = new InternalDecimalHistogramsFacet(getName(), reduced);
+		List<FacetProfile> profiles = new ArrayList<>(facets.size());
+		for (Facet facet : facets) {
+			profiles.add(((InternalDecimalHistogramsFacet) facet).profile);
+		}
+		result.profile = FacetProfile.reduce(profiles, System.nanoTime() - start, FacetMetrics.of(context.cacheRecycler()));
+		return result;
+	}
+
+	private interface Fields {
+
+		final XContentBuilderString _TYPE = new XContentBuilderString("_type");
+		final XContentBuilderString HISTOGRAMS = new XContentBuilderString("histograms");
+	}
+
+	@Override
+	public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+		builder.startObject(getName());
+		builder.field(Fields._TYPE, TYPE);
+		if (profile != null) {
+			profile.toXContent(builder, params);
+		}
+		builder.startObject(Fields.HISTOGRAMS);
+		for (InternalDecimalHistogramFacet histogram : histograms) {
+			histogram.toXContent(builder, params);
+		}
+		builder.endObject();
+		builder.endObject();
+		return builder;
+	}
+
+	@Override
+	public void readFrom(StreamInput in) throws IOException {
+		super.readFrom(in);
+		boolean profiled = in.readBoolean();
+		int size = in.readVInt();
+		histograms = new ArrayList<>(size);
+		for (int i = 0; i < size; ++i) {
+			histograms.add(InternalDecimalHistogramFacet.readDecimalHistogramFacet(in));
+		}
+		if (profiled) {
+			profile = FacetProfile.readFrom(in);
+		}
+	}
+
+	@Override
+	public void writeTo(StreamOutput out) throws IOException {
+		super.writeTo(out);
+		out.writeBoolean(profile != null);
+		if (profile == null) {
+			writeHistograms(out);
+			return;
+		}
+		BytesStreamOutput body = new BytesStreamOutput();
+		writeHistograms(body);
+		profile.writeTo(out, body);
+	}
+
+	private void writeHistograms(StreamOutput out) throws IOException {
+		out.writeVInt(histograms.size());
+		for (InternalDecimalHistogramFacet histogram : histograms) {
+			histogram.writeTo(out);
+		}
+	}
+}
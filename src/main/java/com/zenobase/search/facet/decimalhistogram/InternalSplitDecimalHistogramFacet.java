@@ -0,0 +1,171 @@
+package com.zenobase.search.facet.decimalhistogram;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.bytes.HashedBytesArray;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentBuilderString;
+import org.elasticsearch.search.facet.Facet;
+import org.elasticsearch.search.facet.InternalFacet;
+
+/**
+ * One histogram per term of a split field, in term order. Shard results are merged by
+ * term bytes, so a term need not occur on every shard.
+ */
+public class InternalSplitDecimalHistogramFacet extends InternalFacet implements DecimalHistogramsFacet {
+
+	private static final BytesReference STREAM_TYPE = new HashedBytesArray(Strings.toUTF8Bytes("splitDecimalHistogram"));
+
+	public static void registerStreams() {
+		Streams.registerStream(STREAM, STREAM_TYPE);
+	}
+
+	static InternalFacet.Stream STREAM = new Stream() {
+
+		@Override
+		public Facet readFacet(StreamInput in) throws IOException {
+			InternalSplitDecimalHistogramFacet facet = new InternalSplitDecimalHistogramFacet();
+			facet.readFrom(in);
+			return facet;
+		}
+	};
+
+	@Override
+	public BytesReference streamType() {
+		return STREAM_TYPE;
+	}
+
+	private List<BytesRef> terms;
+	private List<InternalDecimalHistogramFacet> histograms;
+	/**
+	 * Measurements of the execution, if a profile was asked for, or null.
+	 */
+	FacetProfile profile;
+
+	InternalSplitDecimalHistogramFacet() {
+
+	}
+
+	/**
+	 * @param terms the terms in ascending order, each named after its histogram
+	 */
+	public InternalSplitDecimalHistogramFacet(String name, List<BytesRef> terms, List<InternalDecimalHistogramFacet> histograms) {
+		super(name);
+		this.terms = terms;
+		this.histograms = histograms;
+	}
+
+	@Override
+	public String getType() {
+		return DecimalHistogramFacet.TYPE;
+	}
+
+	public List<BytesRef> getTerms() {
+		return terms;
+	}
+
+	@Override
+	public List<InternalDecimalHistogramFacet> getHistograms() {
+		return histograms;
+	}
+
+	@Override
+	public Facet reduce(ReduceContext context) {
+		long start = System.nanoTime();
+		Map<BytesRef, List<Facet>> byTerm = new TreeMap<>();
+		for (Facet facet : context.facets()) {
+			InternalSplitDecimalHistogramFacet split = (InternalSplitDecimalHistogramFacet) facet;
+			for (int i = 0; i < split.terms.size(); ++i) {
+				List<Facet> facets = byTerm.get(split.terms.get(i));
+				if (facets == null) {
+					facets = new ArrayList<>(context.facets().size());
+					byTerm.put(split.terms.get(i), facets);
+				}
+				facets.add(split.histograms.get(i));
+			}
+		}
+		List<BytesRef> reducedTerms = new ArrayList<>(byTerm.size());
+		List<InternalDecimalHistogramFacet> reduced = new ArrayList<>(byTerm.size());
+		for (Map.Entry<BytesRef, List<Facet>> entry : byTerm.entrySet()) {
+			List<Facet> facets = entry.getValue();
+			reducedTerms.add(entry.getKey());
+			reduced.add((InternalDecimalHistogramFacet) ((InternalFacet) facets.get(0)).reduce(new ReduceContext(context.cacheRecycler(), facets)));
+		}
+		InternalSplitDecimalHistogramFacet result = new InternalSplitDecimalHistogramFacet(getName(), reducedTerms, reduced);
+		List<FacetProfile> profiles = new ArrayList<>(context.facets().size());
+		for (Facet facet : context.facets()) {
+			profiles.add(((InternalSplitDecimalHistogramFacet) facet).profile);
+		}
+		result.profile = FacetProfile.reduce(profiles, System.nanoTime() - start, FacetMetrics.of(context.cacheRecycler()));
+		return result;
+	}
+
+	private interface Fields {
+
+		final XContentBuilderString _TYPE = new XContentBuilderString("_type");
+		final XContentBuilderString HISTOGRAMS = new XContentBuilderString("histograms");
+	}
+
+	@Override
+	public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+		builder.startObject(getName());
+		builder.field(Fields._TYPE, DecimalHistogramFacet.TYPE);
+		if (profile != null) {
+			profile.toXContent(builder, params);
+		}
+		builder.startObject(Fields.HISTOGRAMS);
+		for (InternalDecimalHistogramFacet histogram : histograms) {
+			histogram.toXContent(builder, params);
+		}
+		builder.endObject();
+		builder.endObject();
+		return builder;
+	}
+
+	@Override
+	public void readFrom(StreamInput in) throws IOException {
+		super.readFrom(in);
+		boolean profiled = in.readBoolean();
+		int size = in.readVInt();
+		terms = new ArrayList<>(size);
+		histograms = new ArrayList<>(size);
+		for (int i = 0; i < size; ++i) {
+			terms.add(in.readBytesRef());
+			histograms.add(InternalDecimalHistogramFacet.readDecimalHistogramFacet(in));
+		}
+		if (profiled) {
+			profile = FacetProfile.readFrom(in);
+		}
+	}
+
+	@Override
+	public void writeTo(StreamOutput out) throws IOException {
+		super.writeTo(out);
+		out.writeBoolean(profile != null);
+		if (profile == null) {
+			writeHistograms(out);
+			return;
+		}
+		BytesStreamOutput body = new BytesStreamOutput();
+		writeHistograms(body);
+		profile.writeTo(out, body);
+	}
+
+	private void writeHistograms(StreamOutput out) throws IOException {
+		out.writeVInt(terms.size());
+		for (int i = 0; i < terms.size(); ++i) {
+			out.writeBytesRef(terms.get(i));
+			histograms.get(i).writeTo(out);
+		}
+	}
+}
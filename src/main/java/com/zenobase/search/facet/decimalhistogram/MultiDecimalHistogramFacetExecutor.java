@@ -0,0 +1,187 @@
+package com.zenobase.search.facet.decimalhistogram;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.Bits;
+import org.elasticsearch.common.recycler.Recycler;
+import org.elasticsearch.index.fielddata.FieldData;
+import org.elasticsearch.index.fielddata.IndexNumericFieldData;
+import org.elasticsearch.index.fielddata.NumericDoubleValues;
+import org.elasticsearch.index.fielddata.SortedNumericDoubleValues;
+import org.elasticsearch.search.facet.FacetExecutor;
+import org.elasticsearch.search.facet.InternalFacet;
+import org.elasticsearch.search.facet.histogram.HistogramFacet.ComparatorType;
+
+/**
+ * Fills several histograms, over one or more fields, in a single collection pass. The
+ * values of each field are read once per document, and binned by every histogram on
+ * that field.
+ */
+public class MultiDecimalHistogramFacetExecutor extends FacetExecutor {
+
+	/**
+	 * One of the requested histograms.
+	 */
+	abstract static class Spec {
+
+		final String name;
+		final IndexNumericFieldData fieldData;
+		final ComparatorType comparatorType;
+
+		Spec(String name, IndexNumericFieldData fieldData, ComparatorType comparatorType) {
+			this.name = name;
+			this.fieldData = fieldData;
+			this.comparatorType = comparatorType;
+		}
+
+		abstract void add(double value);
+
+		abstract InternalDecimalHistogramFacet build();
+	}
+
+	static final class IntervalSpec extends Spec {
+
+		private final double interval;
+		private final double offset;
+		private final Recycler.V<DecimalBucketMap> counts;
+
+		IntervalSpec(String name, IndexNumericFieldData fieldData, double interval, double offset, ComparatorType comparatorType, BucketBudget budget) {
+			super(name, fieldData, comparatorType);
+			this.counts = DecimalBucketMap.obtain(budget);
+			this.interval = interval;
+			this.offset = offset;
+		}
+
+		@Override
+		void add(double value) {
+			counts.v().increment((long) Math.floor((value + offset) / interval));
+		}
+
+		@Override
+		InternalDecimalHistogramFacet build() {
+			InternalDecimalHistogramFacet facet = new InternalDecimalHistogramFacet(name, interval, offset, comparatorType, counts.v());
+			counts.close();
+			return facet;
+		}
+	}
+
+	static final class FixedBinsSpec extends Spec {
+
+		private final FixedBins bins;
+
+		FixedBinsSpec(String name, IndexNumericFieldData fieldData, int nbin, double xmin, double xmax, ComparatorType comparatorType, BucketBudget budget) {
+			super(name, fieldData, comparatorType);
+			budget.charge(FixedBins.bytes(nbin, false));
+			this.bins = new FixedBins(budget.bigArrays, nbin, xmin, xmax);
+		}
+
+		@Override
+		void add(double value) {
+			bins.increment(bins.slot(value));
+		}
+
+		@Override
+		InternalDecimalHistogramFacet build() {
+			InternalDecimalHistogramFacet facet = new InternalDecimalHistogramFacet(name, bins, comparatorType);
+			bins.close();
+			return facet;
+		}
+	}
+
+	private final List<Spec> specs;
+	private final IndexNumericFieldData[] fields;
+	private final Spec[][] specsByField;
+
+	MultiDecimalHistogramFacetExecutor(List<Spec> specs) {
+		this.specs = specs;
+		Map<String, List<Spec>> byField = new LinkedHashMap<>();
+		Map<String, IndexNumericFieldData> fieldData = new LinkedHashMap<>();
+		for (Spec spec : specs) {
+			String field = spec.fieldData.getFieldNames().indexName();
+			if (!byField.containsKey(field)) {
+				byField.put(field, new ArrayList<Spec>());
+				fieldData.put(field, spec.fieldData);
+			}
+			byField.get(field).add(spec);
+		}
+		this.fields = fieldData.values().toArray(new IndexNumericFieldData[fieldData.size()]);
+		this.specsByField = new Spec[fields.length][];
+		int i = 0;
+		for (List<Spec> fieldSpecs : byField.values()) {
+			specsByField[i++] = fieldSpecs.toArray(new Spec[fieldSpecs.size()]);
+		}
+	}
+
+	@Override
+	public FacetExecutor.Collector collector() {
+		return new Collector();
+	}
+
+	@Override
+	public InternalFacet buildFacet(String facetName) {
+		List<InternalDecimalHistogramFacet> histograms = new ArrayList<>(specs.size());
+		for (Spec spec : specs) {
+			histograms.add(spec.build());
+		}
+		return new InternalDecimalHistogramsFacet(facetName, histograms);
+	}
+
+	private final class Collector extends FacetExecutor.Collector {
+
+		private final SortedNumericDoubleValues[] values = new SortedNumericDoubleValues[fields.length];
+		private final NumericDoubleValues[] singleValues = new NumericDoubleValues[fields.length];
+		private final Bits[] docsWithField = new Bits[fields.length];
+		private double[] buffer = new double[1];
+
+		@Override
+		public void setNextReader(AtomicReaderContext context) throws IOException {
+			for (int f = 0; f < fields.length; ++f) {
+				values[f] = fields[f].load(context).getDoubleValues();
+				singleValues[f] = FieldData.unwrapSingleton(values[f]);
+				docsWithField[f] = singleValues[f] != null ? FieldData.unwrapSingletonBits(values[f]) : null;
+				if (docsWithField[f] instanceof Bits.MatchAllBits) {
+					docsWithField[f] = null;
+				}
+			}
+		}
+
+		@Override
+		public void collect(int doc) throws IOException {
+			for (int f = 0; f < fields.length; ++f) {
+				Spec[] specs = specsByField[f];
+				if (singleValues[f] != null) {
+					double value = singleValues[f].get(doc);
+					if (value != 0.0 || docsWithField[f] == null || docsWithField[f].get(doc)) {
+						for (Spec spec : specs) {
+							spec.add(value);
+						}
+					}
+					continue;
+				}
+				SortedNumericDoubleValues values = this.values[f];
+				values.setDocument(doc);
+				int count = values.count();
+				buffer = ArrayUtil.grow(buffer, count);
+				for (int i = 0; i < count; ++i) {
+					buffer[i] = values.valueAt(i);
+				}
+				for (Spec spec : specs) {
+					for (int i = 0; i < count; ++i) {
+						spec.add(buffer[i]);
+					}
+				}
+			}
+		}
+
+		@Override
+		public void postCollection() {
+
+		}
+	}
+}
@@ -0,0 +1,32 @@
+package com.zenobase.search.facet.decimalhistogram;
+
+import java.util.concurrent.ConcurrentMap;
+
+import org.elasticsearch.cache.recycler.CacheRecycler;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+
+/**
+ * Node level components that the facet reduce needs but cannot be injected with, since
+ * facets are created by their streams. The reduce context only carries the cache
+ * recycler of the node, so components are registered under it while the node runs.
+ */
+final class NodeRegistry<T> {
+
+	private final ConcurrentMap<CacheRecycler, T> components = ConcurrentCollections.newConcurrentMap();
+
+	void register(CacheRecycler recycler, T component) {
+		components.put(recycler, component);
+	}
+
+	void unregister(CacheRecycler recycler, T component) {
+		components.remove(recycler, component);
+	}
+
+	/**
+	 * Returns the component of the node, or null if there is none, e.g. on a node that is
+	 * stopping or on a client that does not run the plugin services.
+	 */
+	T get(CacheRecycler recycler) {
+		return recycler == null ? null : components.get(recycler);
+	}
+}
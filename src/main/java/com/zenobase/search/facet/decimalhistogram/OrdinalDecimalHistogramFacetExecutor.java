@@ -0,0 +1,146 @@
+package com.zenobase.search.facet.decimalhistogram;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.SortedNumericDocValues;
+import org.apache.lucene.util.Bits;
+import org.elasticsearch.common.recycler.Recycler;
+import org.elasticsearch.index.fielddata.IndexNumericFieldData;
+import org.elasticsearch.search.facet.FacetExecutor;
+import org.elasticsearch.search.facet.InternalFacet;
+import org.elasticsearch.search.facet.histogram.HistogramFacet.ComparatorType;
+
+/**
+ * Histogram of the bins stored by a {@link DecimalHistogramBinsFieldMapper} field, which
+ * counts the bin of each value as it was computed at index time. The histogram has the
+ * same bins as the field, and is the same as the histogram of the values.
+ */
+public class OrdinalDecimalHistogramFacetExecutor extends FacetExecutor {
+
+	private final IndexNumericFieldData binsFieldData;
+	private final ComparatorType comparatorType;
+	private final double interval;
+	private final double offset;
+	private final int nbins;
+	private final BucketBudget budget;
+
+	final Recycler.V<DecimalBucketMap> counts;
+	final FixedBins bins;
+
+	public OrdinalDecimalHistogramFacetExecutor(IndexNumericFieldData binsFieldData, int nbin, double xmin, double xmax, ComparatorType comparatorType, BucketBudget budget) {
+		this.binsFieldData = binsFieldData;
+		this.nbins = nbin;
+		this.interval = (xmax - xmin) / nbin;
+		this.offset = 0.0;
+		this.comparatorType = comparatorType;
+		this.budget = budget;
+		this.counts = null;
+		budget.charge(FixedBins.bytes(nbin, false));
+		this.bins = new FixedBins(budget.bigArrays, nbin, xmin, xmax);
+	}
+
+	public OrdinalDecimalHistogramFacetExecutor(IndexNumericFieldData binsFieldData, double interval, double offset, ComparatorType comparatorType, BucketBudget budget) {
+		this.binsFieldData = binsFieldData;
+		this.nbins = 0;
+		this.interval = interval;
+		this.offset = offset;
+		this.comparatorType = comparatorType;
+		this.budget = budget;
+		this.counts = DecimalBucketMap.obtain(budget);
+		this.bins = null;
+	}
+
+	@Override
+	public FacetExecutor.Collector collector() {
+		return nbins == 0 ? new IntervalCollector(counts.v()) : new FixedBinsCollector(bins);
+	}
+
+	@Override
+	public InternalFacet buildFacet(String facetName) {
+		if (nbins != 0) {
+			InternalDecimalHistogramFacet facet = new InternalDecimalHistogramFacet(facetName, bins, comparatorType);
+			bins.close();
+			facet.memory = budget.peak();
+			return facet;
+		}
+		InternalDecimalHistogramFacet facet = new InternalDecimalHistogramFacet(facetName, interval, offset, comparatorType, counts.v());
+		counts.close();
+		facet.memory = budget.peak();
+		return facet;
+	}
+
+	/**
+	 * Reads the bins of each document, without setDocument() and count() if the field is
+	 * single-valued in the segment.
+	 */
+	private abstract class Collector extends FacetExecutor.Collector {
+
+		private SortedNumericDocValues values;
+		private NumericDocValues singleValues;
+		private Bits docsWithValue;
+
+		@Override
+		public void setNextReader(AtomicReaderContext context) throws IOException {
+			values = binsFieldData.load(context).getLongValues();
+			singleValues = DocValues.unwrapSingleton(values);
+			docsWithValue = singleValues != null ? DocValues.unwrapSingletonBits(values) : null;
+			if (docsWithValue instanceof Bits.MatchAllBits) {
+				docsWithValue = null;
+			}
+		}
+
+		@Override
+		public void collect(int doc) throws IOException {
+			if (singleValues != null) {
+				long bin = singleValues.get(doc);
+				if (bin != 0L || docsWithValue == null || docsWithValue.get(doc)) {
+					increment(bin);
+				}
+				return;
+			}
+			values.setDocument(doc);
+			int count = values.count();
+			for (int i = 0; i < count; ++i) {
+				increment(values.valueAt(i));
+			}
+		}
+
+		protected abstract void increment(long bin);
+
+		@Override
+		public void postCollection() {
+
+		}
+	}
+
+	private final class IntervalCollector extends Collector {
+
+		private final DecimalBucketMap counts;
+
+		public IntervalCollector(DecimalBucketMap counts) {
+			this.counts = counts;
+		}
+
+		@Override
+		protected void increment(long bin) {
+			counts.increment(bin);
+		}
+	}
+
+	private final class FixedBinsCollector extends Collector {
+
+		private final FixedBins bins;
+
+		public FixedBinsCollector(FixedBins bins) {
+			this.bins = bins;
+		}
+
+		@Override
+		protected void increment(long bin) {
+			bins.increment((int) bin);
+		}
+	}
+}
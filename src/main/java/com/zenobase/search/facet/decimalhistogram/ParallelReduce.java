@@ -0,0 +1,186 @@
+package com.zenobase.search.facet.decimalhistogram;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.elasticsearch.common.lease.Releasables;
+import org.elasticsearch.common.util.IntArray;
+import org.elasticsearch.search.facet.Facet;
+
+import com.zenobase.search.facet.decimalhistogram.InternalDecimalHistogramFacet.MergeHeap;
+import com.zenobase.search.facet.decimalhistogram.InternalDecimalHistogramFacet.Moments;
+
+/**
+ * Reduces the results of many shards on the fork-join pool of the node, see
+ * {@link ParallelReduceService}. Merging shard results pairwise would change the order
+ * in which weighted bin contents are summed, so the key space is split into ranges
+ * instead, and each range is merged with the same k-way merge as the sequential reduce. The squares of the moments are then summed over all merged
+ * bins in key order, rather than per range. The output is identical to that of the
+ * sequential reduce.
+ */
+final class ParallelReduce {
+
+	/**
+	 * Ranges are not split further than this many input bins.
+	 */
+	private static final int MIN_BINS_PER_RANGE = 4096;
+
+	private ParallelReduce() {
+
+	}
+
+	/**
+	 * Merges the given facets on the given pool, or in the calling thread if it is null.
+	 */
+	static InternalDecimalHistogramFacet merge(InternalDecimalHistogramFacet prototype, List<? extends Facet> facets, ForkJoinPool pool) {
+		int n = facets.size();
+		InternalDecimalHistogramFacet[] inputs = new InternalDecimalHistogramFacet[n];
+		IntArray[] orders = new IntArray[n];
+		long total = 0;
+		for (int i = 0; i < n; ++i) {
+			inputs[i] = (InternalDecimalHistogramFacet) facets.get(i);
+			orders[i] = inputs[i].keyOrder();
+			total += inputs[i].size;
+		}
+		int ranges = (int) Math.min(pool == null ? 1 : pool.getParallelism() * 4, total / MIN_BINS_PER_RANGE + 1);
+		long[] splits = splits(inputs, orders, ranges);
+		int[][] bounds = new int[n][];
+		for (int i = 0; i < n; ++i) {
+			bounds[i] = bounds(inputs[i], orders[i], splits);
+		}
+
+		InternalDecimalHistogramFacet[] parts = new InternalDecimalHistogramFacet[splits.length + 1];
+		MergeRanges task = new MergeRanges(prototype, inputs, orders, bounds, parts, 0, parts.length);
+		try {
+			if (pool == null || parts.length == 1) {
+				task.compute();
+			} else {
+				pool.invoke(task);
+			}
+		} finally {
+			Releasables.close(orders);
+		}
+
+		InternalDecimalHistogramFacet merged = prototype.mergeOverflows(facets);
+		int size = 0;
+		for (InternalDecimalHistogramFacet part : parts) {
+			size += part.size;
+		}
+		merged.allocate(size);
+		Moments squares = new Moments();
+		for (InternalDecimalHistogramFacet part : parts) {
+			for (int i = 0; i < part.size; ++i) {
+				long key = part.keys.get(i);
+				double content = part.binContent(i);
+				merged.set(merged.size++, key, part.counts.get(i), content, part.sumOfSquares(i));
+				squares.addSquares(merged.lowEdge(key), content);
+			}
+		}
+		merged.moments.addSquares(squares);
+		merged.setMoments(merged.moments);
+		return merged;
+	}
+
+	/**
+	 * Picks up to ranges - 1 distinct split keys from the quantiles of a sample of the
+	 * keys of all inputs.
+	 */
+	private static long[] splits(InternalDecimalHistogramFacet[] inputs, IntArray[] orders, int ranges) {
+		if (ranges <= 1) {
+			return new long[0];
+		}
+		long[] samples = new long[inputs.length * (ranges - 1)];
+		int sampled = 0;
+		for (int i = 0; i < inputs.length; ++i) {
+			int size = inputs[i].size;
+			if (size == 0) {
+				continue;
+			}
+			for (int j = 1; j < ranges; ++j) {
+				int position = (int) ((long) j * size / ranges);
+				samples[sampled++] = inputs[i].keys.get(InternalDecimalHistogramFacet.index(orders[i], position));
+			}
+		}
+		Arrays.sort(samples, 0, sampled);
+		long[] splits = new long[ranges - 1];
+		int count = 0;
+		for (int j = 1; j < ranges && sampled > 0; ++j) {
+			long split = samples[(int) ((long) j * sampled / ranges)];
+			if (count == 0 || splits[count - 1] < split) {
+				splits[count++] = split;
+			}
+		}
+		return Arrays.copyOf(splits, count);
+	}
+
+	/**
+	 * Returns the positions, in key order, at which each range starts within the bins of
+	 * the given facet, followed by its size.
+	 */
+	private static int[] bounds(InternalDecimalHistogramFacet facet, IntArray order, long[] splits) {
+		int[] bounds = new int[splits.length + 2];
+		for (int r = 0; r < splits.length; ++r) {
+			int low = r == 0 ? 0 : bounds[r];
+			int high = facet.size;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (facet.keys.get(InternalDecimalHistogramFacet.index(order, mid)) < splits[r]) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			bounds[r + 1] = low;
+		}
+		bounds[splits.length + 1] = facet.size;
+		return bounds;
+	}
+
+	private static final class MergeRanges extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final InternalDecimalHistogramFacet prototype;
+		private final InternalDecimalHistogramFacet[] inputs;
+		private final IntArray[] orders;
+		private final int[][] bounds;
+		private final InternalDecimalHistogramFacet[] parts;
+		private final int from;
+		private final int to;
+
+		MergeRanges(InternalDecimalHistogramFacet prototype, InternalDecimalHistogramFacet[] inputs, IntArray[] orders, int[][] bounds, InternalDecimalHistogramFacet[] parts, int from, int to) {
+			this.prototype = prototype;
+			this.inputs = inputs;
+			this.orders = orders;
+			this.bounds = bounds;
+			this.parts = parts;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > 1) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new MergeRanges(prototype, inputs, orders, bounds, parts, from, mid),
+					new MergeRanges(prototype, inputs, orders, bounds, parts, mid, to));
+				return;
+			}
+			MergeHeap heap = new MergeHeap(inputs.length);
+			long capacity = 0;
+			for (int i = 0; i < inputs.length; ++i) {
+				heap.add(inputs[i], orders[i], bounds[i][from], bounds[i][from + 1]);
+				capacity += bounds[i][from + 1] - bounds[i][from];
+			}
+			InternalDecimalHistogramFacet part = new InternalDecimalHistogramFacet(prototype);
+			for (InternalDecimalHistogramFacet input : inputs) {
+				part.weighted |= input.weighted;
+			}
+			part.allocate(prototype.capacity(capacity));
+			part.moments = part.mergeBins(heap);
+			parts[from] = part;
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package com.zenobase.search.facet.decimalhistogram;
+
+import java.util.concurrent.ForkJoinPool;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.cache.recycler.CacheRecycler;
+import org.elasticsearch.common.component.AbstractLifecycleComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+
+/**
+ * Owns the pool of {@link ParallelReduce} of a node: the pool is created when the node
+ * starts, and shut down when it stops, without affecting other nodes in the same JVM.
+ */
+public class ParallelReduceService extends AbstractLifecycleComponent<ParallelReduceService> {
+
+	/**
+	 * Minimum number of shard results to reduce in parallel; 0 disables parallel reduce.
+	 */
+	static final String THRESHOLD_SETTING = "decimal_histogram.reduce.parallel_threshold";
+
+	/**
+	 * Number of threads of the reduce pool.
+	 */
+	static final String PARALLELISM_SETTING = "decimal_histogram.reduce.parallelism";
+
+	static final int DEFAULT_THRESHOLD = 128;
+
+	private static final NodeRegistry<ParallelReduceService> NODES = new NodeRegistry<>();
+
+	private final CacheRecycler cacheRecycler;
+	private final int threshold;
+	private final int parallelism;
+	private volatile ForkJoinPool pool;
+
+	@Inject
+	public ParallelReduceService(Settings settings, CacheRecycler cacheRecycler) {
+		super(settings);
+		this.cacheRecycler = cacheRecycler;
+		this.threshold = settings.getAsInt(THRESHOLD_SETTING, DEFAULT_THRESHOLD);
+		this.parallelism = settings.getAsInt(PARALLELISM_SETTING, Math.min(4, Runtime.getRuntime().availableProcessors()));
+	}
+
+	/**
+	 * Returns the service of the node that owns the given cache recycler, or null.
+	 */
+	static ParallelReduceService of(CacheRecycler cacheRecycler) {
+		return NODES.get(cacheRecycler);
+	}
+
+	/**
+	 * Returns the pool to reduce the given number of shard results on, or null if they
+	 * are to be reduced sequentially.
+	 */
+	ForkJoinPool pool(int shards) {
+		return threshold > 0 && shards >= threshold ? pool : null;
+	}
+
+	@Override
+	protected void doStart() throws ElasticsearchException {
+		if (parallelism > 1) {
+			pool = new ForkJoinPool(parallelism);
+		}
+		NODES.register(cacheRecycler, this);
+	}
+
+	@Override
+	protected void doStop() throws ElasticsearchException {
+		NODES.unregister(cacheRecycler, this);
+		ForkJoinPool pool = this.pool;
+		this.pool = null;
+		if (pool != null) {
+			pool.shutdown();
+		}
+	}
+
+	@Override
+	protected void doClose() throws ElasticsearchException {
+
+	}
+}
@@ -0,0 +1,120 @@
+package com.zenobase.search.facet.decimalhistogram;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.search.Scorer;
+import org.elasticsearch.search.facet.FacetExecutor;
+import org.elasticsearch.search.facet.InternalFacet;
+
+/**
+ * Measures the execution of another executor for a facet that asked for a profile,
+ * attaches the profile to the facet, and records it in the node level metrics. The
+ * collection of each segment is timed once, rather than each document.
+ */
+final class ProfiledFacetExecutor extends FacetExecutor {
+
+	private final FacetExecutor executor;
+	private final FacetMetrics metrics;
+	private final FacetProfile measured = new FacetProfile();
+
+	ProfiledFacetExecutor(FacetExecutor executor, FacetMetrics metrics) {
+		this.executor = executor;
+		this.metrics = metrics;
+	}
+
+	FacetExecutor executor() {
+		return executor;
+	}
+
+	@Override
+	public FacetExecutor.Collector collector() {
+		return new Collector(executor.collector());
+	}
+
+	@Override
+	public InternalFacet buildFacet(String facetName) {
+		long start = System.nanoTime();
+		InternalFacet facet = executor.buildFacet(facetName);
+		measured.buildNanos = System.nanoTime() - start;
+		measured.shards = 1;
+		if (facet instanceof InternalDecimalHistogramFacet) {
+			InternalDecimalHistogramFacet histogram = (InternalDecimalHistogramFacet) facet;
+			measured.count(histogram);
+			histogram.profile = measured;
+		} else if (facet instanceof InternalDecimalHistogramsFacet) {
+			InternalDecimalHistogramsFacet histograms = (InternalDecimalHistogramsFacet) facet;
+			for (InternalDecimalHistogramFacet histogram : histograms.getHistograms()) {
+				measured.count(histogram);
+			}
+			histograms.profile = measured;
+		} else if (facet instanceof InternalSplitDecimalHistogramFacet) {
+			InternalSplitDecimalHistogramFacet split = (InternalSplitDecimalHistogramFacet) facet;
+			for (InternalDecimalHistogramFacet histogram : split.getHistograms()) {
+				measured.count(histogram);
+			}
+			split.profile = measured;
+		}
+		metrics.profiled(measured);
+		return facet;
+	}
+
+	private final class Collector extends FacetExecutor.Collector {
+
+		private final FacetExecutor.Collector collector;
+		private boolean collecting;
+		private long segmentStart;
+		private long segmentDocs;
+
+		Collector(FacetExecutor.Collector collector) {
+			this.collector = collector;
+		}
+
+		@Override
+		public void setScorer(Scorer scorer) throws IOException {
+			collector.setScorer(scorer);
+		}
+
+		@Override
+		public boolean acceptsDocsOutOfOrder() {
+			return collector.acceptsDocsOutOfOrder();
+		}
+
+		@Override
+		public void setNextReader(AtomicReaderContext context) throws IOException {
+			long start = System.nanoTime();
+			endSegment(start);
+			collecting = true;
+			segmentStart = start;
+			collector.setNextReader(context);
+			measured.nextReaderNanos += System.nanoTime() - start;
+			measured.segments++;
+		}
+
+		@Override
+		public void collect(int doc) throws IOException {
+			segmentDocs++;
+			collector.collect(doc);
+		}
+
+		@Override
+		public void postCollection() throws IOException {
+			long start = System.nanoTime();
+			endSegment(start);
+			collector.postCollection();
+			measured.collectNanos += System.nanoTime() - start;
+		}
+
+		/**
+		 * Adds the time and documents of the current segment, if any, to the profile.
+		 */
+		private void endSegment(long now) {
+			if (collecting) {
+				measured.collectNanos += now - segmentStart;
+				measured.docs += segmentDocs;
+				segmentDocs = 0;
+				collecting = false;
+			}
+		}
+	}
+}
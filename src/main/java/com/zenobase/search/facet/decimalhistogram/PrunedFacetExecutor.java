@@ -0,0 +1,74 @@
+package com.zenobase.search.facet.decimalhistogram;
+
+import org.elasticsearch.search.facet.FacetExecutor;
+import org.elasticsearch.search.facet.InternalFacet;
+
+/**
+ * Leaves bins out of the histograms built by another executor, before they are sent to
+ * be reduced. Bins outside of a window of values are added to the underflows and
+ * overflows, and of the others only those with the highest counts are kept.
+ */
+final class PrunedFacetExecutor extends FacetExecutor {
+
+	private final FacetExecutor executor;
+	private final double from;
+	private final double to;
+	private final int size;
+	private final int shardSize;
+
+	/**
+	 * @param from the lowest value of the window, or negative infinity
+	 * @param to the value the window ends before, or positive infinity
+	 * @param size the number of bins to keep after reducing, or 0 to keep all
+	 * @param shardSize the number of bins to keep on each shard, if size is not 0
+	 */
+	PrunedFacetExecutor(FacetExecutor executor, double from, double to, int size, int shardSize) {
+		this.executor = executor;
+		this.from = from;
+		this.to = to;
+		this.size = size;
+		this.shardSize = shardSize;
+	}
+
+	FacetExecutor executor() {
+		return executor;
+	}
+
+	@Override
+	public FacetExecutor.Collector collector() {
+		return executor.collector();
+	}
+
+	@Override
+	public InternalFacet buildFacet(String facetName) {
+		InternalFacet facet = executor.buildFacet(facetName);
+		if (facet instanceof InternalDecimalHistogramFacet) {
+			prune((InternalDecimalHistogramFacet) facet);
+		} else if (facet instanceof InternalSplitDecimalHistogramFacet) {
+			for (InternalDecimalHistogramFacet histogram : ((InternalSplitDecimalHistogramFacet) facet).getHistograms()) {
+				prune(histogram);
+			}
+		}
+		return facet;
+	}
+
+	/**
+	 * Bins left out of a shard's top bins have at most the lowest count that was kept,
+	 * which bounds the error of the reduced counts.
+	 */
+	private void prune(InternalDecimalHistogramFacet histogram) {
+		boolean pruned = false;
+		if (from != Double.NEGATIVE_INFINITY || to != Double.POSITIVE_INFINITY) {
+			pruned = histogram.window(from, to);
+		}
+		if (size != 0) {
+			int kept = histogram.size;
+			histogram.requiredSize = size;
+			histogram.countError = histogram.truncate(shardSize);
+			pruned |= histogram.size != kept;
+		}
+		if (pruned) {
+			histogram.recalculate();
+		}
+	}
+}
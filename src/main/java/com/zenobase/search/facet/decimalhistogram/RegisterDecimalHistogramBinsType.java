@@ -0,0 +1,20 @@
+package com.zenobase.search.facet.decimalhistogram;
+
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.AbstractIndexComponent;
+import org.elasticsearch.index.Index;
+import org.elasticsearch.index.mapper.MapperService;
+import org.elasticsearch.index.settings.IndexSettings;
+
+/**
+ * Registers the decimal_histogram_bins field type with the mappings of each index.
+ */
+public class RegisterDecimalHistogramBinsType extends AbstractIndexComponent {
+
+	@Inject
+	public RegisterDecimalHistogramBinsType(Index index, @IndexSettings Settings indexSettings, MapperService mapperService) {
+		super(index, indexSettings);
+		mapperService.documentMapperParser().putTypeParser(DecimalHistogramBinsFieldMapper.CONTENT_TYPE, new DecimalHistogramBinsFieldMapper.TypeParser());
+	}
+}
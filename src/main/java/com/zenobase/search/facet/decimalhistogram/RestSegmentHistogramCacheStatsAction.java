@@ -0,0 +1,39 @@
+package com.zenobase.search.facet.decimalhistogram;
+
+import static org.elasticsearch.rest.RestRequest.Method.GET;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestStatus;
+
+/**
+ * Returns the statistics of the per-segment histogram cache of the node that receives
+ * the request.
+ */
+public class RestSegmentHistogramCacheStatsAction extends BaseRestHandler {
+
+	private final SegmentHistogramCache cache;
+
+	@Inject
+	public RestSegmentHistogramCacheStatsAction(Settings settings, RestController controller, Client client, SegmentHistogramCache cache) {
+		super(settings, controller, client);
+		this.cache = cache;
+		controller.registerHandler(GET, "/_decimal_histogram/cache/stats", this);
+	}
+
+	@Override
+	protected void handleRequest(RestRequest request, RestChannel channel, Client client) throws Exception {
+		XContentBuilder builder = channel.newBuilder();
+		builder.startObject();
+		cache.stats().toXContent(builder, request);
+		builder.endObject();
+		channel.sendResponse(new BytesRestResponse(RestStatus.OK, builder));
+	}
+}
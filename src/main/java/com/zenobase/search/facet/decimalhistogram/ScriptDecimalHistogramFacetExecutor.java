@@ -14,7 +14,6 @@ import org.elasticsearch.search.facet.InternalFacet;
 import org.elasticsearch.search.facet.histogram.HistogramFacet;
 import org.elasticsearch.search.facet.histogram.HistogramFacet.ComparatorType;
 import org.elasticsearch.search.internal.SearchContext;
-import org.elasticsearch.common.hppc.LongObjectOpenHashMap;
  
 
 public class ScriptDecimalHistogramFacetExecutor extends FacetExecutor {
@@ -27,18 +26,34 @@ public class ScriptDecimalHistogramFacetExecutor extends FacetExecutor {
     final double xmin;
     final double xmax;
     
-    final Recycler.V<LongObjectOpenHashMap<InternalDecimalHistogramFacet.DecimalEntry>> entries;
+    final Recycler.V<DecimalBucketMap> entries;
+    final FixedBins bins;
+    final BucketBudget budget;
     
     private final HistogramFacet.ComparatorType comparatorType;
 
-	public ScriptDecimalHistogramFacetExecutor(String scriptLang, String keyScript, ScriptService.ScriptType keyScriptType, String valueScript, ScriptService.ScriptType valueScriptType, Map<String, Object> params, double interval, double offset, ComparatorType comparatorType, SearchContext context) {
+	public ScriptDecimalHistogramFacetExecutor(String scriptLang, String keyScript, ScriptService.ScriptType keyScriptType, String valueScript, ScriptService.ScriptType valueScriptType, Map<String, Object> params, double interval, double offset, ComparatorType comparatorType, BucketBudget budget, SearchContext context) {
+		this(context.scriptService().search(context.lookup(), scriptLang, keyScript, keyScriptType, ScriptContext.Standard.AGGS, params),
+			context.scriptService().search(context.lookup(), scriptLang, valueScript, valueScriptType, ScriptContext.Standard.AGGS, params),
+			interval, offset, comparatorType, budget);
+	}
+
+	public ScriptDecimalHistogramFacetExecutor(String scriptLang, String keyScript, ScriptService.ScriptType keyScriptType, String valueScript, ScriptService.ScriptType valueScriptType, Map<String, Object> params, int nbin, double xmin, double xmax, ComparatorType comparatorType, BucketBudget budget, SearchContext context) {
+		this(context.scriptService().search(context.lookup(), scriptLang, keyScript, keyScriptType, ScriptContext.Standard.AGGS, params),
+			context.scriptService().search(context.lookup(), scriptLang, valueScript, valueScriptType, ScriptContext.Standard.AGGS, params),
+			nbin, xmin, xmax, comparatorType, budget);
+	}
+
+	ScriptDecimalHistogramFacetExecutor(SearchScript keyScript, SearchScript valueScript, double interval, double offset, ComparatorType comparatorType, BucketBudget budget) {
 
-	       this.keyScript = context.scriptService().search(context.lookup(), scriptLang, keyScript, keyScriptType, ScriptContext.Standard.AGGS, params);
-	       this.valueScript = context.scriptService().search(context.lookup(), scriptLang, valueScript, valueScriptType, ScriptContext.Standard.AGGS, params);
+	       this.keyScript = keyScript;
+	       this.valueScript = valueScript;
 
 	       this.interval = interval > 0. ? interval : 0.;
 	       this.offset = offset;
-	       this.entries = context.cacheRecycler().longObjectMap(-1);
+	       this.budget = budget;
+	       this.entries = DecimalBucketMap.obtain(budget);
+	       this.bins = null;
 	       
 	       this.comparatorType = comparatorType;
 	       this.nbins=0;
@@ -48,13 +63,16 @@ public class ScriptDecimalHistogramFacetExecutor extends FacetExecutor {
 
 	}
 
-	public ScriptDecimalHistogramFacetExecutor(String scriptLang, String keyScript, ScriptService.ScriptType keyScriptType, String valueScript, ScriptService.ScriptType valueScriptType, Map<String, Object> params, int nbin, double xmin, double xmax, ComparatorType comparatorType, SearchContext context) {
+	ScriptDecimalHistogramFacetExecutor(SearchScript keyScript, SearchScript valueScript, int nbin, double xmin, double xmax, ComparatorType comparatorType, BucketBudget budget) {
 
-		   this.keyScript = context.scriptService().search(context.lookup(), scriptLang, keyScript, keyScriptType, ScriptContext.Standard.AGGS, params);
-		   this.valueScript = context.scriptService().search(context.lookup(), scriptLang, valueScript, valueScriptType, ScriptContext.Standard.AGGS, params);
+		   this.keyScript = keyScript;
+		   this.valueScript = valueScript;
 
 		   this.offset = 0.;
-		   this.entries = context.cacheRecycler().longObjectMap(-1);
+		   this.entries = null;
+		   this.budget = budget;
+		   budget.charge(FixedBins.bytes(nbin, true));
+		   this.bins = new FixedBins(budget.bigArrays, nbin, xmin, xmax);
 		   this.nbins=nbin;
 		   this.xmin=xmin;
 		   this.xmax=xmax;
@@ -65,37 +83,28 @@ public class ScriptDecimalHistogramFacetExecutor extends FacetExecutor {
 	}
 	@Override
 	public FacetExecutor.Collector collector() {
-		return new Collector(entries.v());
+		return nbins == 0 ? new Collector(entries.v()) : new FixedBinsCollector();
 	}
 
 	@Override
 	public InternalFacet buildFacet(String facetName) {
-        InternalDecimalHistogramFacet.DecimalEntry[] entries1 = new InternalDecimalHistogramFacet.DecimalEntry[entries.v().size()];
-        final boolean[] states = entries.v().allocated;
-        final Object[] values = entries.v().values;
-        int j = 0;
-        for (int i = 0; i < states.length; i++) {
-            if (states[i]) {
-            	InternalDecimalHistogramFacet.DecimalEntry value = (InternalDecimalHistogramFacet.DecimalEntry)values[i];
-                entries1[j]=value;
-                j++;
-            }
-//            else
-//            	entries1[i]= new InternalDecimalHistogramFacet.DecimalEntry(i,0.0);
+        if (nbins != 0) {
+            InternalDecimalHistogramFacet facet = new InternalDecimalHistogramFacet(facetName, bins, comparatorType);
+            bins.close();
+            facet.memory = budget.peak();
+            return facet;
         }
-
+        InternalDecimalHistogramFacet facet = new InternalDecimalHistogramFacet(facetName, interval, offset, comparatorType, entries.v());
         entries.close();
-        if(nbins==0)
-        	return new InternalDecimalHistogramFacet(facetName, interval, offset, comparatorType, entries1);
-        else
-        	return new InternalDecimalHistogramFacet(facetName, nbins, xmin, xmax, comparatorType, entries1);
+        facet.memory = budget.peak();
+        return facet;
 	}
 
 	private class Collector extends FacetExecutor.Collector {
 
-        final LongObjectOpenHashMap<InternalDecimalHistogramFacet.DecimalEntry> entries;
+        final DecimalBucketMap entries;
 		
-		public Collector(LongObjectOpenHashMap<InternalDecimalHistogramFacet.DecimalEntry> entries) {
+		public Collector(DecimalBucketMap entries) {
 			this.entries = entries;
 		}
 
@@ -119,29 +128,35 @@ public class ScriptDecimalHistogramFacetExecutor extends FacetExecutor {
             
             double value = valueScript.runAsDouble();
             double key = keyScript.runAsDouble();
-            long bucket = (nbins==0) ? (long) Math.floor(((key + offset) / interval)) :
-            	(long) Math.floor(((key - xmin) / interval));             
-			if(nbins!=0){
-				if(key>xmax) bucket = Integer.MAX_VALUE;
-				else if(key<xmin) bucket = Integer.MIN_VALUE;;
-			}
-
-            InternalDecimalHistogramFacet.DecimalEntry entry = entries.get(bucket);
-            if (entry == null) {
-                entry = new InternalDecimalHistogramFacet.DecimalEntry(bucket,1,value, value*value);
-                entries.put(bucket, entry);
-            } else {
-                entry.binContent+=value;
-                entry.sumOfSquares+=value*value;
-                entry.count++;
-//                entry.total += value;
-//                if (value < entry.min) {
-//                    entry.min = value;
-//                }
-//                if (value > entry.max) {
-//                    entry.max = value;
-//                }
-            }
+            entries.add((long) Math.floor(((key + offset) / interval)), value);
+		}
+
+		@Override
+		public void postCollection() {
+
+		}
+	}
+
+	private class FixedBinsCollector extends FacetExecutor.Collector {
+
+		@Override
+		public void setScorer(Scorer scorer) throws IOException {
+			keyScript.setScorer(scorer);
+			valueScript.setScorer(scorer);
+		}
+
+		@Override
+		public void setNextReader(AtomicReaderContext context) throws IOException {
+			keyScript.setNextReader(context);
+			valueScript.setNextReader(context);
+		}
+
+		@Override
+		public void collect(int doc) throws IOException {
+			keyScript.setNextDocId(doc);
+			valueScript.setNextDocId(doc);
+			double value = valueScript.runAsDouble();
+			bins.add(bins.slot(keyScript.runAsDouble()), value);
 		}
 
 		@Override
@@ -0,0 +1,393 @@
+package com.zenobase.search.facet.decimalhistogram;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.queries.FilterClause;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.DisjunctionMaxQuery;
+import org.apache.lucene.search.FilteredQuery;
+import org.apache.lucene.search.QueryWrapperFilter;
+import org.apache.lucene.util.IntroSorter;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.cache.CacheStats;
+import org.elasticsearch.common.cache.RemovalListener;
+import org.elasticsearch.common.cache.RemovalNotification;
+import org.elasticsearch.common.cache.Weigher;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.lucene.SegmentReaderUtils;
+import org.elasticsearch.common.lucene.search.AndFilter;
+import org.elasticsearch.common.lucene.search.ApplyAcceptedDocsFilter;
+import org.elasticsearch.common.lucene.search.NotFilter;
+import org.elasticsearch.common.lucene.search.OrFilter;
+import org.elasticsearch.common.lucene.search.XBooleanFilter;
+import org.elasticsearch.common.lucene.search.XFilteredQuery;
+import org.elasticsearch.common.lucene.search.function.FiltersFunctionScoreQuery;
+import org.elasticsearch.common.lucene.search.function.FunctionScoreQuery;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.MemorySizeValue;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.index.cache.filter.support.CacheKeyFilter;
+import org.elasticsearch.index.search.child.ChildrenConstantScoreQuery;
+import org.elasticsearch.index.search.child.ChildrenQuery;
+import org.elasticsearch.index.search.child.CustomQueryWrappingFilter;
+import org.elasticsearch.index.search.child.ParentConstantScoreQuery;
+import org.elasticsearch.index.search.child.ParentQuery;
+import org.elasticsearch.search.facet.FacetExecutor;
+import org.elasticsearch.search.facet.SearchContextFacets;
+import org.elasticsearch.search.internal.SearchContext;
+
+/**
+ * Node level cache of the partial histograms of individual segments, so that repeated
+ * requests only have to collect the segments that changed. Entries are keyed by segment
+ * (including its deletes), binning and the query and facet filter that selected the
+ * documents, evicted in least recently used order once the configured size is exceeded,
+ * and invalidated when their segment is closed. Histograms in pyramid mode cache their
+ * bins at the base interval together with coarser levels, which count against the size
+ * as well.
+ */
+public class SegmentHistogramCache extends AbstractComponent {
+
+	public static final String SIZE_SETTING = "decimal_histogram.cache.size";
+
+	private static final long ENTRY_OVERHEAD = 64;
+
+	private final ByteSizeValue size;
+	private final Cache<Key, Bins> cache;
+	private final Set<Object> registeredCores = ConcurrentCollections.newConcurrentSet();
+	private final AtomicLong memorySize = new AtomicLong();
+
+	private final AtomicReader.CoreClosedListener coreClosedListener = new AtomicReader.CoreClosedListener() {
+
+		@Override
+		public void onClose(Object coreKey) {
+			registeredCores.remove(coreKey);
+			for (Key key : cache.asMap().keySet()) {
+				if (key.coreKey == coreKey) {
+					cache.invalidate(key);
+				}
+			}
+		}
+	};
+
+	@Inject
+	public SegmentHistogramCache(Settings settings) {
+		super(settings);
+		this.size = MemorySizeValue.parseBytesSizeValueOrHeapRatio(settings.get(SIZE_SETTING, "1%"));
+		if (size.bytes() <= 0) {
+			this.cache = null;
+			return;
+		}
+		this.cache = CacheBuilder.newBuilder()
+			.maximumWeight(size.bytes())
+			.weigher(new Weigher<Key, Bins>() {
+
+				@Override
+				public int weigh(Key key, Bins bins) {
+					return (int) Math.min(Integer.MAX_VALUE, bins.ramBytesUsed());
+				}
+			})
+			.removalListener(new RemovalListener<Key, Bins>() {
+
+				@Override
+				public void onRemoval(RemovalNotification<Key, Bins> notification) {
+					memorySize.addAndGet(-notification.getValue().ramBytesUsed());
+				}
+			})
+			.recordStats()
+			.build();
+		logger.debug("using [{}] for per-segment histograms", size);
+	}
+
+	/**
+	 * Returns what identifies the documents that the given executor collects in the given
+	 * search, or null if its partial histograms must not be cached, because caching is
+	 * disabled, or the documents depend on the time of the request, on other documents,
+	 * or may not be collected completely.
+	 */
+	Object identify(SearchContext context, FacetExecutor executor) {
+		if (cache == null || context.nowInMillisUsed() || context.minimumScore() != null
+				|| context.terminateAfter() != SearchContext.DEFAULT_TERMINATE_AFTER) {
+			return null;
+		}
+		SearchContextFacets.Entry entry = DecimalHistogramFacetExecutor.entry(context, executor);
+		if (entry == null) {
+			return null;
+		}
+		Object documents = entry.isGlobal() ? context.searchFilter(context.types()) : context.query();
+		if (joins(documents) || joins(entry.getFilter())) {
+			return null;
+		}
+		return Arrays.asList(entry.isGlobal(), documents, entry.getFilter());
+	}
+
+	/**
+	 * Returns true if the given query or filter, or any of its clauses, selects documents
+	 * by other documents. Parent/child queries and filters depend on documents in other
+	 * segments. Filters with a cache key, as terms lookups often have, are only equal by
+	 * that key, so they do not change when the documents they were built from do. Filters
+	 * cached by the node cannot be looked into, but the node never caches joins.
+	 */
+	@SuppressWarnings("deprecation")
+	static boolean joins(Object queryOrFilter) {
+		if (queryOrFilter instanceof ChildrenQuery || queryOrFilter instanceof ChildrenConstantScoreQuery
+				|| queryOrFilter instanceof ParentQuery || queryOrFilter instanceof ParentConstantScoreQuery
+				|| queryOrFilter instanceof org.elasticsearch.index.search.child.TopChildrenQuery || queryOrFilter instanceof CustomQueryWrappingFilter
+				|| queryOrFilter instanceof CacheKeyFilter) {
+			return true;
+		}
+		if (queryOrFilter instanceof BooleanQuery) {
+			for (BooleanClause clause : ((BooleanQuery) queryOrFilter).clauses()) {
+				if (joins(clause.getQuery())) {
+					return true;
+				}
+			}
+		} else if (queryOrFilter instanceof XFilteredQuery) {
+			return joins(((XFilteredQuery) queryOrFilter).getQuery()) || joins(((XFilteredQuery) queryOrFilter).getFilter());
+		} else if (queryOrFilter instanceof FilteredQuery) {
+			return joins(((FilteredQuery) queryOrFilter).getQuery()) || joins(((FilteredQuery) queryOrFilter).getFilter());
+		} else if (queryOrFilter instanceof ConstantScoreQuery) {
+			return joins(((ConstantScoreQuery) queryOrFilter).getQuery()) || joins(((ConstantScoreQuery) queryOrFilter).getFilter());
+		} else if (queryOrFilter instanceof DisjunctionMaxQuery) {
+			return anyJoins(((DisjunctionMaxQuery) queryOrFilter).getDisjuncts());
+		} else if (queryOrFilter instanceof FunctionScoreQuery) {
+			return joins(((FunctionScoreQuery) queryOrFilter).getSubQuery());
+		} else if (queryOrFilter instanceof FiltersFunctionScoreQuery) {
+			return joins(((FiltersFunctionScoreQuery) queryOrFilter).getSubQuery());
+		} else if (queryOrFilter instanceof XBooleanFilter) {
+			for (FilterClause clause : ((XBooleanFilter) queryOrFilter).clauses()) {
+				if (joins(clause.getFilter())) {
+					return true;
+				}
+			}
+		} else if (queryOrFilter instanceof AndFilter) {
+			return anyJoins(((AndFilter) queryOrFilter).filters());
+		} else if (queryOrFilter instanceof OrFilter) {
+			return anyJoins(((OrFilter) queryOrFilter).filters());
+		} else if (queryOrFilter instanceof NotFilter) {
+			return joins(((NotFilter) queryOrFilter).filter());
+		} else if (queryOrFilter instanceof ApplyAcceptedDocsFilter) {
+			return joins(((ApplyAcceptedDocsFilter) queryOrFilter).filter());
+		} else if (queryOrFilter instanceof QueryWrapperFilter) {
+			return joins(((QueryWrapperFilter) queryOrFilter).getQuery());
+		}
+		return false;
+	}
+
+	private static boolean anyJoins(Iterable<?> queriesOrFilters) {
+		for (Object queryOrFilter : queriesOrFilters) {
+			if (joins(queryOrFilter)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	Key key(AtomicReader reader, Object request) {
+		return new Key(reader.getCombinedCoreAndDeletesKey(), reader.getCoreCacheKey(), request);
+	}
+
+	Bins get(Key key) {
+		return cache.getIfPresent(key);
+	}
+
+	void put(AtomicReader reader, Key key, Bins bins) {
+		if (!registeredCores.contains(key.coreKey)) {
+			if (!SegmentReaderUtils.registerCoreListener(reader, coreClosedListener)) {
+				return;
+			}
+			registeredCores.add(key.coreKey);
+		}
+		memorySize.addAndGet(bins.ramBytesUsed());
+		cache.put(key, bins);
+	}
+
+	Stats stats() {
+		if (cache == null) {
+			return new Stats(size, 0, 0, 0, 0, 0);
+		}
+		CacheStats stats = cache.stats();
+		return new Stats(size, cache.size(), memorySize.get(), stats.hitCount(), stats.missCount(), stats.evictionCount());
+	}
+
+	static final class Key {
+
+		final Object readerKey;
+		final Object coreKey;
+		final Object request;
+
+		Key(Object readerKey, Object coreKey, Object request) {
+			this.readerKey = readerKey;
+			this.coreKey = coreKey;
+			this.request = request;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return readerKey == other.readerKey && request.equals(other.request);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * System.identityHashCode(readerKey) + request.hashCode();
+		}
+	}
+
+	/**
+	 * The non-empty bins of a segment, with their keys (or slots) in the first array and
+	 * their counts in the second.
+	 */
+	static final class Bins {
+
+		/**
+		 * Levels with fewer bins than this are not coarsened any further.
+		 */
+		private static final int MIN_LEVEL_BINS = 64;
+
+		final long[] keys;
+		final long[] counts;
+		/**
+		 * Bins of a pyramid level are 2^shift times as wide as those it was built from.
+		 */
+		final int shift;
+		/**
+		 * The next coarser level of a pyramid, or null.
+		 */
+		Bins coarser;
+
+		Bins(long[] keys, long[] counts) {
+			this(keys, counts, 0);
+		}
+
+		private Bins(long[] keys, long[] counts, int shift) {
+			this.keys = keys;
+			this.counts = counts;
+			this.shift = shift;
+		}
+
+		long ramBytesUsed() {
+			return ENTRY_OVERHEAD + 16L * keys.length + (coarser != null ? coarser.ramBytesUsed() : 0);
+		}
+
+		/**
+		 * Sorts these bins by key and adds the levels of a pyramid, each with bins twice as
+		 * wide as the one before. A level is only kept if it has about half as many bins as
+		 * the last level kept or fewer, so that the pyramid takes about as much memory again
+		 * as these bins, and merging from a level is always worth it.
+		 */
+		void addLevels() {
+			sort();
+			Bins kept = this;
+			Bins level = this;
+			while (level.keys.length > MIN_LEVEL_BINS && level.shift < 63) {
+				level = level.coarsen();
+				if (level.keys.length <= kept.keys.length / 2 + 1) {
+					kept.coarser = level;
+					kept = level;
+				}
+			}
+		}
+
+		/**
+		 * Returns the sorted bins merged in pairs, the key of each shifted right by one.
+		 */
+		private Bins coarsen() {
+			int n = 0;
+			for (int i = 0; i < keys.length; ++i) {
+				if (i == 0 || keys[i] >> 1 != keys[i - 1] >> 1) {
+					n++;
+				}
+			}
+			long[] coarseKeys = new long[n];
+			long[] coarseCounts = new long[n];
+			int last = -1;
+			for (int i = 0; i < keys.length; ++i) {
+				long key = keys[i] >> 1;
+				if (last < 0 || coarseKeys[last] != key) {
+					coarseKeys[++last] = key;
+				}
+				coarseCounts[last] += counts[i];
+			}
+			return new Bins(coarseKeys, coarseCounts, shift + 1);
+		}
+
+		private void sort() {
+			new IntroSorter() {
+
+				private long pivot;
+
+				@Override
+				protected void swap(int i, int j) {
+					long key = keys[i];
+					keys[i] = keys[j];
+					keys[j] = key;
+					long count = counts[i];
+					counts[i] = counts[j];
+					counts[j] = count;
+				}
+
+				@Override
+				protected int compare(int i, int j) {
+					return Long.compare(keys[i], keys[j]);
+				}
+
+				@Override
+				protected void setPivot(int i) {
+					pivot = keys[i];
+				}
+
+				@Override
+				protected int comparePivot(int j) {
+					return Long.compare(pivot, keys[j]);
+				}
+			}.sort(0, keys.length);
+		}
+	}
+
+	public static final class Stats implements ToXContent {
+
+		private final ByteSizeValue limit;
+		private final long entries;
+		private final long memorySize;
+		private final long hits;
+		private final long misses;
+		private final long evictions;
+
+		Stats(ByteSizeValue limit, long entries, long memorySize, long hits, long misses, long evictions) {
+			this.limit = limit;
+			this.entries = entries;
+			this.memorySize = memorySize;
+			this.hits = hits;
+			this.misses = misses;
+			this.evictions = evictions;
+		}
+
+		@Override
+		public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+			builder.field("limit_size_in_bytes", limit.bytes());
+			builder.field("memory_size_in_bytes", memorySize);
+			builder.field("entries", entries);
+			builder.field("hit_count", hits);
+			builder.field("miss_count", misses);
+			builder.field("evictions", evictions);
+			return builder;
+		}
+	}
+}
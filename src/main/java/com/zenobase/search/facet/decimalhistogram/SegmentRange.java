@@ -0,0 +1,51 @@
+package com.zenobase.search.facet.decimalhistogram;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.util.NumericUtils;
+import org.elasticsearch.index.fielddata.IndexNumericFieldData.NumericType;
+
+/**
+ * Bounds of the values of a numeric field within a segment, read from the lowest and
+ * highest full precision terms of the field. Terms of deleted documents are included,
+ * so the actual values may lie within a narrower range.
+ */
+final class SegmentRange {
+
+	final double min;
+	final double max;
+
+	private SegmentRange(double min, double max) {
+		this.min = min;
+		this.max = max;
+	}
+
+	/**
+	 * Returns the range of the given field in the given segment, or null if it is not
+	 * indexed or contains NaN.
+	 */
+	static SegmentRange of(AtomicReader reader, String field, NumericType type) throws IOException {
+		Terms terms = reader.terms(field);
+		if (terms == null) {
+			return null;
+		}
+		double min, max;
+		if (type.requiredBits() == 64) {
+			long low = NumericUtils.getMinLong(terms);
+			long high = NumericUtils.getMaxLong(terms);
+			min = type.isFloatingPoint() ? NumericUtils.sortableLongToDouble(low) : low;
+			max = type.isFloatingPoint() ? NumericUtils.sortableLongToDouble(high) : high;
+		} else {
+			int low = NumericUtils.getMinInt(terms);
+			int high = NumericUtils.getMaxInt(terms);
+			min = type.isFloatingPoint() ? NumericUtils.sortableIntToFloat(low) : low;
+			max = type.isFloatingPoint() ? NumericUtils.sortableIntToFloat(high) : high;
+		}
+		if (Double.isNaN(min) || Double.isNaN(max)) {
+			return null;
+		}
+		return new SegmentRange(min, max);
+	}
+}
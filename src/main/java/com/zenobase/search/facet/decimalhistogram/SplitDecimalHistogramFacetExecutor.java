@@ -0,0 +1,174 @@
+package com.zenobase.search.facet.decimalhistogram;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.RandomAccessOrds;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.common.util.LongArray;
+import org.elasticsearch.index.fielddata.IndexNumericFieldData;
+import org.elasticsearch.index.fielddata.IndexOrdinalsFieldData;
+import org.elasticsearch.index.fielddata.SortedNumericDoubleValues;
+import org.elasticsearch.search.facet.FacetExecutor;
+import org.elasticsearch.search.facet.InternalFacet;
+import org.elasticsearch.search.facet.histogram.HistogramFacet.ComparatorType;
+import org.elasticsearch.search.internal.SearchContext;
+
+/**
+ * One histogram with a fixed number of bins per term of a split field. Counts are kept
+ * in a dense matrix with a row of nbin + 2 slots per global ordinal of the split field,
+ * so that a single pass fills the histograms of all terms. The matrix is a paged array,
+ * so that it is not allocated in one piece. A document is counted in the histogram of
+ * each of its terms.
+ */
+public class SplitDecimalHistogramFacetExecutor extends FacetExecutor {
+
+	/**
+	 * Largest number of cells of the matrix.
+	 */
+	static final long MAX_CELLS = Integer.MAX_VALUE - 8;
+
+	private final IndexNumericFieldData indexFieldData;
+	private final IndexOrdinalsFieldData globalOrdinals;
+	private final ComparatorType comparatorType;
+	private final int nbins;
+	private final double xmin;
+	private final double xmax;
+	private final double interval;
+	private final int stride;
+	private final BucketBudget budget;
+
+	/**
+	 * Counts of ordinal o in slots o * stride to (o + 1) * stride - 1, or null if the
+	 * index is empty.
+	 */
+	private LongArray matrix;
+	private RandomAccessOrds ordinals;
+
+	public SplitDecimalHistogramFacetExecutor(IndexNumericFieldData indexFieldData, IndexOrdinalsFieldData splitFieldData, int nbin, double xmin, double xmax, ComparatorType comparatorType, BucketBudget budget, SearchContext context) {
+		this.indexFieldData = indexFieldData;
+		this.globalOrdinals = splitFieldData.loadGlobal(context.searcher().getIndexReader());
+		this.nbins = nbin;
+		this.xmin = xmin;
+		this.xmax = xmax;
+		this.interval = (xmax - xmin) / nbin;
+		this.stride = nbin + 2;
+		this.comparatorType = comparatorType;
+		this.budget = budget;
+		List<AtomicReaderContext> leaves = context.searcher().getIndexReader().leaves();
+		if (!leaves.isEmpty()) {
+			long maxOrd = globalOrdinals.load(leaves.get(0)).getOrdinalsValues().getValueCount();
+			if (maxOrd * stride > MAX_CELLS) {
+				throw new ElasticsearchIllegalArgumentException("too many terms (" + maxOrd + ") to split a histogram of " + nbin + " bins by");
+			}
+			budget.checkBuckets(maxOrd * nbin);
+			budget.charge(maxOrd * stride * RamUsageEstimator.NUM_BYTES_LONG);
+			this.matrix = budget.bigArrays.newLongArray(maxOrd * stride);
+		}
+	}
+
+	@Override
+	public FacetExecutor.Collector collector() {
+		return new Collector();
+	}
+
+	@Override
+	public InternalFacet buildFacet(String facetName) {
+		List<BytesRef> terms = new ArrayList<>();
+		List<InternalDecimalHistogramFacet> histograms = new ArrayList<>();
+		if (ordinals != null) {
+			long maxOrd = ordinals.getValueCount();
+			for (int ord = 0; ord < maxOrd; ++ord) {
+				FixedBins bins = row(ord);
+				if (bins != null) {
+					BytesRef term = BytesRef.deepCopyOf(ordinals.lookupOrd(ord));
+					terms.add(term);
+					histograms.add(new InternalDecimalHistogramFacet(term.utf8ToString(), bins, comparatorType));
+					bins.close();
+				}
+			}
+		}
+		if (matrix != null) {
+			budget.release(matrix.size() * RamUsageEstimator.NUM_BYTES_LONG);
+			matrix.close();
+			matrix = null;
+		}
+		return new InternalSplitDecimalHistogramFacet(facetName, terms, histograms);
+	}
+
+	/**
+	 * Returns the bins of the given ordinal, or null if it has not been counted.
+	 */
+	private FixedBins row(int ord) {
+		int base = ord * stride;
+		FixedBins bins = null;
+		for (int slot = 0; slot < stride; ++slot) {
+			long count = matrix.get(base + slot);
+			if (count != 0) {
+				if (bins == null) {
+					bins = new FixedBins(budget.bigArrays, nbins, xmin, xmax);
+				}
+				bins.add(slot, count, count, count);
+			}
+		}
+		return bins;
+	}
+
+	private final class Collector extends FacetExecutor.Collector {
+
+		private SortedNumericDoubleValues values;
+		private SortedDocValues singleOrdinals;
+		private int[] docSlots = new int[1];
+
+		@Override
+		public void setNextReader(AtomicReaderContext context) throws IOException {
+			values = indexFieldData.load(context).getDoubleValues();
+			ordinals = globalOrdinals.load(context).getOrdinalsValues();
+			singleOrdinals = DocValues.unwrapSingleton(ordinals);
+		}
+
+		@Override
+		public void collect(int doc) throws IOException {
+			values.setDocument(doc);
+			int count = values.count();
+			if (count == 0) {
+				return;
+			}
+			docSlots = ArrayUtil.grow(docSlots, count);
+			for (int i = 0; i < count; ++i) {
+				docSlots[i] = FixedBins.slot(values.valueAt(i), nbins, xmin, xmax, interval);
+			}
+			if (singleOrdinals != null) {
+				int ord = singleOrdinals.getOrd(doc);
+				if (ord >= 0) {
+					add(ord, count);
+				}
+				return;
+			}
+			ordinals.setDocument(doc);
+			int cardinality = ordinals.cardinality();
+			for (int i = 0; i < cardinality; ++i) {
+				add((int) ordinals.ordAt(i), count);
+			}
+		}
+
+		private void add(int ord, int count) {
+			int base = ord * stride;
+			for (int i = 0; i < count; ++i) {
+				matrix.increment(base + docSlots[i], 1L);
+			}
+		}
+
+		@Override
+		public void postCollection() {
+
+		}
+	}
+}
@@ -0,0 +1,28 @@
+package com.zenobase.search.facet.decimalhistogram;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.rest.RestStatus;
+
+/**
+ * Thrown when a histogram would have more buckets than allowed.
+ */
+public class TooManyBucketsException extends ElasticsearchException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final int maxBuckets;
+
+	public TooManyBucketsException(int maxBuckets) {
+		super("decimal histogram would have more than [" + maxBuckets + "] buckets; use a larger [interval], an adaptive histogram with [max_bins], or raise [max_buckets]");
+		this.maxBuckets = maxBuckets;
+	}
+
+	public int getMaxBuckets() {
+		return maxBuckets;
+	}
+
+	@Override
+	public RestStatus status() {
+		return RestStatus.BAD_REQUEST;
+	}
+}
@@ -0,0 +1,216 @@
+package com.zenobase.search.facet.decimalhistogram;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.util.Bits;
+import org.elasticsearch.common.recycler.Recycler;
+import org.elasticsearch.index.fielddata.FieldData;
+import org.elasticsearch.index.fielddata.IndexNumericFieldData;
+import org.elasticsearch.index.fielddata.NumericDoubleValues;
+import org.elasticsearch.index.fielddata.SortedNumericDoubleValues;
+import org.elasticsearch.search.facet.FacetExecutor;
+import org.elasticsearch.search.facet.InternalFacet;
+import org.elasticsearch.search.facet.histogram.HistogramFacet.ComparatorType;
+
+/**
+ * Weighted histogram of the values of a key field, with the values of a value field, or
+ * the score of each document, as weights. Each value of the key field is counted once,
+ * and weighted with the sum of the values of the value field of the same document.
+ */
+public class ValueDecimalHistogramFacetExecutor extends FacetExecutor {
+
+	/**
+	 * Value field name that weights documents with their score.
+	 */
+	public static final String SCORE = "_score";
+
+	private final IndexNumericFieldData keyFieldData;
+	private final IndexNumericFieldData valueFieldData;
+	private final ComparatorType comparatorType;
+	private final double interval;
+	private final double offset;
+	private final int nbins;
+	private final BucketBudget budget;
+
+	final Recycler.V<DecimalBucketMap> counts;
+	final FixedBins bins;
+
+	/**
+	 * @param valueFieldData the weights, or null to weight with the score
+	 */
+	public ValueDecimalHistogramFacetExecutor(IndexNumericFieldData keyFieldData, IndexNumericFieldData valueFieldData, int nbin, double xmin, double xmax, ComparatorType comparatorType, BucketBudget budget) {
+		this.keyFieldData = keyFieldData;
+		this.valueFieldData = valueFieldData;
+		this.nbins = nbin;
+		this.interval = (xmax - xmin) / nbin;
+		this.offset = 0.0;
+		this.comparatorType = comparatorType;
+		this.budget = budget;
+		this.counts = null;
+		budget.charge(FixedBins.bytes(nbin, true));
+		this.bins = new FixedBins(budget.bigArrays, nbin, xmin, xmax);
+	}
+
+	/**
+	 * @param valueFieldData the weights, or null to weight with the score
+	 */
+	public ValueDecimalHistogramFacetExecutor(IndexNumericFieldData keyFieldData, IndexNumericFieldData valueFieldData, double interval, double offset, ComparatorType comparatorType, BucketBudget budget) {
+		this.keyFieldData = keyFieldData;
+		this.valueFieldData = valueFieldData;
+		this.nbins = 0;
+		this.interval = interval;
+		this.offset = offset;
+		this.comparatorType = comparatorType;
+		this.budget = budget;
+		this.counts = DecimalBucketMap.obtain(budget);
+		this.bins = null;
+	}
+
+	@Override
+	public FacetExecutor.Collector collector() {
+		return nbins == 0 ? new IntervalCollector(counts.v()) : new FixedBinsCollector(bins);
+	}
+
+	@Override
+	public InternalFacet buildFacet(String facetName) {
+		if (nbins != 0) {
+			InternalDecimalHistogramFacet facet = new InternalDecimalHistogramFacet(facetName, bins, comparatorType);
+			bins.close();
+			facet.memory = budget.peak();
+			return facet;
+		}
+		InternalDecimalHistogramFacet facet = new InternalDecimalHistogramFacet(facetName, interval, offset, comparatorType, counts.v());
+		counts.close();
+		facet.memory = budget.peak();
+		return facet;
+	}
+
+	/**
+	 * Sums the weights of each document with at least one key, and adds the sum for each
+	 * of its keys. Single-valued fields are read without setDocument().
+	 */
+	private abstract class Collector extends FacetExecutor.Collector {
+
+		private SortedNumericDoubleValues keys;
+		private NumericDoubleValues singleKeys;
+		private Bits docsWithKey;
+		private SortedNumericDoubleValues values;
+		private NumericDoubleValues singleValues;
+		private Bits docsWithValue;
+		private Scorer scorer;
+		protected double weight;
+
+		@Override
+		public void setScorer(Scorer scorer) throws IOException {
+			this.scorer = scorer;
+		}
+
+		@Override
+		public void setNextReader(AtomicReaderContext context) throws IOException {
+			keys = keyFieldData.load(context).getDoubleValues();
+			singleKeys = FieldData.unwrapSingleton(keys);
+			docsWithKey = singleKeys != null ? FieldData.unwrapSingletonBits(keys) : null;
+			if (docsWithKey instanceof Bits.MatchAllBits) {
+				docsWithKey = null;
+			}
+			if (valueFieldData != null) {
+				values = valueFieldData.load(context).getDoubleValues();
+				singleValues = FieldData.unwrapSingleton(values);
+				docsWithValue = singleValues != null ? FieldData.unwrapSingletonBits(values) : null;
+				if (docsWithValue instanceof Bits.MatchAllBits) {
+					docsWithValue = null;
+				}
+			}
+		}
+
+		@Override
+		public void collect(int doc) throws IOException {
+			if (singleKeys != null) {
+				double key = singleKeys.get(doc);
+				if (key != 0.0 || docsWithKey == null || docsWithKey.get(doc)) {
+					if (loadWeight(doc)) {
+						add(key);
+					}
+				}
+				return;
+			}
+			keys.setDocument(doc);
+			int count = keys.count();
+			if (count == 0) {
+				return;
+			}
+			if (!loadWeight(doc)) {
+				return;
+			}
+			for (int i = 0; i < count; ++i) {
+				add(keys.valueAt(i));
+			}
+		}
+
+		/**
+		 * Loads the sum of the weights of the given document, and returns false if it has
+		 * none.
+		 */
+		private boolean loadWeight(int doc) throws IOException {
+			if (valueFieldData == null) {
+				weight = scorer.score();
+				return true;
+			}
+			if (singleValues != null) {
+				double value = singleValues.get(doc);
+				if (value != 0.0 || docsWithValue == null || docsWithValue.get(doc)) {
+					weight = value;
+					return true;
+				}
+				return false;
+			}
+			values.setDocument(doc);
+			int count = values.count();
+			weight = 0.0;
+			for (int i = 0; i < count; ++i) {
+				weight += values.valueAt(i);
+			}
+			return count != 0;
+		}
+
+		/**
+		 * Adds the weight for the given key.
+		 */
+		protected abstract void add(double key);
+
+		@Override
+		public void postCollection() {
+
+		}
+	}
+
+	private final class IntervalCollector extends Collector {
+
+		private final DecimalBucketMap counts;
+
+		public IntervalCollector(DecimalBucketMap counts) {
+			this.counts = counts;
+		}
+
+		@Override
+		protected void add(double key) {
+			counts.add((long) Math.floor((key + offset) / interval), weight);
+		}
+	}
+
+	private final class FixedBinsCollector extends Collector {
+
+		private final FixedBins bins;
+
+		public FixedBinsCollector(FixedBins bins) {
+			this.bins = bins;
+		}
+
+		@Override
+		protected void add(double key) {
+			bins.add(bins.slot(key), weight);
+		}
+	}
+}
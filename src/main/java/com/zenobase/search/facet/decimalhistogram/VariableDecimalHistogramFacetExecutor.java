@@ -0,0 +1,175 @@
+package com.zenobase.search.facet.decimalhistogram;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.util.Bits;
+import org.elasticsearch.common.recycler.Recycler;
+import org.elasticsearch.index.fielddata.FieldData;
+import org.elasticsearch.index.fielddata.IndexNumericFieldData;
+import org.elasticsearch.index.fielddata.NumericDoubleValues;
+import org.elasticsearch.index.fielddata.SortedNumericDoubleValues;
+import org.elasticsearch.search.facet.FacetExecutor;
+import org.elasticsearch.search.facet.InternalFacet;
+import org.elasticsearch.search.facet.histogram.HistogramFacet.ComparatorType;
+
+/**
+ * Histogram with bins of varying width: either between explicit edges, or between
+ * consecutive powers of a logarithmic base. Values outside of the edges, and values that
+ * are not positive on a logarithmic scale, go into the underflow or overflow.
+ */
+public class VariableDecimalHistogramFacetExecutor extends FacetExecutor {
+
+	/**
+	 * Keys within this distance of an integer are checked against the powers of the base,
+	 * to make up for the rounding of the logarithm.
+	 */
+	private static final double LOG_TOLERANCE = 1e-9;
+
+	private final IndexNumericFieldData indexFieldData;
+	private final ComparatorType comparatorType;
+	private final BinEdges edges;
+	private final double logBase;
+	private final double inverseLogBase;
+	private final BucketBudget budget;
+
+	final FixedBins bins;
+	final Recycler.V<DecimalBucketMap> counts;
+	long underflowCount;
+	long overflowCount;
+
+	public VariableDecimalHistogramFacetExecutor(IndexNumericFieldData indexFieldData, double[] edges, ComparatorType comparatorType, BucketBudget budget) {
+		this.indexFieldData = indexFieldData;
+		this.edges = new BinEdges(edges);
+		this.logBase = 0.0;
+		this.inverseLogBase = 0.0;
+		this.comparatorType = comparatorType;
+		this.budget = budget;
+		budget.charge(FixedBins.bytes(this.edges.nbins, false));
+		this.bins = new FixedBins(budget.bigArrays, this.edges.nbins, edges[0], edges[this.edges.nbins]);
+		this.counts = null;
+	}
+
+	public VariableDecimalHistogramFacetExecutor(IndexNumericFieldData indexFieldData, double logBase, ComparatorType comparatorType, BucketBudget budget) {
+		this.indexFieldData = indexFieldData;
+		this.edges = null;
+		this.logBase = logBase;
+		this.inverseLogBase = 1.0 / Math.log(logBase);
+		this.comparatorType = comparatorType;
+		this.bins = null;
+		this.budget = budget;
+		this.counts = DecimalBucketMap.obtain(budget);
+	}
+
+	@Override
+	public FacetExecutor.Collector collector() {
+		return edges != null ? new EdgesCollector() : new LogCollector(counts.v());
+	}
+
+	@Override
+	public InternalFacet buildFacet(String facetName) {
+		if (edges != null) {
+			InternalDecimalHistogramFacet facet = new InternalDecimalHistogramFacet(facetName, bins, edges.edges, comparatorType);
+			bins.close();
+			facet.memory = budget.peak();
+			return facet;
+		}
+		InternalDecimalHistogramFacet facet = new InternalDecimalHistogramFacet(facetName, logBase, comparatorType, counts.v());
+		counts.close();
+		facet.underflowCount = underflowCount;
+		facet.underflows = underflowCount;
+		facet.underflowSumOfSquares = underflowCount;
+		facet.overflowCount = overflowCount;
+		facet.overflows = overflowCount;
+		facet.overflowSumOfSquares = overflowCount;
+		facet.memory = budget.peak();
+		return facet;
+	}
+
+	/**
+	 * Returns the exponent of the largest power of the base that is not greater than the
+	 * given positive, finite value.
+	 */
+	long logKey(double value) {
+		double log = Math.log(value) * inverseLogBase;
+		long key = (long) Math.floor(log);
+		if (log - key < LOG_TOLERANCE) {
+			if (Math.pow(logBase, key) > value) {
+				key--;
+			}
+		} else if (key + 1 - log < LOG_TOLERANCE) {
+			if (Math.pow(logBase, key + 1) <= value) {
+				key++;
+			}
+		}
+		return key;
+	}
+
+	private abstract class Collector extends FacetExecutor.Collector {
+
+		private SortedNumericDoubleValues values;
+		private NumericDoubleValues singleValues;
+		private Bits docsWithField;
+
+		@Override
+		public void setNextReader(AtomicReaderContext context) throws IOException {
+			values = indexFieldData.load(context).getDoubleValues();
+			singleValues = FieldData.unwrapSingleton(values);
+			docsWithField = singleValues != null ? FieldData.unwrapSingletonBits(values) : null;
+			if (docsWithField instanceof Bits.MatchAllBits) {
+				docsWithField = null;
+			}
+		}
+
+		@Override
+		public void collect(int doc) throws IOException {
+			if (singleValues != null) {
+				double value = singleValues.get(doc);
+				if (value != 0.0 || docsWithField == null || docsWithField.get(doc)) {
+					add(value);
+				}
+				return;
+			}
+			values.setDocument(doc);
+			int count = values.count();
+			for (int i = 0; i < count; ++i) {
+				add(values.valueAt(i));
+			}
+		}
+
+		protected abstract void add(double value);
+
+		@Override
+		public void postCollection() {
+
+		}
+	}
+
+	private final class EdgesCollector extends Collector {
+
+		@Override
+		protected void add(double value) {
+			bins.increment(edges.slot(value));
+		}
+	}
+
+	private final class LogCollector extends Collector {
+
+		private final DecimalBucketMap counts;
+
+		public LogCollector(DecimalBucketMap counts) {
+			this.counts = counts;
+		}
+
+		@Override
+		protected void add(double value) {
+			if (!(value > 0.0)) {
+				underflowCount++;
+			} else if (value == Double.POSITIVE_INFINITY) {
+				overflowCount++;
+			} else {
+				counts.increment(logKey(value));
+			}
+		}
+	}
+}
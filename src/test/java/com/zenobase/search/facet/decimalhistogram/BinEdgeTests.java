@@ -0,0 +1,89 @@
+package com.zenobase.search.facet.decimalhistogram;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.not;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.search.facet.histogram.HistogramFacet.ComparatorType;
+import org.testng.annotations.Test;
+
+import com.zenobase.search.facet.decimalhistogram.DecimalHistogramFacetExecutor.CollectMode;
+
+/**
+ * Values on bin edges, such as 0.3 with an interval of 0.1, fall into the same bin with
+ * every way of collecting them, which is where dividing by the interval puts them.
+ */
+public class BinEdgeTests extends NodeTestBase {
+
+	private static final int VALUES = 100;
+
+	@Override
+	protected XContentBuilder mapping() throws IOException {
+		return XContentFactory.jsonBuilder().startObject().startObject("doc").startObject("properties")
+			.startObject("value").field("type", "double").startObject("fields")
+				.startObject("bins").field("type", "decimal_histogram_bins").field("interval", 0.1).endObject()
+				.startObject("fixed").field("type", "decimal_histogram_bins").field("nbin", VALUES).field("xmin", 0.0).field("xmax", 10.0).endObject()
+			.endObject().endObject()
+			.startObject("weight").field("type", "double").endObject()
+			.endObject().endObject().endObject();
+	}
+
+	/**
+	 * Indexes the values 0.0, 0.1, ..., 9.9, each as the double closest to it.
+	 */
+	@Override
+	protected void index() {
+		for (int i = 0; i < VALUES; ++i) {
+			client.prepareIndex("test", "doc", Integer.toString(i)).setSource("value", i / 10.0, "weight", 1.0).get();
+		}
+		client.admin().indices().prepareRefresh("test").get();
+	}
+
+	private static List<String> expectedIntervalEntries() {
+		List<String> entries = new ArrayList<>();
+		for (int i = 0; i < VALUES; ++i) {
+			long key = (long) Math.floor(i / 10.0 / 0.1);
+			if (entries.isEmpty() || !entries.get(entries.size() - 1).startsWith(key + ":")) {
+				entries.add(key + ":1");
+			} else {
+				entries.set(entries.size() - 1, key + ":2");
+			}
+		}
+		return entries;
+	}
+
+	@Test
+	public void testEdgeValueFallsIntoLowerBin() {
+		List<String> entries = entries(search(new DecimalHistogramFacetBuilder("f", "value", 0.1, 0.0, ComparatorType.KEY)));
+		assertThat(entries, hasItem("2:2"));
+		assertThat(entries, not(hasItem("3:1")));
+		assertThat(entries, equalTo(expectedIntervalEntries()));
+	}
+
+	@Test
+	public void testIntervalModesAgree() {
+		List<String> expected = expectedIntervalEntries();
+		assertThat(entries(search(new DecimalHistogramFacetBuilder("f", "value", 0.1, 0.0, ComparatorType.KEY).collectMode(CollectMode.BATCH))), equalTo(expected));
+		assertThat(entries(search(new DecimalHistogramFacetBuilder("f", "value", 0.1, 0.0, ComparatorType.KEY).valueField("weight"))), equalTo(expected));
+		assertThat(entries(search(new DecimalHistogramFacetBuilder("f", "value", 0.1, 0.0, ComparatorType.KEY).maxBins(VALUES))), equalTo(expected));
+		assertThat(entries(search(new DecimalHistogramFacetBuilder("f", "value.bins", 0.1, 0.0, ComparatorType.KEY))), equalTo(expected));
+		assertThat(entries(search("{\"f\":{\"decimal_histogram\":{\"key_script\":\"doc['value'].value\",\"value_script\":\"1\",\"interval\":0.1}}}")), equalTo(expected));
+	}
+
+	@Test
+	public void testFixedBinsModesAgree() {
+		List<String> expected = entries(search("{\"f\":{\"decimal_histogram\":{\"key_script\":\"doc['value'].value\",\"value_script\":\"1\",\"nbin\":" + VALUES + ",\"xmin\":0.0,\"xmax\":10.0}}}"));
+		assertThat(entries(search(new DecimalHistogramFacetBuilder("f", "value", 0.0, 0.0, ComparatorType.KEY).bins(VALUES, 0.0, 10.0))), equalTo(expected));
+		assertThat(entries(search(new DecimalHistogramFacetBuilder("f", "value", 0.0, 0.0, ComparatorType.KEY).bins(VALUES, 0.0, 10.0).collectMode(CollectMode.BATCH))), equalTo(expected));
+		assertThat(entries(search(new DecimalHistogramFacetBuilder("f", "value", 0.0, 0.0, ComparatorType.KEY).bins(VALUES, 0.0, 10.0).valueField("weight"))), equalTo(expected));
+		assertThat(entries(search(new DecimalHistogramFacetBuilder("f", "value.fixed", 0.0, 0.0, ComparatorType.KEY).bins(VALUES, 0.0, 10.0))), equalTo(expected));
+		assertThat(expected, hasItem("2:2"));
+	}
+}
@@ -0,0 +1,87 @@
+package com.zenobase.search.facet.decimalhistogram;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.testng.annotations.Test;
+
+/**
+ * The lookup table finds the same slot as a search of the edges.
+ */
+public class BinEdgesTests {
+
+	/**
+	 * Returns the slot of the given value by binary search: the number of edges up to
+	 * and including the value, or nbins + 1 at or above the last edge.
+	 */
+	private static int expectedSlot(double[] edges, double value) {
+		if (!(value >= edges[0])) {
+			return 0;
+		}
+		if (value >= edges[edges.length - 1]) {
+			return edges.length;
+		}
+		int i = Arrays.binarySearch(edges, value);
+		return i >= 0 ? i + 1 : -1 - i;
+	}
+
+	private static void assertSlots(double[] edges, Random random) {
+		BinEdges bins = new BinEdges(edges);
+		for (double edge : edges) {
+			assertThat(bins.slot(edge), equalTo(expectedSlot(edges, edge)));
+			assertThat(bins.slot(Math.nextUp(edge)), equalTo(expectedSlot(edges, Math.nextUp(edge))));
+			assertThat(bins.slot(Math.nextAfter(edge, Double.NEGATIVE_INFINITY)), equalTo(expectedSlot(edges, Math.nextAfter(edge, Double.NEGATIVE_INFINITY))));
+		}
+		double min = edges[0];
+		double max = edges[edges.length - 1];
+		for (int i = 0; i < 10000; ++i) {
+			double value = min - 1 + random.nextDouble() * (max - min + 2);
+			assertThat(bins.slot(value), equalTo(expectedSlot(edges, value)));
+		}
+	}
+
+	@Test
+	public void testUniformEdges() {
+		double[] edges = new double[101];
+		for (int i = 0; i < edges.length; ++i) {
+			edges[i] = i * 0.1;
+		}
+		assertSlots(edges, new Random(0));
+	}
+
+	@Test
+	public void testSkewedEdges() {
+		double[] edges = new double[50];
+		for (int i = 0; i < edges.length; ++i) {
+			edges[i] = Math.pow(1.5, i) - 1;
+		}
+		assertSlots(edges, new Random(0));
+	}
+
+	@Test
+	public void testRandomEdges() {
+		Random random = new Random(0);
+		for (int n = 2; n < 2000; n *= 3) {
+			double[] edges = new double[n];
+			for (int i = 0; i < n; ++i) {
+				edges[i] = random.nextGaussian() * 100;
+			}
+			Arrays.sort(edges);
+			assertSlots(edges, random);
+		}
+	}
+
+	@Test
+	public void testOutOfRange() {
+		BinEdges bins = new BinEdges(new double[] { -1.0, 0.0, 2.0 });
+		assertThat(bins.slot(Double.NaN), equalTo(0));
+		assertThat(bins.slot(Double.NEGATIVE_INFINITY), equalTo(0));
+		assertThat(bins.slot(-1.0), equalTo(1));
+		assertThat(bins.slot(0.0), equalTo(2));
+		assertThat(bins.slot(2.0), equalTo(3));
+		assertThat(bins.slot(Double.POSITIVE_INFINITY), equalTo(3));
+	}
+}
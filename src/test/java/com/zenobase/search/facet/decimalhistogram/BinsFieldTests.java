@@ -0,0 +1,57 @@
+package com.zenobase.search.facet.decimalhistogram;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+
+import java.io.IOException;
+
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.search.facet.histogram.HistogramFacet.ComparatorType;
+import org.testng.annotations.Test;
+
+/**
+ * A facet with the binning of a bins field counts the stored bins, and has the same
+ * result as one that bins the values of a field without them.
+ */
+public class BinsFieldTests extends NodeTestBase {
+
+	@Override
+	protected XContentBuilder mapping() throws IOException {
+		return XContentFactory.jsonBuilder().startObject().startObject("doc").startObject("properties")
+			.startObject("value").field("type", "double").field("copy_to", "plain").startObject("fields")
+				.startObject("bins").field("type", "decimal_histogram_bins").field("interval", 0.5).field("offset", 0.25).endObject()
+				.startObject("fixed").field("type", "decimal_histogram_bins").field("nbin", 20).field("xmin", -5.0).field("xmax", 5.0).endObject()
+			.endObject().endObject()
+			.startObject("plain").field("type", "double").endObject()
+			.startObject("weight").field("type", "double").endObject()
+			.startObject("tag").field("type", "string").field("index", "not_analyzed").endObject()
+			.endObject().endObject().endObject();
+	}
+
+	@Test
+	public void testIntervalBins() {
+		assertThat(entries(search(new DecimalHistogramFacetBuilder("f", "value", 0.5, 0.25, ComparatorType.KEY))),
+			equalTo(entries(search(new DecimalHistogramFacetBuilder("f", "plain", 0.5, 0.25, ComparatorType.KEY)))));
+		assertThat(entries(search(new DecimalHistogramFacetBuilder("f", "value.bins", 0.5, 0.25, ComparatorType.KEY))),
+			equalTo(entries(search(new DecimalHistogramFacetBuilder("f", "plain", 0.5, 0.25, ComparatorType.KEY)))));
+	}
+
+	@Test
+	public void testFixedBins() {
+		DecimalHistogramFacet expected = search(new DecimalHistogramFacetBuilder("f", "plain", 0.0, 0.0, ComparatorType.KEY).bins(20, -5.0, 5.0));
+		DecimalHistogramFacet facet = search(new DecimalHistogramFacetBuilder("f", "value", 0.0, 0.0, ComparatorType.KEY).bins(20, -5.0, 5.0));
+		assertThat(entries(facet), equalTo(entries(expected)));
+		InternalDecimalHistogramFacet internal = (InternalDecimalHistogramFacet) facet;
+		assertThat(internal.underflowCount, equalTo(((InternalDecimalHistogramFacet) expected).underflowCount));
+		assertThat(internal.overflowCount, equalTo(((InternalDecimalHistogramFacet) expected).overflowCount));
+		assertThat(internal.underflowCount + internal.overflowCount, not(equalTo(0L)));
+	}
+
+	@Test
+	public void testOrderedByCount() {
+		assertThat(entries(search(new DecimalHistogramFacetBuilder("f", "value", 0.5, 0.25, ComparatorType.COUNT))),
+			equalTo(entries(search(new DecimalHistogramFacetBuilder("f", "plain", 0.5, 0.25, ComparatorType.COUNT)))));
+	}
+}
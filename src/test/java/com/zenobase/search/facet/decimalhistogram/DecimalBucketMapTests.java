@@ -0,0 +1,143 @@
+package com.zenobase.search.facet.decimalhistogram;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.elasticsearch.common.util.BigArrays;
+import org.testng.annotations.Test;
+
+/**
+ * The map holds the same buckets as a sorted map would, whether it hashes its keys or
+ * indexes them in a dense array, and when it switches between the two.
+ */
+public class DecimalBucketMapTests {
+
+	private static Map<Long, String> buckets(DecimalBucketMap map) {
+		Map<Long, String> buckets = new TreeMap<>();
+		for (int slot = 0; slot < map.capacity(); ++slot) {
+			if (map.count(slot) != 0) {
+				buckets.put(map.key(slot), map.count(slot) + ":" + map.sum(slot) + ":" + map.sumOfSquares(slot));
+			}
+		}
+		return buckets;
+	}
+
+	private static void add(Map<Long, double[]> expected, long key, long count, double sum, double sumOfSquares) {
+		double[] bucket = expected.get(key);
+		if (bucket == null) {
+			expected.put(key, new double[] { count, sum, sumOfSquares });
+		} else {
+			bucket[0] += count;
+			bucket[1] += sum;
+			bucket[2] += sumOfSquares;
+		}
+	}
+
+	private static Map<Long, String> format(Map<Long, double[]> expected) {
+		Map<Long, String> buckets = new TreeMap<>();
+		for (Map.Entry<Long, double[]> entry : expected.entrySet()) {
+			double[] bucket = entry.getValue();
+			buckets.put(entry.getKey(), (long) bucket[0] + ":" + bucket[1] + ":" + bucket[2]);
+		}
+		return buckets;
+	}
+
+	@Test
+	public void testDenseKeysSwitchToArray() {
+		DecimalBucketMap map = new DecimalBucketMap(BigArrays.NON_RECYCLING_INSTANCE, 0);
+		Map<Long, double[]> expected = new TreeMap<>();
+		for (long key = -500; key < 500; ++key) {
+			map.increment(key);
+			add(expected, key, 1, 1., 1.);
+		}
+		assertThat(map.dense(), is(true));
+		assertThat(map.size(), equalTo(1000));
+		assertThat(buckets(map), equalTo(format(expected)));
+	}
+
+	@Test
+	public void testSparseKeysStayHashed() {
+		DecimalBucketMap map = new DecimalBucketMap(BigArrays.NON_RECYCLING_INSTANCE, 0);
+		Map<Long, double[]> expected = new TreeMap<>();
+		for (long i = 0; i < 1000; ++i) {
+			long key = i * 1000003L - 500000000L;
+			map.increment(key);
+			add(expected, key, 1, 1., 1.);
+		}
+		assertThat(map.dense(), is(false));
+		assertThat(buckets(map), equalTo(format(expected)));
+	}
+
+	@Test
+	public void testDenseArrayWidensAndSwitchesBack() {
+		DecimalBucketMap map = new DecimalBucketMap(BigArrays.NON_RECYCLING_INSTANCE, 0);
+		Map<Long, double[]> expected = new TreeMap<>();
+		for (long key = 0; key < 200; ++key) {
+			map.increment(key);
+			add(expected, key, 1, 1., 1.);
+		}
+		assertThat(map.dense(), is(true));
+		map.increment(-50);
+		map.increment(300);
+		add(expected, -50, 1, 1., 1.);
+		add(expected, 300, 1, 1., 1.);
+		assertThat(map.dense(), is(true));
+		assertThat(buckets(map), equalTo(format(expected)));
+		map.increment(Long.MAX_VALUE);
+		map.increment(Long.MIN_VALUE);
+		add(expected, Long.MAX_VALUE, 1, 1., 1.);
+		add(expected, Long.MIN_VALUE, 1, 1., 1.);
+		assertThat(map.dense(), is(false));
+		assertThat(buckets(map), equalTo(format(expected)));
+	}
+
+	@Test
+	public void testWeightsKeepCounts() {
+		DecimalBucketMap map = new DecimalBucketMap(BigArrays.NON_RECYCLING_INSTANCE, 0);
+		Map<Long, double[]> expected = new TreeMap<>();
+		for (long key = 0; key < 100; ++key) {
+			map.increment(key);
+			add(expected, key, 1, 1., 1.);
+		}
+		map.add(7, 2.5);
+		map.add(1000, -0.5);
+		map.add(7, 3, 4.0, 6.0);
+		add(expected, 7, 1, 2.5, 6.25);
+		add(expected, 1000, 1, -0.5, 0.25);
+		add(expected, 7, 3, 4.0, 6.0);
+		assertThat(map.weighted, is(true));
+		assertThat(buckets(map), equalTo(format(expected)));
+	}
+
+	@Test
+	public void testCoarsen() {
+		Random random = new Random(0);
+		for (boolean dense : new boolean[] { true, false }) {
+			DecimalBucketMap map = new DecimalBucketMap(BigArrays.NON_RECYCLING_INSTANCE, 0);
+			Map<Long, double[]> expected = new TreeMap<>();
+			for (int i = 0; i < 5000; ++i) {
+				long key = dense ? random.nextInt(2000) - 1000 : random.nextLong() >> 8;
+				double weight = random.nextInt(8) * 0.25;
+				map.add(key, weight);
+				add(expected, DecimalBucketMap.coarsen(key, 3), 1, weight, weight * weight);
+			}
+			assertThat(map.dense(), is(dense));
+			map.coarsen(3);
+			assertThat(buckets(map), equalTo(format(expected)));
+			assertThat(map.size(), equalTo(expected.size()));
+		}
+	}
+
+	@Test
+	public void testCoarsenRoundsDown() {
+		assertThat(DecimalBucketMap.coarsen(5, 1), equalTo(2L));
+		assertThat(DecimalBucketMap.coarsen(-5, 1), equalTo(-3L));
+		assertThat(DecimalBucketMap.coarsen(-1, 64), equalTo(-1L));
+		assertThat(DecimalBucketMap.coarsen(1, 64), equalTo(0L));
+	}
+}
@@ -0,0 +1,52 @@
+package com.zenobase.search.facet.decimalhistogram;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.elasticsearch.search.facet.histogram.HistogramFacet.ComparatorType;
+import org.testng.annotations.Test;
+
+/**
+ * The aggregation has the same bins as the facet, and looks them up by key.
+ */
+public class DecimalHistogramAggregationTests extends NodeTestBase {
+
+	private DecimalHistogramAggregation aggregate(DecimalHistogramAggregationBuilder aggregation) {
+		return client.prepareSearch("test").setSize(0).addAggregation(aggregation).get().getAggregations().get("a");
+	}
+
+	private static List<String> entries(DecimalHistogramAggregation aggregation) {
+		List<String> entries = new ArrayList<>();
+		for (DecimalHistogramAggregation.Bucket bucket : aggregation.getBuckets()) {
+			entries.add(bucket.getBin() + ":" + bucket.getCount());
+		}
+		return entries;
+	}
+
+	@Test
+	public void testIntervalBucketsMatchFacet() {
+		DecimalHistogramAggregation aggregation = aggregate(new DecimalHistogramAggregationBuilder("a").field("value").interval(0.5));
+		assertThat(entries(aggregation), equalTo(entries(search(new DecimalHistogramFacetBuilder("f", "value", 0.5, 0.0, ComparatorType.KEY)))));
+	}
+
+	@Test
+	public void testFixedBinsBucketsMatchFacet() {
+		DecimalHistogramAggregation aggregation = aggregate(new DecimalHistogramAggregationBuilder("a").field("value").bins(20, -5.0, 5.0));
+		assertThat(entries(aggregation), equalTo(entries(search(new DecimalHistogramFacetBuilder("f", "value", 0.0, 0.0, ComparatorType.KEY).bins(20, -5.0, 5.0)))));
+	}
+
+	@Test
+	public void testGetBucketByKey() {
+		DecimalHistogramAggregation aggregation = aggregate(new DecimalHistogramAggregationBuilder("a").field("value").interval(0.5));
+		for (DecimalHistogramAggregation.Bucket expected : aggregation.getBuckets()) {
+			DecimalHistogramAggregation.Bucket bucket = aggregation.getBucketByKey(expected.getKey());
+			assertThat(bucket.getBin(), equalTo(expected.getBin()));
+			assertThat(bucket.getCount(), equalTo(expected.getCount()));
+		}
+		assertThat(aggregation.<DecimalHistogramAggregation.Bucket> getBucketByKey("1000"), nullValue());
+	}
+}
@@ -0,0 +1,66 @@
+package com.zenobase.search.facet.decimalhistogram;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+
+import java.io.IOException;
+
+import org.elasticsearch.action.search.SearchPhaseExecutionException;
+import org.elasticsearch.common.base.Charsets;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.search.facet.histogram.HistogramFacet.ComparatorType;
+import org.testng.annotations.Test;
+
+public class DecimalHistogramsFacetTests extends NodeTestBase {
+
+	@Override
+	protected XContentBuilder mapping() throws IOException {
+		return XContentFactory.jsonBuilder().startObject().startObject("doc").startObject("properties")
+			.startObject("value").field("type", "double").startObject("fields")
+				.startObject("bins").field("type", "decimal_histogram_bins").field("interval", 0.5).endObject()
+			.endObject().endObject()
+			.startObject("weight").field("type", "double").endObject()
+			.endObject().endObject().endObject();
+	}
+
+	private DecimalHistogramsFacet searchHistograms(String facet) {
+		return client.prepareSearch("test").setSize(0).setFacets(("{\"f\":{\"decimal_histograms\":" + facet + "}}").getBytes(Charsets.UTF_8))
+			.get().getFacets().facet(DecimalHistogramsFacet.class, "f");
+	}
+
+	@Test
+	public void testSameAsSingleHistograms() {
+		DecimalHistogramsFacet facet = searchHistograms("{\"histograms\":[{\"field\":\"value\",\"interval\":0.5},{\"field\":\"weight\",\"nbin\":4,\"xmin\":0,\"xmax\":4}]}");
+		assertThat(facet.getHistograms(), hasSize(2));
+		assertThat(entries(facet.getHistograms().get(0)), equalTo(entries(search(new DecimalHistogramFacetBuilder("f", "value", 0.5, 0.0, ComparatorType.KEY)))));
+		assertThat(entries(facet.getHistograms().get(1)), equalTo(entries(search(new DecimalHistogramFacetBuilder("f", "weight", 0.0, 0.0, ComparatorType.KEY).bins(4, 0.0, 4.0)))));
+	}
+
+	@Test
+	public void testMaxBucketsBeforeHistograms() {
+		assertRejected("{\"max_buckets\":5,\"histograms\":[{\"field\":\"value\",\"nbin\":10,\"xmin\":-5,\"xmax\":5}]}", "[nbin] asks for more than [max_buckets] (5) buckets");
+	}
+
+	@Test
+	public void testMaxBucketsAfterHistograms() {
+		assertRejected("{\"histograms\":[{\"field\":\"value\",\"nbin\":10,\"xmin\":-5,\"xmax\":5}],\"max_buckets\":5}", "[nbin] asks for more than [max_buckets] (5) buckets");
+		assertThat(searchHistograms("{\"histograms\":[{\"field\":\"value\",\"nbin\":10,\"xmin\":-5,\"xmax\":5}],\"max_buckets\":20}").getHistograms(), hasSize(1));
+	}
+
+	@Test
+	public void testRejectsBinsField() {
+		assertRejected("{\"histograms\":[{\"field\":\"value.bins\",\"interval\":0.5}]}", "[value.bins] stores bins rather than values");
+	}
+
+	private void assertRejected(String facet, String reason) {
+		try {
+			searchHistograms(facet);
+			throw new AssertionError("expected the facet to be rejected: " + reason);
+		} catch (SearchPhaseExecutionException e) {
+			assertThat(e.getMessage(), containsString(reason));
+		}
+	}
+}
@@ -0,0 +1,300 @@
+package com.zenobase.search.facet.decimalhistogram;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.BytesStreamInput;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.util.BigArrays;
+import org.elasticsearch.search.facet.histogram.HistogramFacet.ComparatorType;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Shard results survive the stream format, and merge into the same histogram whether
+ * they are merged sequentially, in parallel or all at once.
+ */
+public class InternalDecimalHistogramFacetTests {
+
+	private static final byte FORMAT_VERSION = 7;
+	private static final byte DENSE = 4;
+
+	private ForkJoinPool pool;
+
+	@BeforeClass
+	public void createPool() {
+		pool = new ForkJoinPool(2);
+	}
+
+	@AfterClass
+	public void shutdown() {
+		pool.shutdown();
+	}
+
+	/**
+	 * Returns everything a facet holds, bins in key order.
+	 */
+	private static String describe(InternalDecimalHistogramFacet facet) {
+		StringBuilder builder = new StringBuilder();
+		builder.append(facet.getName()).append(' ').append(facet.comparatorType).append(' ').append(facet.weighted)
+			.append(" interval=").append(facet.interval).append(" offset=").append(facet.offset)
+			.append(" nbins=").append(facet.nbins).append(" maxBins=").append(facet.maxBins)
+			.append(" xmin=").append(facet.xmin).append(" xmax=").append(facet.xmax)
+			.append(" underflows=").append(facet.underflowCount).append('/').append(facet.underflows).append('/').append(facet.underflowSumOfSquares)
+			.append(" overflows=").append(facet.overflowCount).append('/').append(facet.overflows).append('/').append(facet.overflowSumOfSquares)
+			.append(" entries=").append(facet.nentries).append(" integral=").append(facet.integral)
+			.append(" mean=").append(facet.mean).append(" rms=").append(facet.rms);
+		List<InternalDecimalHistogramFacet.DecimalEntry> entries = new ArrayList<>(facet.getEntries());
+		Collections.sort(entries, new Comparator<InternalDecimalHistogramFacet.DecimalEntry>() {
+
+			@Override
+			public int compare(InternalDecimalHistogramFacet.DecimalEntry o1, InternalDecimalHistogramFacet.DecimalEntry o2) {
+				return Long.compare(o1.getKey(), o2.getKey());
+			}
+		});
+		for (InternalDecimalHistogramFacet.DecimalEntry entry : entries) {
+			builder.append(' ').append(entry.getKey()).append(':').append(entry.getCount()).append(':')
+				.append(entry.getBinContent()).append(':').append(entry.getSumOfSquares());
+		}
+		return builder.toString();
+	}
+
+	private static BytesReference write(InternalDecimalHistogramFacet facet) throws IOException {
+		BytesStreamOutput out = new BytesStreamOutput();
+		facet.writeTo(out);
+		return out.bytes();
+	}
+
+	private static InternalDecimalHistogramFacet roundTrip(InternalDecimalHistogramFacet facet, boolean dense) throws IOException {
+		BytesReference bytes = write(facet);
+		StreamInput in = new BytesStreamInput(bytes);
+		in.readString();
+		assertThat(in.readByte(), equalTo(FORMAT_VERSION));
+		in.readByte();
+		assertThat((in.readByte() & DENSE) != 0, is(dense));
+		return InternalDecimalHistogramFacet.readDecimalHistogramFacet(new BytesStreamInput(bytes));
+	}
+
+	/**
+	 * Returns a histogram of random keys in [0, keys), with weights that are multiples of
+	 * 0.5 if weighted, so that they add up exactly in any order.
+	 */
+	private static InternalDecimalHistogramFacet interval(Random random, int keys, int values, boolean weighted) {
+		DecimalBucketMap map = new DecimalBucketMap(BigArrays.NON_RECYCLING_INSTANCE, 0);
+		for (int i = 0; i < values; ++i) {
+			long key = random.nextInt(keys);
+			if (weighted) {
+				map.add(key, random.nextInt(8) * 0.5);
+			} else {
+				map.increment(key);
+			}
+		}
+		return new InternalDecimalHistogramFacet("f", 1.0, 0.0, ComparatorType.KEY, map);
+	}
+
+	/**
+	 * Returns a histogram with the given number of bins between 0 and nbin, with values
+	 * that fall into up to the given number of random bins, or outside of them.
+	 */
+	private static InternalDecimalHistogramFacet fixed(Random random, int nbin, int nonEmpty, int values, boolean weighted) {
+		FixedBins bins = new FixedBins(BigArrays.NON_RECYCLING_INSTANCE, nbin, 0.0, nbin);
+		int[] used = new int[nonEmpty];
+		for (int i = 0; i < nonEmpty; ++i) {
+			used[i] = random.nextInt(nbin + 2);
+		}
+		for (int i = 0; i < values; ++i) {
+			int slot = used[random.nextInt(nonEmpty)];
+			if (weighted) {
+				bins.add(slot, random.nextInt(8) * 0.5);
+			} else {
+				bins.increment(slot);
+			}
+		}
+		return new InternalDecimalHistogramFacet("f", bins, ComparatorType.KEY);
+	}
+
+	@Test
+	public void testStreamSparseInterval() throws IOException {
+		for (boolean weighted : new boolean[] { false, true }) {
+			InternalDecimalHistogramFacet facet = interval(new Random(0), 100000, 1000, weighted);
+			assertThat(describe(roundTrip(facet, false)), equalTo(describe(facet)));
+		}
+	}
+
+	@Test
+	public void testStreamNegativeKeys() throws IOException {
+		DecimalBucketMap map = new DecimalBucketMap(BigArrays.NON_RECYCLING_INSTANCE, 0);
+		map.increment(Long.MIN_VALUE + 1);
+		map.increment(-3);
+		map.add(5, 1.5);
+		map.increment(Long.MAX_VALUE);
+		InternalDecimalHistogramFacet facet = new InternalDecimalHistogramFacet("f", 0.1, 0.05, ComparatorType.KEY, map);
+		assertThat(describe(roundTrip(facet, false)), equalTo(describe(facet)));
+	}
+
+	@Test
+	public void testStreamDenseFixedBins() throws IOException {
+		for (boolean weighted : new boolean[] { false, true }) {
+			InternalDecimalHistogramFacet facet = fixed(new Random(0), 1000, 2000, 100000, weighted);
+			assertThat(describe(roundTrip(facet, true)), equalTo(describe(facet)));
+		}
+	}
+
+	@Test
+	public void testStreamSparseFixedBins() throws IOException {
+		for (boolean weighted : new boolean[] { false, true }) {
+			InternalDecimalHistogramFacet facet = fixed(new Random(0), 1000000, 10, 100, weighted);
+			assertThat(describe(roundTrip(facet, false)), equalTo(describe(facet)));
+		}
+	}
+
+	@Test
+	public void testStreamEmpty() throws IOException {
+		InternalDecimalHistogramFacet facet = interval(new Random(0), 10, 0, false);
+		assertThat(describe(roundTrip(facet, false)), equalTo(describe(facet)));
+	}
+
+	@Test
+	public void testStreamKeepsSortOrder() throws IOException {
+		DecimalBucketMap map = new DecimalBucketMap(BigArrays.NON_RECYCLING_INSTANCE, 0);
+		Random random = new Random(0);
+		for (int i = 0; i < 1000; ++i) {
+			map.increment(random.nextInt(50));
+		}
+		InternalDecimalHistogramFacet facet = new InternalDecimalHistogramFacet("f", 1.0, 0.0, ComparatorType.COUNT, map);
+		facet.sort();
+		InternalDecimalHistogramFacet read = roundTrip(facet, false);
+		assertThat(NodeTestBase.entries(read), equalTo(NodeTestBase.entries(facet)));
+	}
+
+	private static List<InternalDecimalHistogramFacet> shards(long seed, int shards, boolean weighted) {
+		Random random = new Random(seed);
+		List<InternalDecimalHistogramFacet> facets = new ArrayList<>();
+		for (int i = 0; i < shards; ++i) {
+			facets.add(interval(random, 5000, 4000, weighted));
+		}
+		return facets;
+	}
+
+	/**
+	 * Returns the histogram of all bins of the given shards, collected into one map.
+	 */
+	private static InternalDecimalHistogramFacet collectAll(List<InternalDecimalHistogramFacet> facets) {
+		DecimalBucketMap map = new DecimalBucketMap(BigArrays.NON_RECYCLING_INSTANCE, 0);
+		for (InternalDecimalHistogramFacet facet : facets) {
+			map.weighted |= facet.weighted;
+			for (InternalDecimalHistogramFacet.DecimalEntry entry : facet.getEntries()) {
+				map.add(entry.getKey(), entry.getCount(), entry.getBinContent(), entry.getSumOfSquares());
+			}
+		}
+		return new InternalDecimalHistogramFacet("f", 1.0, 0.0, ComparatorType.KEY, map);
+	}
+
+	@Test
+	public void testMergeMatchesCollectingAll() {
+		for (boolean weighted : new boolean[] { false, true }) {
+			List<InternalDecimalHistogramFacet> facets = shards(0, 16, weighted);
+			assertThat(describe(facets.get(0).merge(facets, null)), equalTo(describe(collectAll(shards(0, 16, weighted)))));
+		}
+	}
+
+	@Test
+	public void testParallelMergeMatchesSequentialMerge() {
+		for (boolean weighted : new boolean[] { false, true }) {
+			List<InternalDecimalHistogramFacet> facets = shards(1, 16, weighted);
+			String sequential = describe(facets.get(0).merge(facets, null));
+			facets = shards(1, 16, weighted);
+			assertThat(describe(ParallelReduce.merge(facets.get(0), facets, null)), equalTo(sequential));
+			facets = shards(1, 16, weighted);
+			assertThat(describe(facets.get(0).merge(facets, pool)), equalTo(sequential));
+		}
+	}
+
+	/**
+	 * Weights that are not multiples of a power of two still add up in the same order
+	 * when merged in parallel.
+	 */
+	@Test
+	public void testParallelMergeIsExact() {
+		List<InternalDecimalHistogramFacet> facets = new ArrayList<>();
+		Random random = new Random(2);
+		for (int i = 0; i < 16; ++i) {
+			DecimalBucketMap map = new DecimalBucketMap(BigArrays.NON_RECYCLING_INSTANCE, 0);
+			for (int j = 0; j < 4000; ++j) {
+				map.add(random.nextInt(5000), random.nextDouble() * 0.3);
+			}
+			facets.add(new InternalDecimalHistogramFacet("f", 0.1, 0.0, ComparatorType.KEY, map));
+		}
+		String sequential = describe(facets.get(0).merge(facets, null));
+		assertThat(describe(facets.get(0).merge(facets, pool)), equalTo(sequential));
+	}
+
+	@Test
+	public void testMergeFixedBins() {
+		Random random = new Random(3);
+		List<InternalDecimalHistogramFacet> facets = new ArrayList<>();
+		FixedBins all = new FixedBins(BigArrays.NON_RECYCLING_INSTANCE, 100, 0.0, 100);
+		for (int i = 0; i < 8; ++i) {
+			FixedBins bins = new FixedBins(BigArrays.NON_RECYCLING_INSTANCE, 100, 0.0, 100);
+			for (int j = 0; j < 500; ++j) {
+				int slot = random.nextInt(102);
+				double weight = random.nextInt(8) * 0.5;
+				bins.add(slot, weight);
+				all.add(slot, weight);
+			}
+			facets.add(new InternalDecimalHistogramFacet("f", bins, ComparatorType.KEY));
+		}
+		assertThat(describe(facets.get(0).merge(facets, null)), equalTo(describe(new InternalDecimalHistogramFacet("f", all, ComparatorType.KEY))));
+	}
+
+	@Test
+	public void testAdaptiveMergeWidensToWidestShard() {
+		List<InternalDecimalHistogramFacet> facets = new ArrayList<>();
+		DecimalBucketMap all = new DecimalBucketMap(BigArrays.NON_RECYCLING_INSTANCE, 0);
+		Random random = new Random(4);
+		for (int i = 0; i < 4; ++i) {
+			int shift = i % 3;
+			DecimalBucketMap map = new DecimalBucketMap(BigArrays.NON_RECYCLING_INSTANCE, 0);
+			for (int j = 0; j < 1000; ++j) {
+				long key = random.nextInt(4000);
+				map.increment(key >> shift);
+				all.increment(key >> 2);
+			}
+			facets.add(new InternalDecimalHistogramFacet("f", Math.scalb(0.25, shift), 0.0, 2000, ComparatorType.KEY, map));
+		}
+		InternalDecimalHistogramFacet merged = facets.get(0).merge(facets, null);
+		assertThat(merged.interval, equalTo(1.0));
+		assertThat(NodeTestBase.entries(merged), equalTo(NodeTestBase.entries(new InternalDecimalHistogramFacet("f", 1.0, 0.0, ComparatorType.KEY, all))));
+	}
+
+	@Test
+	public void testAdaptiveMergeCoarsensToMaxBins() {
+		List<InternalDecimalHistogramFacet> facets = new ArrayList<>();
+		DecimalBucketMap all = new DecimalBucketMap(BigArrays.NON_RECYCLING_INSTANCE, 0);
+		Random random = new Random(5);
+		for (int i = 0; i < 4; ++i) {
+			DecimalBucketMap map = new DecimalBucketMap(BigArrays.NON_RECYCLING_INSTANCE, 0);
+			for (int j = 0; j < 1000; ++j) {
+				long key = random.nextInt(1000);
+				map.increment(key);
+				all.increment(key >> 4);
+			}
+			facets.add(new InternalDecimalHistogramFacet("f", 1.0, 0.0, 100, ComparatorType.KEY, map));
+		}
+		InternalDecimalHistogramFacet merged = facets.get(0).merge(facets, null);
+		assertThat(merged.interval, equalTo(16.0));
+		assertThat(NodeTestBase.entries(merged), equalTo(NodeTestBase.entries(new InternalDecimalHistogramFacet("f", 16.0, 0.0, ComparatorType.KEY, all))));
+	}
+}
@@ -0,0 +1,129 @@
+package com.zenobase.search.facet.decimalhistogram;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.base.Charsets;
+import org.elasticsearch.common.io.FileSystemUtils;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.node.Node;
+import org.elasticsearch.node.NodeBuilder;
+import org.elasticsearch.node.internal.InternalNode;
+import org.elasticsearch.search.facet.histogram.HistogramFacet;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+
+/**
+ * Starts a local node with the plugin, and indexes the documents of {@link #index()} into
+ * an index "test" with a single shard, refreshing after each batch so that the shard has
+ * several segments.
+ */
+public abstract class NodeTestBase {
+
+	protected static final int DOCS = 3000;
+	protected static final int BATCH = 1000;
+
+	protected Node node;
+	protected Client client;
+
+	@BeforeClass
+	public void startNode() throws IOException {
+		File data = new File("target/test-data/" + getClass().getSimpleName());
+		FileSystemUtils.deleteRecursively(data);
+		node = NodeBuilder.nodeBuilder().local(true).settings(ImmutableSettings.settingsBuilder()
+			.put("path.data", data.getPath())
+			.put("cluster.name", getClass().getSimpleName())
+			.put("index.number_of_shards", 1)
+			.put("index.number_of_replicas", 0)
+			.put("index.merge.policy.type", "log_doc")
+			.put("index.merge.policy.merge_factor", 100)
+			.put("script.inline", "on")
+			.put("http.enabled", false)).node();
+		client = node.client();
+		client.admin().indices().prepareCreate("test").addMapping("doc", mapping()).get();
+		index();
+	}
+
+	@AfterClass
+	public void stopNode() {
+		if (node != null) {
+			node.close();
+		}
+	}
+
+	protected XContentBuilder mapping() throws IOException {
+		return XContentFactory.jsonBuilder().startObject().startObject("doc").startObject("properties")
+			.startObject("value").field("type", "double").endObject()
+			.startObject("weight").field("type", "double").endObject()
+			.startObject("tag").field("type", "string").field("index", "not_analyzed").endObject()
+			.endObject().endObject().endObject();
+	}
+
+	/**
+	 * Indexes normally distributed values, with a few documents that have several values
+	 * or none.
+	 */
+	protected void index() {
+		Random random = new Random(0);
+		for (int i = 0; i < DOCS; ++i) {
+			Object value;
+			if (i % 50 == 0) {
+				value = null;
+			} else if (i % 7 == 0) {
+				value = new double[] { random.nextGaussian() * 3, random.nextGaussian() * 3 };
+			} else {
+				value = random.nextGaussian() * 3;
+			}
+			client.prepareIndex("test", "doc", Integer.toString(i)).setSource("value", value, "weight", i % 5, "tag", "t" + (i % 3)).get();
+			if (i % BATCH == BATCH - 1) {
+				client.admin().indices().prepareRefresh("test").get();
+			}
+		}
+		client.admin().indices().prepareRefresh("test").get();
+	}
+
+	/**
+	 * Runs the given facet, which must be named "f", over all documents.
+	 */
+	protected DecimalHistogramFacet search(DecimalHistogramFacetBuilder facet) {
+		return client.prepareSearch("test").setSize(0).addFacet(facet).get().getFacets().facet(DecimalHistogramFacet.class, "f");
+	}
+
+	/**
+	 * Runs the given facets, of which the one named "f" is returned, over all documents.
+	 */
+	protected DecimalHistogramFacet search(String facets) {
+		return client.prepareSearch("test").setSize(0).setFacets(facets.getBytes(Charsets.UTF_8)).get().getFacets().facet(DecimalHistogramFacet.class, "f");
+	}
+
+	/**
+	 * Returns the keys and counts of the entries of the given histogram, in order.
+	 */
+	protected static List<String> entries(DecimalHistogramFacet facet) {
+		List<String> entries = new ArrayList<>();
+		for (HistogramFacet.Entry entry : facet.getEntries()) {
+			entries.add(entry.getKey() + ":" + entry.getCount());
+		}
+		return entries;
+	}
+
+	protected SegmentHistogramCache cache() {
+		return ((InternalNode) node).injector().getInstance(SegmentHistogramCache.class);
+	}
+
+	protected long cacheHits() throws IOException {
+		XContentBuilder builder = XContentFactory.jsonBuilder().startObject();
+		cache().stats().toXContent(builder, ToXContent.EMPTY_PARAMS).endObject();
+		Map<String, Object> stats = XContentHelper.convertToMap(builder.bytes(), false).v2();
+		return ((Number) stats.get("hit_count")).longValue();
+	}
+}
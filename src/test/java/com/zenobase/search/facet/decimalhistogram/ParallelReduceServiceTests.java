@@ -0,0 +1,70 @@
+package com.zenobase.search.facet.decimalhistogram;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+
+import java.io.File;
+
+import org.elasticsearch.cache.recycler.CacheRecycler;
+import org.elasticsearch.common.io.FileSystemUtils;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.node.Node;
+import org.elasticsearch.node.NodeBuilder;
+import org.elasticsearch.node.internal.InternalNode;
+import org.testng.annotations.Test;
+
+/**
+ * Each node owns its reduce pool, which lives as long as the node.
+ */
+public class ParallelReduceServiceTests {
+
+	private static Node startNode(String name) {
+		File data = new File("target/test-data/" + ParallelReduceServiceTests.class.getSimpleName() + "/" + name);
+		FileSystemUtils.deleteRecursively(data);
+		return NodeBuilder.nodeBuilder().local(true).settings(ImmutableSettings.settingsBuilder()
+			.put("path.data", data.getPath())
+			.put("cluster.name", ParallelReduceServiceTests.class.getSimpleName() + "-" + name)
+			.put(ParallelReduceService.PARALLELISM_SETTING, 2)
+			.put("http.enabled", false)).node();
+	}
+
+	private static CacheRecycler cacheRecycler(Node node) {
+		return ((InternalNode) node).injector().getInstance(CacheRecycler.class);
+	}
+
+	@Test
+	public void testPoolIsShutDownWhenNodeCloses() {
+		Node node = startNode("a");
+		CacheRecycler recycler = cacheRecycler(node);
+		try {
+			assertThat(ParallelReduceService.of(recycler).pool(ParallelReduceService.DEFAULT_THRESHOLD), notNullValue());
+			assertThat(ParallelReduceService.of(recycler).pool(ParallelReduceService.DEFAULT_THRESHOLD - 1), nullValue());
+		} finally {
+			node.close();
+		}
+		assertThat(ParallelReduceService.of(recycler), nullValue());
+	}
+
+	@Test
+	public void testNodesHaveTheirOwnPools() {
+		Node a = startNode("a");
+		try {
+			Node b = startNode("b");
+			ParallelReduceService service = ParallelReduceService.of(cacheRecycler(a));
+			try {
+				assertThat(ParallelReduceService.of(cacheRecycler(b)).pool(ParallelReduceService.DEFAULT_THRESHOLD),
+					not(sameInstance(service.pool(ParallelReduceService.DEFAULT_THRESHOLD))));
+			} finally {
+				b.close();
+			}
+			assertThat(ParallelReduceService.of(cacheRecycler(a)), sameInstance(service));
+			assertThat(service.pool(ParallelReduceService.DEFAULT_THRESHOLD).isShutdown(), is(false));
+		} finally {
+			a.close();
+		}
+	}
+}
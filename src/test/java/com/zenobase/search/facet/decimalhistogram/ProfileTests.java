@@ -0,0 +1,61 @@
+package com.zenobase.search.facet.decimalhistogram;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.nullValue;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.node.internal.InternalNode;
+import org.elasticsearch.search.facet.histogram.HistogramFacet.ComparatorType;
+import org.testng.annotations.Test;
+
+/**
+ * Facets that ask for a profile are measured per segment, and only they add to the
+ * measured node level metrics.
+ */
+public class ProfileTests extends NodeTestBase {
+
+	private Map<String, Object> stats() throws IOException {
+		FacetMetrics metrics = ((InternalNode) node).injector().getInstance(FacetMetrics.class);
+		XContentBuilder builder = XContentFactory.jsonBuilder().startObject();
+		metrics.stats().toXContent(builder, ToXContent.EMPTY_PARAMS).endObject();
+		return XContentHelper.convertToMap(builder.bytes(), false).v2();
+	}
+
+	private static long count(Map<String, Object> stats, String name) {
+		return ((Number) stats.get(name)).longValue();
+	}
+
+	@Test
+	public void testProfileCountsDocsPerSegment() {
+		FacetProfile profile = ((InternalDecimalHistogramFacet) search(new DecimalHistogramFacetBuilder("f", "value", 0.5, 0.0, ComparatorType.KEY).profile(true))).profile;
+		assertThat(profile.docs, equalTo((long) DOCS));
+		assertThat(profile.segments, greaterThan(0L));
+		assertThat(profile.collectNanos, greaterThanOrEqualTo(profile.nextReaderNanos));
+	}
+
+	@Test
+	public void testOnlyProfiledFacetsAreMeasured() throws IOException {
+		Map<String, Object> before = stats();
+		DecimalHistogramFacet facet = search(new DecimalHistogramFacetBuilder("f", "value", 0.5, 0.0, ComparatorType.KEY));
+		assertThat(((InternalDecimalHistogramFacet) facet).profile, nullValue());
+		Map<String, Object> after = stats();
+		assertThat(count(after, "executions"), equalTo(count(before, "executions") + 1));
+		assertThat(count(after, "profiled_executions"), equalTo(count(before, "profiled_executions")));
+		assertThat(count(after, "docs"), equalTo(count(before, "docs")));
+
+		search(new DecimalHistogramFacetBuilder("f", "value", 0.5, 0.0, ComparatorType.KEY).profile(true));
+		Map<String, Object> profiled = stats();
+		assertThat(count(profiled, "executions"), equalTo(count(after, "executions") + 1));
+		assertThat(count(profiled, "profiled_executions"), equalTo(count(after, "profiled_executions") + 1));
+		assertThat(count(profiled, "docs"), equalTo(count(after, "docs") + DOCS));
+	}
+}
@@ -0,0 +1,106 @@
+package com.zenobase.search.facet.decimalhistogram;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.index.query.FilterBuilders;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.facet.histogram.HistogramFacet.ComparatorType;
+import org.testng.annotations.Test;
+
+public class SegmentHistogramCacheTests extends NodeTestBase {
+
+	private static DecimalHistogramFacetBuilder cached(String name, String field, double interval, double offset, ComparatorType comparatorType) {
+		return new DecimalHistogramFacetBuilder(name, field, interval, offset, comparatorType).cache(true);
+	}
+
+	@Test
+	public void testIntervalHitsCache() throws IOException {
+		assertHitsCache(cached("f", "value", 0.5, 0.25, ComparatorType.KEY));
+	}
+
+	@Test
+	public void testFixedBinsHitsCache() throws IOException {
+		assertHitsCache(cached("f", "value", 1.0, 0.0, ComparatorType.KEY).bins(24, -6.0, 6.0));
+	}
+
+	@Test
+	public void testProfiledHitsCache() throws IOException {
+		assertHitsCache(cached("f", "value", 0.25, 0.0, ComparatorType.KEY).profile(true));
+	}
+
+	@Test
+	public void testPrunedHitsCache() throws IOException {
+		assertHitsCache(cached("f", "value", 0.5, 0.0, ComparatorType.COUNT).keyRange(-4.0, 4.0).size(5));
+	}
+
+	@Test
+	public void testPrunedFixedBinsHitsCache() throws IOException {
+		assertHitsCache(cached("f", "value", 1.0, 0.0, ComparatorType.KEY).bins(24, -6.0, 6.0).keyRange(-2.0, 2.0).profile(true));
+	}
+
+	/**
+	 * Histograms with the same base interval share the cached bins of each segment, so a
+	 * request at another interval and offset merges them from the pyramid instead of
+	 * collecting the segments again.
+	 */
+	@Test
+	public void testZoomHitsPyramid() throws IOException {
+		DecimalHistogramFacetBuilder base = cached("f", "value", 0.5, 0.25, ComparatorType.KEY).baseInterval(0.125);
+		assertThat(entries(search(base)), equalTo(entries(search(new DecimalHistogramFacetBuilder("f", "value", 0.5, 0.25, ComparatorType.KEY)))));
+		long hits = cacheHits();
+		List<String> zoomed = entries(search(cached("f", "value", 2.0, 0.0, ComparatorType.KEY).baseInterval(0.125)));
+		assertThat(cacheHits(), greaterThan(hits));
+		assertThat(zoomed, equalTo(entries(search(new DecimalHistogramFacetBuilder("f", "value", 2.0, 0.0, ComparatorType.KEY)))));
+		hits = cacheHits();
+		List<String> shifted = entries(search(cached("f", "value", 0.375, 0.125, ComparatorType.KEY).baseInterval(0.125)));
+		assertThat(cacheHits(), greaterThan(hits));
+		assertThat(shifted, equalTo(entries(search(new DecimalHistogramFacetBuilder("f", "value", 0.375, 0.125, ComparatorType.KEY)))));
+	}
+
+	@Test
+	public void testNotCachedUnlessAskedFor() throws IOException {
+		DecimalHistogramFacetBuilder facet = new DecimalHistogramFacetBuilder("f", "value", 0.75, 0.0, ComparatorType.KEY);
+		search(facet);
+		long hits = cacheHits();
+		search(facet);
+		assertThat(cacheHits(), equalTo(hits));
+	}
+
+	/**
+	 * Which parents have children depends on documents in other segments, so a request
+	 * that filters on it is not cached.
+	 */
+	@Test
+	public void testJoinIsNotCached() throws IOException {
+		client.admin().indices().preparePutMapping("test").setType("child").setSource(XContentFactory.jsonBuilder().startObject()
+			.startObject("child").startObject("_parent").field("type", "doc").endObject().endObject().endObject()).get();
+		DecimalHistogramFacetBuilder facet = cached("f", "value", 0.75, 0.0, ComparatorType.KEY);
+		SearchRequestBuilder request = client.prepareSearch("test").setSize(0).addFacet(facet)
+			.setQuery(QueryBuilders.filteredQuery(QueryBuilders.matchAllQuery(), FilterBuilders.notFilter(FilterBuilders.hasChildFilter("child", QueryBuilders.matchAllQuery()))));
+		List<String> first = entries(request.get().getFacets().facet(DecimalHistogramFacet.class, "f"));
+		long hits = cacheHits();
+		List<String> second = entries(request.get().getFacets().facet(DecimalHistogramFacet.class, "f"));
+		assertThat(cacheHits(), equalTo(hits));
+		assertThat(second, equalTo(first));
+		assertThat(first, equalTo(entries(search(facet))));
+	}
+
+	/**
+	 * Runs the given facet twice, and checks that the second request takes the bins of
+	 * the segments from the cache, with the same result.
+	 */
+	private void assertHitsCache(DecimalHistogramFacetBuilder facet) throws IOException {
+		List<String> first = entries(search(facet));
+		long hits = cacheHits();
+		List<String> second = entries(search(facet));
+		assertThat(cacheHits(), greaterThan(hits));
+		assertThat(second, equalTo(first));
+	}
+}
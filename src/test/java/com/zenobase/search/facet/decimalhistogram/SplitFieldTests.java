@@ -0,0 +1,59 @@
+package com.zenobase.search.facet.decimalhistogram;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.facet.histogram.HistogramFacet.ComparatorType;
+import org.testng.annotations.Test;
+
+/**
+ * The histogram of each term of a split field is the histogram of the documents with
+ * that term.
+ */
+public class SplitFieldTests extends NodeTestBase {
+
+	/**
+	 * Adds documents with two terms, and without any, to those of the base class.
+	 */
+	@Override
+	protected void index() {
+		super.index();
+		for (int i = 0; i < 20; ++i) {
+			client.prepareIndex("test", "doc", "extra" + i).setSource("value", i * 0.5 - 5.0, "tag", i % 2 == 0 ? new String[] { "t0", "t3" } : null).get();
+		}
+		client.admin().indices().prepareRefresh("test").get();
+	}
+
+	private DecimalHistogramFacetBuilder facet() {
+		return new DecimalHistogramFacetBuilder("f", "value", 0.0, 0.0, ComparatorType.KEY).bins(20, -5.0, 5.0);
+	}
+
+	private DecimalHistogramFacet searchTerm(String term) {
+		return client.prepareSearch("test").setSize(0).setQuery(QueryBuilders.termQuery("tag", term)).addFacet(facet())
+			.get().getFacets().facet(DecimalHistogramFacet.class, "f");
+	}
+
+	@Test
+	public void testHistogramPerTerm() {
+		InternalSplitDecimalHistogramFacet split = client.prepareSearch("test").setSize(0).addFacet(facet().splitField("tag"))
+			.get().getFacets().facet(InternalSplitDecimalHistogramFacet.class, "f");
+		List<String> terms = new ArrayList<>();
+		for (BytesRef term : split.getTerms()) {
+			terms.add(term.utf8ToString());
+		}
+		assertThat(terms, contains("t0", "t1", "t2", "t3"));
+		for (int i = 0; i < terms.size(); ++i) {
+			InternalDecimalHistogramFacet histogram = split.getHistograms().get(i);
+			InternalDecimalHistogramFacet expected = (InternalDecimalHistogramFacet) searchTerm(terms.get(i));
+			assertThat(entries(histogram), equalTo(entries(expected)));
+			assertThat(histogram.underflowCount, equalTo(expected.underflowCount));
+			assertThat(histogram.overflowCount, equalTo(expected.overflowCount));
+		}
+	}
+}
@@ -0,0 +1,62 @@
+package com.zenobase.search.facet.decimalhistogram;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.elasticsearch.search.facet.histogram.HistogramFacet.ComparatorType;
+import org.testng.annotations.Test;
+
+/**
+ * Each value of the key field is counted once, with the sum of the values of the value
+ * field of its document as its weight.
+ */
+public class ValueFieldTests extends NodeTestBase {
+
+	@Override
+	protected void index() {
+		client.prepareIndex("test", "doc", "1").setSource("value", 0.5, "weight", new double[] { 1.0, 2.0 }).get();
+		client.prepareIndex("test", "doc", "2").setSource("value", new double[] { 0.5, 1.5 }, "weight", new double[] { 3.0, 4.0, 5.0 }).get();
+		client.prepareIndex("test", "doc", "3").setSource("value", 1.5, "weight", 2.0).get();
+		client.prepareIndex("test", "doc", "4").setSource("value", 2.5).get();
+		client.admin().indices().prepareRefresh("test").get();
+	}
+
+	/**
+	 * Returns the keys, counts, bin contents and sums of squares of the entries of the
+	 * given histogram, in order.
+	 */
+	private static List<String> weightedEntries(DecimalHistogramFacet facet) {
+		List<String> entries = new ArrayList<>();
+		for (InternalDecimalHistogramFacet.DecimalEntry entry : ((InternalDecimalHistogramFacet) facet).getEntries()) {
+			entries.add(entry.getKey() + ":" + entry.getCount() + ":" + entry.getBinContent() + ":" + entry.getSumOfSquares());
+		}
+		return entries;
+	}
+
+	@Test
+	public void testIntervalCountsEachKeyOnce() {
+		DecimalHistogramFacet facet = search(new DecimalHistogramFacetBuilder("f", "value", 1.0, 0.0, ComparatorType.KEY).valueField("weight"));
+		assertThat(weightedEntries(facet), contains("0:2:15.0:153.0", "1:2:14.0:148.0"));
+	}
+
+	@Test
+	public void testFixedBinsCountEachKeyOnce() {
+		DecimalHistogramFacet facet = search(new DecimalHistogramFacetBuilder("f", "value", 0.0, 0.0, ComparatorType.KEY).valueField("weight").bins(3, 0.0, 3.0));
+		assertThat(weightedEntries(facet), contains("0:2:15.0:153.0", "1:2:14.0:148.0"));
+	}
+
+	@Test
+	public void testAggregationCountsEachKeyOnce() {
+		DecimalHistogramAggregation aggregation = client.prepareSearch("test").setSize(0)
+			.addAggregation(new DecimalHistogramAggregationBuilder("a").field("value").interval(1.0).valueField("weight"))
+			.get().getAggregations().get("a");
+		List<String> entries = new ArrayList<>();
+		for (DecimalHistogramAggregation.Bucket bucket : aggregation.getBuckets()) {
+			entries.add(bucket.getBin() + ":" + bucket.getCount() + ":" + bucket.getBinContent() + ":" + Math.round(bucket.getError() * bucket.getError()));
+		}
+		assertThat(entries, contains("0:2:15.0:153", "1:2:14.0:148"));
+	}
+}